@@ -0,0 +1,56 @@
+package neu.cs6650.benchmarks;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import neu.cs6650.server.ConsensusBenchmark;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks and writes their results as JSON, one file per benchmark and thread count,
+ * so that runs can be compared to find regressions.
+ *
+ * <p>Usage: java -jar benchmarks.jar [thread counts, comma separated] [result directory]
+ *
+ * <p>File operations and load balancers are run with every thread count, 1, 4 and 16 by default.
+ * Consensus rounds are run from one thread only, concurrent rounds of one server would only
+ * preempt each other.
+ */
+public class BenchmarkRunner {
+
+  private static Logger logger = Logger.getLogger(BenchmarkRunner.class.getName());
+
+  public static void main(String[] args) throws RunnerException {
+    int[] threadCounts = args.length < 1 ? new int[]{1, 4, 16}
+        : Arrays.stream(args[0].split(",")).mapToInt(Integer::parseInt).toArray();
+    File resultDir = new File(args.length < 2 ? "jmh-results" : args[1]);
+    if (!resultDir.isDirectory() && !resultDir.mkdirs()) {
+      logger.log(Level.SEVERE, "Unable to create result directory {0}", resultDir);
+      return;
+    }
+
+    for (int threads : threadCounts) {
+      run(FileOpsBenchmark.class, threads, new File(resultDir, "file-ops-t" + threads + ".json"));
+      run(LoadBalancerBenchmark.class, threads,
+          new File(resultDir, "load-balancer-t" + threads + ".json"));
+    }
+    run(ConsensusBenchmark.class, 1, new File(resultDir, "consensus-t1.json"));
+  }
+
+  private static void run(Class<?> benchmark, int threads, File result) throws RunnerException {
+    logger.log(Level.INFO, "Running {0} with {1} threads into {2}",
+        new Object[]{benchmark.getSimpleName(), threads, result});
+    Options options = new OptionsBuilder()
+        .include("^" + benchmark.getName().replace(".", "\\.") + "\\.")
+        .threads(threads)
+        .resultFormat(ResultFormatType.JSON)
+        .result(result.getPath())
+        .build();
+    new Runner(options).run();
+  }
+}
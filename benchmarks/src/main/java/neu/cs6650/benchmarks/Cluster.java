@@ -0,0 +1,234 @@
+package neu.cs6650.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import neu.cs6650.server.DistributedFileServer;
+import neu.cs6650.server.DistributedFileServerImpl;
+import neu.cs6650.utils.Constants;
+import neu.cs6650.utils.ContentChunker;
+import neu.cs6650.utils.Response;
+import neu.cs6650.utils.StubCache;
+
+/**
+ * The servers of the first replica group in Constants.SHARD_GROUPS, five by default, started in
+ * the benchmark process with a registry each on the loopback interface. Calls go through RMI as
+ * they do from a client, only without leaving the host.
+ *
+ * <p>Servers keep their data in directories named by their port under the working directory. The
+ * cluster marks the directories it creates and only ever removes marked ones, left over by a
+ * benchmark that failed before its teardown. It does not start over other directories, so that
+ * running a benchmark from the directory of a real server can not wipe its data.
+ */
+public class Cluster {
+
+  private static Logger logger = Logger.getLogger(Cluster.class.getName());
+  private static final String MARKER = ".benchmark";
+  private final int[] ports = Constants.SHARD_GROUPS[0];
+  private final List<DistributedFileServerImpl> servers = new ArrayList<>();
+  private final List<Registry> registries = new ArrayList<>();
+
+  private Cluster() {
+  }
+
+  /**
+   * Starts the servers and waits until they elected a leader.
+   */
+  public static Cluster start() throws Exception {
+    // The servers log every request at INFO, which would be most of what is measured
+    Logger.getLogger("").setLevel(Level.WARNING);
+    StubCache.setResponseTimeout(Constants.RMI_RESPONSE_TIMEOUT_MS);
+    Cluster cluster = new Cluster();
+    for (int port : cluster.ports) {
+      File dir = new File(String.valueOf(port));
+      if (dir.exists() && !new File(dir, MARKER).exists()) {
+        throw new IllegalStateException("Directory " + port + " exists, run the benchmarks from "
+            + "an empty directory");
+      }
+    }
+    cluster.removeData();
+    for (int port : cluster.ports) {
+      Registry registry = LocateRegistry.createRegistry(port);
+      DistributedFileServerImpl server = new DistributedFileServerImpl(port);
+      if (!new File(String.valueOf(port), MARKER).createNewFile()) {
+        throw new IllegalStateException("Unable to mark directory " + port);
+      }
+      registry.bind(Constants.SERVER_NAME, server);
+      cluster.registries.add(registry);
+      cluster.servers.add(server);
+    }
+    // The first write elects a leader
+    Response resp = cluster.upload(cluster.stub(cluster.ports[0]), "warm-up",
+        "warm-up".getBytes(StandardCharsets.UTF_8));
+    if (!resp.isOk()) {
+      throw new IllegalStateException("Cluster did not start: " + resp.getMessage());
+    }
+    return cluster;
+  }
+
+  public int[] ports() {
+    return this.ports;
+  }
+
+  /**
+   * @return the server object of the port, for benchmarks that run server code directly
+   */
+  public DistributedFileServerImpl server(int port) {
+    for (int i = 0; i < this.ports.length; i++) {
+      if (this.ports[i] == port) {
+        return this.servers.get(i);
+      }
+    }
+    throw new IllegalArgumentException("No server at port " + port);
+  }
+
+  /**
+   * @return a remote reference to the server of the port
+   */
+  public DistributedFileServer stub(int port) throws Exception {
+    return StubCache.lookup(Constants.IP, port, Constants.SERVER_NAME);
+  }
+
+  /**
+   * @return port of the leader as the first server knows it
+   */
+  public int leader() throws Exception {
+    int leader = this.stub(this.ports[0]).heartbeat().getLeaderPort();
+    return leader == 0 ? this.ports[0] : leader;
+  }
+
+  /**
+   * Waits until every server applied the writes the leader applied, so that reads of them can go
+   * to any server.
+   */
+  public void awaitApplied() throws Exception {
+    long slot = this.stub(this.leader()).heartbeat().getAppliedSlot();
+    long deadline = System.currentTimeMillis() + 10 * 1000L;
+    for (int port : this.ports) {
+      while (this.stub(port).heartbeat().getAppliedSlot() < slot) {
+        if (System.currentTimeMillis() > deadline) {
+          throw new IllegalStateException("Server at port " + port + " did not catch up");
+        }
+        Thread.sleep(10);
+      }
+    }
+  }
+
+  /**
+   * Uploads content the way the client does, only sending the chunks the server lacks.
+   */
+  public Response upload(DistributedFileServer server, String name, byte[] content)
+      throws Exception {
+    List<String> hashes = new ArrayList<>();
+    Map<String, byte[]> chunks = new HashMap<>();
+    try (InputStream in = new ByteArrayInputStream(content)) {
+      ContentChunker.split(in, (hash, chunk) -> {
+        hashes.add(hash);
+        chunks.put(hash, chunk);
+      });
+    }
+    for (String hash : server.missingChunks(hashes)) {
+      server.putBlock(hash, chunks.get(hash));
+    }
+    return server.commitChunks(name, hashes);
+  }
+
+  /**
+   * @return id of the file with the name on the server, -1 if there is none
+   */
+  public int idOf(DistributedFileServer server, String name) throws Exception {
+    for (Map.Entry<Integer, String> file : server.getAllFilesOnServer().entrySet()) {
+      if (file.getValue().equals(name)) {
+        return file.getKey();
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Downloads a file from the data port of the server into the buffer, which is overwritten as
+   * the file goes by.
+   *
+   * @return number of bytes read
+   */
+  public long download(int port, String fileId, ByteBuffer buffer) throws Exception {
+    Response resp = this.stub(port).openDownload(fileId);
+    if (!resp.isOk()) {
+      throw new IllegalStateException(resp.getMessage());
+    }
+    try (SocketChannel socket = SocketChannel.open(new InetSocketAddress(Constants.IP,
+        port + Constants.DATA_PORT_OFFSET))) {
+      ByteBuffer ticket = ByteBuffer.wrap(resp.getReturnValue().getBytes(
+          StandardCharsets.US_ASCII));
+      while (ticket.hasRemaining()) {
+        socket.write(ticket);
+      }
+      long read = 0;
+      while (read < resp.getFileSize()) {
+        ((Buffer) buffer).clear();
+        int n = socket.read(buffer);
+        if (n < 0) {
+          throw new IOException("Download ended after " + read + " bytes");
+        }
+        read += n;
+      }
+      return read;
+    }
+  }
+
+  /**
+   * Stops serving and removes the data of the servers.
+   */
+  public void stop() throws IOException {
+    for (DistributedFileServerImpl server : this.servers) {
+      UnicastRemoteObject.unexportObject(server, true);
+      server.shutdown();
+    }
+    for (Registry registry : this.registries) {
+      UnicastRemoteObject.unexportObject(registry, true);
+    }
+    for (int port : this.ports) {
+      StubCache.invalidate(Constants.IP, port, Constants.SERVER_NAME);
+    }
+    this.removeData();
+  }
+
+  private void removeData() {
+    for (int port : this.ports) {
+      File dir = new File(String.valueOf(port));
+      File marker = new File(dir, MARKER);
+      if (!marker.exists()) {
+        continue;
+      }
+      // The marker goes last, so that a directory only partly removed is still known as ours
+      try (Stream<Path> paths = Files.walk(dir.toPath())) {
+        paths.sorted(Comparator.reverseOrder()).map(Path::toFile)
+            .filter(file -> !file.equals(marker) && !file.equals(dir)).forEach(File::delete);
+        if (!marker.delete() || !dir.delete()) {
+          throw new IOException("directory not empty");
+        }
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Unable to remove {0}: {1}", new Object[]{dir, e.getMessage()});
+      }
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package neu.cs6650.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import neu.cs6650.server.DistributedFileServer;
+import neu.cs6650.utils.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and latency of the file operations of the client against a cluster of five servers,
+ * for files of different sizes. Writes go to the leader and downloads to any server, as routed by
+ * the load balancers. The number of client threads is set by the runner.
+ *
+ * <p>Every upload sends new random content, so that the chunk store never finds the chunks it is
+ * sent already. Deletes and renames each work on a file uploaded for them before the call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileOpsBenchmark {
+
+  // Files downloads are spread over
+  private static final int DOWNLOAD_FILES = 16;
+
+  @Param({"1024", "65536", "1048576"})
+  public int fileSize;
+
+  private Cluster cluster;
+  private DistributedFileServer writer;
+  private final List<String> downloadIds = new ArrayList<>();
+  private final AtomicInteger names = new AtomicInteger();
+
+  @Setup(Level.Trial)
+  public void startCluster() throws Exception {
+    this.cluster = Cluster.start();
+    this.writer = this.cluster.stub(this.cluster.leader());
+    for (int i = 0; i < DOWNLOAD_FILES; i++) {
+      String name = this.nextName();
+      this.check(this.cluster.upload(this.writer, name, this.randomContent()));
+      this.downloadIds.add(String.valueOf(this.cluster.idOf(this.writer, name)));
+    }
+    this.cluster.awaitApplied();
+  }
+
+  @TearDown(Level.Trial)
+  public void stopCluster() throws Exception {
+    this.cluster.stop();
+  }
+
+  /**
+   * Content for the next upload of a thread.
+   */
+  @State(Scope.Thread)
+  public static class Upload {
+
+    private String name;
+    private byte[] content;
+
+    @Setup(Level.Invocation)
+    public void prepare(FileOpsBenchmark bench) {
+      this.name = bench.nextName();
+      this.content = bench.randomContent();
+    }
+  }
+
+  /**
+   * A file uploaded for the next delete or rename of a thread.
+   */
+  @State(Scope.Thread)
+  public static class Existing {
+
+    private String fileId;
+    private String newName;
+
+    @Setup(Level.Invocation)
+    public void prepare(FileOpsBenchmark bench) throws Exception {
+      String name = bench.nextName();
+      bench.check(bench.cluster.upload(bench.writer, name, bench.randomContent()));
+      this.fileId = String.valueOf(bench.cluster.idOf(bench.writer, name));
+      this.newName = bench.nextName();
+    }
+  }
+
+  /**
+   * Buffer a thread downloads into.
+   */
+  @State(Scope.Thread)
+  public static class Download {
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 << 10);
+  }
+
+  @Benchmark
+  public Response upload(Upload upload) throws Exception {
+    return this.check(this.cluster.upload(this.writer, upload.name, upload.content));
+  }
+
+  @Benchmark
+  public long download(Download download) throws Exception {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int[] ports = this.cluster.ports();
+    return this.cluster.download(ports[random.nextInt(ports.length)],
+        this.downloadIds.get(random.nextInt(this.downloadIds.size())), download.buffer);
+  }
+
+  @Benchmark
+  public Response delete(Existing existing) throws Exception {
+    return this.check(this.writer.deleteFile(existing.fileId));
+  }
+
+  @Benchmark
+  public Response rename(Existing existing) throws Exception {
+    return this.check(this.writer.renameFile(existing.fileId, existing.newName, 0L));
+  }
+
+  private String nextName() {
+    return "bench-" + this.names.incrementAndGet();
+  }
+
+  private byte[] randomContent() {
+    byte[] content = new byte[this.fileSize];
+    ThreadLocalRandom.current().nextBytes(content);
+    return content;
+  }
+
+  /**
+   * Fails the benchmark on a failed operation rather than measuring how fast requests fail.
+   */
+  private Response check(Response resp) {
+    if (!resp.isOk()) {
+      throw new IllegalStateException(resp.getMessage());
+    }
+    return resp;
+  }
+}
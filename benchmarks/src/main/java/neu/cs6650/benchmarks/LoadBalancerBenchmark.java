@@ -0,0 +1,98 @@
+package neu.cs6650.benchmarks;
+
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.TimeUnit;
+import neu.cs6650.loadbalancer.ILoadBalancer;
+import neu.cs6650.loadbalancer.LeastLoadedLoadBalancer;
+import neu.cs6650.loadbalancer.RandomLoadBalancer;
+import neu.cs6650.loadbalancer.RoundRobinLoadBalancer;
+import neu.cs6650.utils.Constants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of handing out a server, for every load balancer. The balancer is called in the process,
+ * which measures picking from its membership view alone, and through its registry as clients call
+ * it. Its view is kept by heartbeats to a cluster of five servers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoadBalancerBenchmark {
+
+  // Away from the default port, so that a load balancer running on the host is not in the way
+  private static final int REGISTRY_PORT = Constants.DEFAULT_LB_PORT + 100;
+
+  @Param({"RoundRobin", "Random", "LeastLoaded"})
+  public String balancer;
+
+  private Cluster cluster;
+  private ILoadBalancer local;
+  private ILoadBalancer remote;
+  private Registry registry;
+
+  @Setup(Level.Trial)
+  public void start() throws Exception {
+    this.cluster = Cluster.start();
+    switch (this.balancer) {
+      case "RoundRobin":
+        this.local = new RoundRobinLoadBalancer();
+        break;
+      case "Random":
+        this.local = new RandomLoadBalancer();
+        break;
+      default:
+        this.local = new LeastLoadedLoadBalancer();
+    }
+    this.registry = LocateRegistry.createRegistry(REGISTRY_PORT);
+    this.registry.bind(this.balancer, this.local);
+    this.remote = (ILoadBalancer) LocateRegistry.getRegistry(Constants.IP, REGISTRY_PORT)
+        .lookup(this.balancer);
+    // Until the first heartbeats are answered there is no server to hand out
+    long deadline = System.currentTimeMillis() + Constants.MEMBER_TIMEOUT_MS * 5;
+    while (true) {
+      try {
+        this.local.getServerPort();
+        break;
+      } catch (IllegalStateException e) {
+        if (System.currentTimeMillis() > deadline) {
+          throw e;
+        }
+        Thread.sleep(Constants.HEARTBEAT_INTERVAL_MS);
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void stop() throws Exception {
+    UnicastRemoteObject.unexportObject(this.local, true);
+    UnicastRemoteObject.unexportObject(this.registry, true);
+    this.cluster.stop();
+  }
+
+  @Benchmark
+  public int getServerPortLocal() throws Exception {
+    return this.local.getServerPort();
+  }
+
+  @Benchmark
+  public int getServerPortRemote() throws Exception {
+    return this.remote.getServerPort();
+  }
+}
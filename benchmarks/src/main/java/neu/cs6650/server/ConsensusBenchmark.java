@@ -0,0 +1,55 @@
+package neu.cs6650.server;
+
+import java.util.concurrent.TimeUnit;
+import neu.cs6650.benchmarks.Cluster;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Prepare rounds of Paxos run by one server against the four others of a five server cluster,
+ * each with a new ballot, as in an election. In the server package to reach the round, which
+ * clients never run themselves. Rounds run from several threads preempt each other and fail.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class ConsensusBenchmark {
+
+  private Cluster cluster;
+  private DistributedFileServerImpl proposer;
+
+  @Setup(Level.Trial)
+  public void startCluster() throws Exception {
+    this.cluster = Cluster.start();
+    this.proposer = this.cluster.server(this.cluster.ports()[0]);
+  }
+
+  @TearDown(Level.Trial)
+  public void stopCluster() throws Exception {
+    this.cluster.stop();
+  }
+
+  @Benchmark
+  public long sendPrepare() {
+    long ballot = this.proposer.sendPrepare();
+    if (ballot == 0) {
+      throw new IllegalStateException("Prepare round did not reach a majority");
+    }
+    return ballot;
+  }
+}
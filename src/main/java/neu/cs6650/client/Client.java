@@ -5,34 +5,86 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.rmi.Naming;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import neu.cs6650.loadbalancer.ILoadBalancer;
 import neu.cs6650.server.DistributedFileServer;
+import neu.cs6650.server.OverloadedException;
 import neu.cs6650.utils.Constants;
+import neu.cs6650.utils.ContentChunker;
 import neu.cs6650.utils.Response;
+import neu.cs6650.utils.ShardRing;
+import neu.cs6650.utils.Status;
+import neu.cs6650.utils.StubCache;
 
 public class Client implements IClient {
 
-  private static DistributedFileServer fileServer;
   private ILoadBalancer loadBalancer;
 
   private String address;
+  // Name the load balancer is bound under, which tells the kind of load balancer apart
+  private final String loadBalancerName;
+  // Files are sharded across replica groups. Reads of a group go to an up to date replica and
+  // writes to its leader, as routed by the load balancer.
+  private final ShardRing ring = new ShardRing(Constants.SHARD_GROUPS,
+      Constants.DRAINING_SHARD_GROUPS, Constants.SHARD_VIRTUAL_NODES);
+  private final DistributedFileServer[] readServers = new DistributedFileServer[ring.size()];
+  private final int[] readPorts = new int[ring.size()];
+  private final DistributedFileServer[] writeServers = new DistributedFileServer[ring.size()];
+  private final int[] writePorts = new int[ring.size()];
+  private long routesExpiry;
+  // Port of the server the current command was sent to
   private int port;
   private Map<Integer, String> fileList;
   private Scanner reader;
+  // A listing cache for every group, as every group leases its own listing
+  private final FileCache[] caches = new FileCache[ring.size()];
+  // Whether downloads are answered from and kept in the content cache
+  private final boolean cacheContent;
   private static Logger logger = Logger.getLogger(Client.class.getName());
 
   public Client(String address) {
+    this(address, true);
+  }
+
+  public Client(String address, boolean cacheContent) {
+    this(address, cacheContent, Constants.RR_LOAD_BALANCER);
+  }
+
+  /**
+   * @param loadBalancerName name the load balancer to connect to is bound under, such as
+   *     {@link Constants#LEAST_LOADED_LOAD_BALANCER}
+   */
+  public Client(String address, boolean cacheContent, String loadBalancerName) {
     this.address = address;
+    this.loadBalancerName = loadBalancerName;
+    this.cacheContent = cacheContent;
     this.reader = new Scanner(new InputStreamReader(System.in));
+    for (int group = 0; group < this.caches.length; group++) {
+      this.caches[group] = new FileCache(new File(Constants.CLIENT_CACHE_DIR));
+    }
   }
 
   public static void main(String[] args) {
@@ -42,7 +94,8 @@ public class Client implements IClient {
     } else {
       ip = args[0];
     }
-    Client client = new Client(ip);
+    String loadBalancerName = args.length < 2 ? Constants.RR_LOAD_BALANCER : args[1];
+    Client client = new Client(ip, true, loadBalancerName);
     client.start();
 
   }
@@ -52,14 +105,7 @@ public class Client implements IClient {
 
     while (true) {
       try {
-        Registry registry = LocateRegistry.getRegistry(Constants.DEFAULT_LB_PORT);
-        this.loadBalancer = (ILoadBalancer) registry.lookup(Constants.RR_LOAD_BALANCER);
-
-        this.port = this.loadBalancer.getServerPort();
-        fileServer = (DistributedFileServer) Naming
-            .lookup("//" + address + ":" + port + "/" + Constants.SERVER_NAME);
-        logger.log(Level.INFO, "Remote connection established. Host: {0} Port: {1}",
-            new Object[]{address, port});
+        this.connect();
 
         int command = 0;
 
@@ -73,6 +119,9 @@ public class Client implements IClient {
             try {
               String response = this.executeCommand(command);
               logger.log(Level.INFO, "Response: {0}", response);
+            } catch (RemoteException e) {
+              this.reportFailure();
+              throw e;
             } catch (FileNotFoundException e) {
               logger.log(Level.SEVERE, "Could not find file. {0}", e.getMessage());
             } catch (IOException e) {
@@ -90,14 +139,238 @@ public class Client implements IClient {
         }
 
         if (command == Constants.EXIT) {
+          this.close();
           break;
         }
       } catch (Exception e) {
+        StubCache.invalidate(Constants.IP, Constants.DEFAULT_LB_PORT, this.loadBalancerName);
         logger.log(Level.SEVERE, e.getMessage());
       }
     }
   }
 
+  @Override
+  public void connect() throws RemoteException, NotBoundException {
+    this.loadBalancer = StubCache.lookup(Constants.IP, Constants.DEFAULT_LB_PORT,
+        this.loadBalancerName);
+    this.routesExpiry = 0;
+    this.route();
+    logger.log(Level.INFO, "Remote connection established. Host: {0} Read ports: {1} "
+        + "Write ports: {2}", new Object[]{address, Arrays.toString(readPorts),
+        Arrays.toString(writePorts)});
+  }
+
+  @Override
+  public void reportFailure() throws RemoteException {
+    // Let the load balancer know so that it hands out another server
+    StubCache.invalidate(address, port, Constants.SERVER_NAME);
+    this.routesExpiry = 0;
+    this.loadBalancer.reportFailure(port);
+  }
+
+  @Override
+  public void close() {
+    Arrays.stream(this.caches).forEach(FileCache::close);
+  }
+
+  @Override
+  public Map<Integer, String> listFiles() throws RemoteException {
+    this.route();
+    Map<Integer, String> files = new TreeMap<>();
+    for (int group = 0; group < this.ring.size(); group++) {
+      if (this.ring.ports(group).length > 0) {
+        files.putAll(this.caches[group].files(this.reader(group)));
+      }
+    }
+    return files;
+  }
+
+  @Override
+  public Response upload(String fileName, ContentSource content) throws IOException {
+    // Chunks the server already took are not sent again
+    return this.withRetries(() -> this.uploadOnce(fileName, content));
+  }
+
+  private Response uploadOnce(String fileName, ContentSource content) throws IOException {
+    this.route();
+    DistributedFileServer fileServer = this.writer(this.ring.groupOf(fileName));
+    List<String> hashes = new ArrayList<>();
+    try (InputStream in = content.open()) {
+      ContentChunker.split(in, (hash, chunk) -> hashes.add(hash));
+    }
+    Set<String> missing = new HashSet<>(fileServer.missingChunks(hashes));
+    logger.log(Level.INFO, "Sending {0} of {1} chunks", new Object[]{missing.size(),
+        hashes.size()});
+    if (!missing.isEmpty()) {
+      // Read the content again rather than holding all of it in memory
+      try (InputStream in = content.open()) {
+        ContentChunker.split(in, (hash, chunk) -> {
+          if (missing.remove(hash)) {
+            fileServer.putBlock(hash, chunk);
+          }
+        });
+      }
+    }
+    return fileServer.commitChunks(fileName, hashes);
+  }
+
+  @Override
+  public Response download(int fileId, File file) throws IOException {
+    this.route();
+    int group = this.groupOfFile(fileId);
+    File cached = this.cacheContent ? this.caches[group].content(this.reader(group), fileId)
+        : null;
+    if (cached != null) {
+      Files.copy(cached.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      return new Response(Status.OK, "Read file from cache.");
+    }
+    DistributedFileServer server = this.reader(group);
+    Response resp = this.withRetries(() -> server.openDownload(String.valueOf(fileId)));
+    if (resp.isOk()) {
+      this.saveDownloadedFile(file, group, resp.getReturnValue(), resp.getFileSize());
+      if (this.cacheContent) {
+        this.caches[group].store(fileId, file);
+      }
+    }
+    return resp;
+  }
+
+  @Override
+  public Response delete(int fileId) throws RemoteException {
+    this.route();
+    DistributedFileServer server = this.writer(this.groupOfFile(fileId));
+    return this.withRetries(() -> server.deleteFile(String.valueOf(fileId)));
+  }
+
+  @Override
+  public Response rename(int fileId, String newFileName, long duration)
+      throws RemoteException {
+    this.route();
+    DistributedFileServer server = this.writer(this.groupOfFile(fileId));
+    return this.withRetries(() -> server.renameFile(String.valueOf(fileId), newFileName,
+        duration));
+  }
+
+  /**
+   * A request to a server that may be turned away when the server is too busy.
+   */
+  private interface Request<E extends Exception> {
+
+    Response send() throws E;
+  }
+
+  /**
+   * Method to send a request again while the server is too busy to take it, up to
+   * Constants.RETRY_COUNT times. The client waits as long as the server asked it to before every
+   * retry, and up to half as long again at random, so that clients turned away together do not
+   * all come back together.
+   *
+   * @return response to the last try, OVERLOADED if the server never took the request
+   */
+  private <E extends Exception> Response withRetries(Request<E> request) throws E {
+    for (int retries = 0; ; retries++) {
+      Response resp;
+      try {
+        resp = request.send();
+      } catch (OverloadedException e) {
+        resp = new Response(Status.OVERLOADED, e.getMessage());
+        resp.setRetryAfterMs(e.getRetryAfterMs());
+      }
+      if (resp.getStatus() != Status.OVERLOADED || retries == Constants.RETRY_COUNT) {
+        return resp;
+      }
+      long retryAfter = Math.max(resp.getRetryAfterMs(), Constants.ADMISSION_MIN_RETRY_MS);
+      try {
+        Thread.sleep(retryAfter + ThreadLocalRandom.current().nextLong(retryAfter / 2 + 1));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return resp;
+      }
+    }
+  }
+
+  /**
+   * Method to read a chunk of a download through RMI, trying again like withRetries while the
+   * server is too busy to read it.
+   */
+  private byte[] readChunk(DistributedFileServer server, String sessionId, long offset)
+      throws IOException {
+    for (int retries = 0; ; retries++) {
+      try {
+        return server.getChunk(sessionId, offset);
+      } catch (OverloadedException e) {
+        if (retries == Constants.RETRY_COUNT) {
+          throw e;
+        }
+        long retryAfter = Math.max(e.getRetryAfterMs(), Constants.ADMISSION_MIN_RETRY_MS);
+        try {
+          Thread.sleep(retryAfter + ThreadLocalRandom.current().nextLong(retryAfter / 2 + 1));
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * Method to ask the load balancer for the servers to read from and write to in every replica
+   * group. The servers are kept for Constants.ROUTE_CACHE_MS, or until one of them fails.
+   */
+  private void route() throws RemoteException {
+    long now = System.currentTimeMillis();
+    if (now < this.routesExpiry) {
+      return;
+    }
+    for (int group = 0; group < this.ring.size(); group++) {
+      if (this.ring.ports(group).length == 0) {
+        continue;
+      }
+      int readPort = this.loadBalancer.getReadServerPort(group);
+      int writePort = this.loadBalancer.getWriteServerPort(group);
+      try {
+        this.readServers[group] = StubCache.lookup(address, readPort, Constants.SERVER_NAME);
+        this.writeServers[group] = StubCache.lookup(address, writePort, Constants.SERVER_NAME);
+      } catch (NotBoundException e) {
+        throw new RemoteException("No file server bound at " + address, e);
+      }
+      if (readPort != this.readPorts[group]) {
+        // The lease was granted by the previous server
+        this.caches[group].revalidate();
+      }
+      this.readPorts[group] = readPort;
+      this.writePorts[group] = writePort;
+    }
+    this.routesExpiry = now + Constants.ROUTE_CACHE_MS;
+  }
+
+  /**
+   * @return the server to read files of the group from
+   */
+  private DistributedFileServer reader(int group) {
+    this.port = this.readPorts[group];
+    return this.readServers[group];
+  }
+
+  /**
+   * @return the server to write files of the group to
+   */
+  private DistributedFileServer writer(int group) {
+    this.port = this.writePorts[group];
+    return this.writeServers[group];
+  }
+
+  /**
+   * @return the group that holds the file with the id
+   */
+  private int groupOfFile(int fileId) {
+    int group = this.ring.groupOfFile(fileId);
+    if (group < 0 || this.ring.ports(group).length == 0) {
+      throw new IllegalArgumentException("No file with id " + fileId);
+    }
+    return group;
+  }
+
   /**
    * Method to fetch the menu options.
    *
@@ -123,42 +396,45 @@ public class Client implements IClient {
     Response resp;
     switch (command) {
       case 1: {
-        this.fileList = fileServer.getAllFilesOnServer();
+        this.fileList = this.listFiles();
         System.out.println(fileList);
         return "File list fetched successfully.";
       }
       case 2: {
         System.out.println("Enter path of the file to be uploaded: ");
         String filePath = this.reader.nextLine().trim();
-        byte[] file = this.getFileFromUser(filePath);
-        resp = fileServer.uploadFile(file, this.getFileNameFromPath(filePath));
-        return resp.getMessage();
+        resp = this.uploadFileFromUser(filePath);
+        return this.describe(resp);
       }
 
       case 3: {
         System.out.println("Enter fileId: ");
-        String fileId = this.reader.nextLine().trim();
-        resp = fileServer.downloadFile(fileId);
-        String savedPath = saveDownloadedFile(fileId, resp.getDownloadedFile());
-        return resp.getMessage() + "Saved file at: " + savedPath;
+        int id = Integer.parseInt(this.reader.nextLine().trim());
+        this.fileList = this.listFiles();
+        File file = this.askSavePath(id);
+        resp = this.download(id, file);
+        if (!resp.isOk()) {
+          return this.describe(resp);
+        }
+        return resp.getMessage() + " Saved file at: " + file.getPath();
       }
 
       case 4: {
         System.out.println("Enter fileId: ");
-        String fileId = this.reader.nextLine();
-        resp = fileServer.deleteFile(fileId);
-        return resp.getMessage();
+        int fileId = Integer.parseInt(this.reader.nextLine().trim());
+        resp = this.delete(fileId);
+        return this.describe(resp);
       }
 
       case 5: {
         System.out.println("Enter fileId: ");
-        String fileId = this.reader.nextLine();
+        int fileId = Integer.parseInt(this.reader.nextLine().trim());
         System.out.println("Enter new name of file: ");
         String newFileName = this.reader.nextLine();
         System.out.println("Enter duration: ");
         long duration = this.reader.nextLong();
-        resp = fileServer.renameFile(fileId, newFileName, duration);
-        return resp.getMessage();
+        resp = this.rename(fileId, newFileName, duration);
+        return this.describe(resp);
       }
 
       case 6: {
@@ -171,6 +447,32 @@ public class Client implements IClient {
     }
   }
 
+  /**
+   * Method to describe the outcome of a request.
+   *
+   * @param resp response of the server.
+   * @return the message of the server with the status of the request.
+   */
+  private String describe(Response resp) {
+    if (resp.getStatus() == Status.UNAVAILABLE) {
+      // The leader may have changed, ask for the routes again
+      this.routesExpiry = 0;
+    }
+    switch (resp.getStatus()) {
+      case OK:
+        return resp.getMessage() + " (version " + resp.getVersion() + ", "
+            + resp.getElapsedMicros() / 1000 + " ms)";
+      case LOCKED:
+        return resp.getMessage() + " The file is in use.";
+      case UNAVAILABLE:
+        return resp.getMessage() + " The servers could not agree on the change, try again.";
+      case OVERLOADED:
+        return resp.getMessage() + " The servers are busy, try again later.";
+      default:
+        return resp.getMessage();
+    }
+  }
+
   private String getFileNameFromPath(String path) {
     if (path.lastIndexOf('/') != -1) {
       return path.substring(path.lastIndexOf('/') + 1);
@@ -180,51 +482,95 @@ public class Client implements IClient {
   }
 
   /**
-   * Method to save a downloaded file.
+   * Method to ask the user where to save a file.
    *
-   * @param fileId         id of the file.
-   * @param downloadedFile downloaded file as a byte[] array.
-   * @return returns download path of the saved file.
+   * @param fileId id of the file.
+   * @return the file to save to, named like the file on the server.
    */
-  private String saveDownloadedFile(String fileId, byte[] downloadedFile)
-      throws FileNotFoundException, IOException {
-    String serverFilePath = this.fileList.get(Integer.parseInt(fileId));
+  private File askSavePath(int fileId) {
+    String serverFilePath = this.fileList.get(fileId);
+    if (serverFilePath == null) {
+      throw new IllegalArgumentException("No file with id " + fileId);
+    }
     String fileName = this.getFileNameFromPath(serverFilePath);
     System.out.println("Enter path to save file: ");
     String savePath = this.reader.nextLine();
 
-    savePath += savePath.lastIndexOf('/') < (savePath.length() - 1) ? (savePath + "/") : "";
+    savePath += savePath.lastIndexOf('/') < (savePath.length() - 1) ? "/" : "";
     savePath += fileName;
-
-    File file = new File(savePath);
-    FileOutputStream fos;
-    fos = new FileOutputStream(file);
-    fos.write(downloadedFile);
-
-    return savePath;
+    return new File(savePath);
   }
 
   /**
-   * Method to fetch file to be uploaded to the server from a user.
+   * Method to save a downloaded file. The file is read from the data port of the server, or chunk
+   * by chunk through RMI if the data port can not be reached or is too busy.
    *
-   * @return file to be uploaded as a byte array.
+   * @param file      to save to.
+   * @param group     replica group of the file.
+   * @param sessionId id of the download session opened on the server.
+   * @param fileSize  size of the file.
    */
-  private byte[] getFileFromUser(String filePath) throws FileNotFoundException {
-    File file = new File(filePath);
-    FileInputStream fin = null;
-    // create FileInputStream object
-    fin = new FileInputStream(file);
-    // close the streams using close method
-    byte[] buffer = new byte[(int) file.length()];
+  private void saveDownloadedFile(File file, int group, String sessionId, long fileSize)
+      throws FileNotFoundException, IOException {
+    DistributedFileServer server = this.reader(group);
     try {
-      if (fin != null) {
-        fin.read(buffer);
-        fin.close();
+      this.transferFile(file, this.port, sessionId, fileSize);
+      return;
+    } catch (ConnectException e) {
+      logger.log(Level.INFO, "Data port unreachable, downloading through RMI");
+    } catch (IOException e) {
+      // The server keeps the session until the file was sent in full
+      logger.log(Level.INFO, "Data port transfer failed, downloading through RMI: {0}",
+          e.getMessage());
+    }
+    try (FileOutputStream fos = new FileOutputStream(file)) {
+      long offset = 0;
+      byte[] chunk;
+      while ((chunk = this.readChunk(server, sessionId, offset)).length > 0) {
+        fos.write(chunk);
+        offset += chunk.length;
       }
-    } catch (IOException ioe) {
-      System.out.println("Error while closing stream: " + ioe);
+    } finally {
+      server.closeDownload(sessionId);
     }
-    return buffer;
   }
-} 
 
+  /**
+   * Reads a file from the data port of the server at the port straight into the file on disk.
+   */
+  private void transferFile(File file, int port, String sessionId, long fileSize)
+      throws IOException {
+    try (SocketChannel socket = SocketChannel.open(new InetSocketAddress(this.address,
+        port + Constants.DATA_PORT_OFFSET));
+        FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer ticket = ByteBuffer.wrap(sessionId.getBytes(StandardCharsets.US_ASCII));
+      while (ticket.hasRemaining()) {
+        socket.write(ticket);
+      }
+      long position = 0;
+      while (position < fileSize) {
+        long read = out.transferFrom(socket, position, fileSize - position);
+        if (read <= 0 && position == 0) {
+          // The server closes connections it has no data thread for, RMI is tried instead
+          throw new ConnectException("Data port closed the connection");
+        }
+        if (read <= 0) {
+          throw new IOException("Download ended after " + position + " of " + fileSize
+              + " bytes");
+        }
+        position += read;
+      }
+    }
+  }
+
+  /**
+   * Method to upload a file given by the user to the server.
+   *
+   * @return response of the server.
+   */
+  private Response uploadFileFromUser(String filePath) throws IOException {
+    File file = new File(filePath);
+    return this.upload(this.getFileNameFromPath(filePath), () -> new FileInputStream(file));
+  }
+}
@@ -0,0 +1,185 @@
+package neu.cs6650.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import neu.cs6650.server.DistributedFileServer;
+import neu.cs6650.utils.Constants;
+import neu.cs6650.utils.FileListing;
+import neu.cs6650.utils.InvalidationListener;
+
+/**
+ * Client side cache of the file listing and of downloaded content. The listing is answered
+ * locally while the lease granted by the server lasts, the server sends an invalidation for every
+ * file that changes meanwhile. After the lease, the listing is revalidated with its version and
+ * the server only sends the files again if they changed.
+ *
+ * <p>Downloaded content is kept on disk under its hash. A file id keeps its content for as long
+ * as it exists, so content found in the cache for an id in a current listing never has to be
+ * downloaded again. Content is only served after the listing was checked the same way, so that a
+ * file deleted meanwhile is not read from the cache.
+ */
+class FileCache implements InvalidationListener {
+
+  private static Logger logger = Logger.getLogger(FileCache.class.getName());
+
+  private final File contentDir;
+  private final boolean exported;
+  private long version = -1;
+  private Map<Integer, String> files = new HashMap<>();
+  private Map<Integer, String> contents = new HashMap<>();
+  private long leaseExpiry;
+  // Counts invalidations, a lease is only taken if none arrived while the listing was fetched
+  private long invalidations;
+
+  FileCache(File contentDir) {
+    this.contentDir = contentDir;
+    if (!contentDir.isDirectory() && !contentDir.mkdirs()) {
+      logger.log(Level.WARNING, "Unable to create cache directory {0}", contentDir);
+    }
+    boolean exported = false;
+    try {
+      UnicastRemoteObject.exportObject(this, 0);
+      exported = true;
+    } catch (RemoteException e) {
+      // Without invalidations there is no lease, the listing is revalidated on every use
+      logger.log(Level.WARNING, "Unable to export cache listener: {0}", e.getMessage());
+    }
+    this.exported = exported;
+  }
+
+  /**
+   * @return the files on the server by id, from the cache while the lease lasts
+   */
+  Map<Integer, String> files(DistributedFileServer server) throws RemoteException {
+    long requested = System.currentTimeMillis();
+    long knownVersion;
+    long invalidated;
+    synchronized (this) {
+      if (requested < this.leaseExpiry) {
+        return new HashMap<>(this.files);
+      }
+      knownVersion = this.version;
+      invalidated = this.invalidations;
+    }
+    FileListing listing = server.getFileListing(knownVersion, this.exported ? this : null);
+    synchronized (this) {
+      if (!listing.isNotModified()) {
+        this.files = new HashMap<>(listing.getFiles());
+        this.contents = new HashMap<>(listing.getContents());
+      }
+      this.version = listing.getVersion();
+      // Counted from the request, the lease on the server started after it
+      this.leaseExpiry = invalidated == this.invalidations
+          ? requested + listing.getLeaseMillis() : 0;
+      logger.log(Level.FINE, "Listing at version {0} {1}", new Object[]{this.version,
+          listing.isNotModified() ? "not modified" : "fetched"});
+      return new HashMap<>(this.files);
+    }
+  }
+
+  /**
+   * @return the cached content of the file, null if it has to be downloaded
+   */
+  File content(DistributedFileServer server, int fileId) throws RemoteException {
+    // Answered locally while the lease lasts, revalidated with the server after it
+    this.files(server);
+    synchronized (this) {
+      return this.cachedContent(fileId);
+    }
+  }
+
+  private File cachedContent(int fileId) {
+    String content = this.contents.get(fileId);
+    if (content == null) {
+      return null;
+    }
+    File file = new File(this.contentDir, content);
+    if (!file.isFile()) {
+      return null;
+    }
+    // Eviction goes by last use
+    file.setLastModified(System.currentTimeMillis());
+    return file;
+  }
+
+  /**
+   * Keeps a copy of a downloaded file, evicting the least recently used content beyond
+   * Constants.CLIENT_CACHE_BYTES.
+   */
+  void store(int fileId, File downloaded) {
+    String content;
+    synchronized (this) {
+      content = this.contents.get(fileId);
+    }
+    if (content == null || downloaded.length() > Constants.CLIENT_CACHE_BYTES) {
+      return;
+    }
+    try {
+      File tmp = File.createTempFile(content, ".tmp", this.contentDir);
+      Files.copy(downloaded.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      Files.move(tmp.toPath(), new File(this.contentDir, content).toPath(),
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Unable to cache {0}: {1}", new Object[]{content,
+          e.getMessage()});
+      return;
+    }
+    File[] cached = this.contentDir.listFiles();
+    if (cached == null) {
+      return;
+    }
+    Arrays.sort(cached, Comparator.comparingLong(File::lastModified).reversed());
+    long total = 0;
+    for (File file : cached) {
+      total += file.length();
+      if (total > Constants.CLIENT_CACHE_BYTES && !file.delete()) {
+        logger.log(Level.WARNING, "Unable to evict {0}", file);
+      }
+    }
+  }
+
+  /**
+   * Drops the lease, used when the client moves to another server which holds no lease for it.
+   */
+  synchronized void revalidate() {
+    this.leaseExpiry = 0;
+  }
+
+  /**
+   * Stops receiving invalidations, so that the client can exit.
+   */
+  void close() {
+    if (this.exported) {
+      try {
+        UnicastRemoteObject.unexportObject(this, true);
+      } catch (NoSuchObjectException e) {
+        logger.log(Level.FINE, "Cache listener was not exported");
+      }
+    }
+  }
+
+  @Override
+  public synchronized void invalidate(int fileId) {
+    this.files.remove(fileId);
+    this.contents.remove(fileId);
+    this.leaseExpiry = 0;
+    this.invalidations++;
+  }
+
+  @Override
+  public synchronized void invalidateAll() {
+    this.leaseExpiry = 0;
+    this.invalidations++;
+  }
+}
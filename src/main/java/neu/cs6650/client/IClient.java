@@ -1,12 +1,81 @@
 package neu.cs6650.client;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.Map;
+import neu.cs6650.utils.Response;
+
 /**
- * This class represents a command line client interface.
+ * This class represents a client of the file servers, driven from the command line or, one
+ * client per session, by the load generator.
  */
 public interface IClient {
 
+  /**
+   * Content to upload, opened once for every pass over it.
+   */
+  interface ContentSource {
+
+    InputStream open() throws IOException;
+  }
+
   /**
    * Method to start collecting user inputs.
    */
   void start();
+
+  /**
+   * Method to look up the load balancer and the servers it routes to.
+   */
+  void connect() throws RemoteException, NotBoundException;
+
+  /**
+   * Method to report the server of the last failed request to the load balancer, so that the
+   * next request is routed to another server.
+   */
+  void reportFailure() throws RemoteException;
+
+  /**
+   * Method to stop receiving cache invalidations from the servers.
+   */
+  void close();
+
+  /**
+   * Method to list the files of all servers.
+   *
+   * @return file names by id
+   */
+  Map<Integer, String> listFiles() throws RemoteException;
+
+  /**
+   * Method to upload content under a file name. The content is split into content defined chunks
+   * and only the chunks the server does not store yet are sent.
+   *
+   * @return response of the server
+   */
+  Response upload(String fileName, ContentSource content) throws IOException;
+
+  /**
+   * Method to download a file into a file on disk.
+   *
+   * @return response of the server
+   */
+  Response download(int fileId, File file) throws IOException;
+
+  /**
+   * Method to delete a file.
+   *
+   * @return response of the server
+   */
+  Response delete(int fileId) throws RemoteException;
+
+  /**
+   * Method to rename a file, holding it for the duration given in milliseconds.
+   *
+   * @return response of the server
+   */
+  Response rename(int fileId, String newFileName, long duration) throws RemoteException;
 }
@@ -0,0 +1,592 @@
+package neu.cs6650.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import neu.cs6650.utils.Constants;
+import neu.cs6650.utils.LatencyHistogram;
+import neu.cs6650.utils.Response;
+import neu.cs6650.utils.ShardRing;
+import neu.cs6650.utils.Status;
+
+/**
+ * Headless load generator, which drives many client sessions at once through the same code paths
+ * as the interactive client and reports latency percentiles for every operation.
+ *
+ * <p>Usage: java -cp client.jar neu.cs6650.client.LoadGenerator [option=value ...]
+ *
+ * <ul>
+ *   <li>balancer: name the load balancer is bound under, RoundRobinLoadBalancer,
+ *   LeastLoadedLoadBalancer or RandomLoadBalancer</li>
+ *   <li>sessions: concurrent client sessions, each on a thread and with a client of its own</li>
+ *   <li>duration, warmup: seconds measured, after seconds not measured</li>
+ *   <li>rate: requests per second of all sessions together, sent on a fixed schedule whether or
+ *   not earlier requests completed (open loop). 0 for sessions that send a request when the
+ *   previous one completed (closed loop)</li>
+ *   <li>think: milliseconds a closed loop session waits between requests</li>
+ *   <li>mix: weights of the operations, e.g. list:10,upload:20,download:50,delete:10,rename:10</li>
+ *   <li>sizes: weights of upload sizes, e.g. 4k:50,64k:35,1m:15</li>
+ *   <li>files, zipf: number of files the workload uses and the exponent of their Zipfian
+ *   popularity, 0 for uniform</li>
+ *   <li>preload: whether every file is uploaded once before the run</li>
+ *   <li>cache: whether downloads may be answered from the content cache of the client</li>
+ * </ul>
+ *
+ * <p>Response times are free of coordinated omission. In open loop they are measured from the
+ * time a request was scheduled rather than sent, so requests delayed behind a slow one count the
+ * delay. In closed loop, every latency above the interval a session sends an operation at, the
+ * think time plus the median service time of the operation in the session so far, also records the
+ * requests the session would have sent meanwhile. Those are only counted in the percentiles, the
+ * count and throughput of every table are those of the requests completed. Service times are
+ * measured from sending the request only. Requests that failed or were turned away are left out of
+ * both and reported in a table of their own, as their latency is that of the failure rather than
+ * of the operation.
+ */
+public class LoadGenerator {
+
+  private static Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+  // Held so that the level set on it is not lost, the client logs every request at INFO
+  private static final Logger clientLogger = Logger.getLogger(Client.class.getName());
+  private static final String KEY_PREFIX = "load-";
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+  private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+  static {
+    DEFAULTS.put("address", Constants.IP);
+    DEFAULTS.put("balancer", Constants.RR_LOAD_BALANCER);
+    DEFAULTS.put("sessions", "16");
+    DEFAULTS.put("duration", "30");
+    DEFAULTS.put("warmup", "5");
+    DEFAULTS.put("rate", "0");
+    DEFAULTS.put("think", "0");
+    DEFAULTS.put("mix", "list:10,upload:20,download:50,delete:10,rename:10");
+    DEFAULTS.put("sizes", "4k:50,64k:35,1m:15");
+    DEFAULTS.put("files", "1000");
+    DEFAULTS.put("zipf", "0.99");
+    DEFAULTS.put("preload", "true");
+    DEFAULTS.put("cache", "false");
+  }
+
+  private enum Action {
+    LIST, UPLOAD, DOWNLOAD, DELETE, RENAME
+  }
+
+  /**
+   * Values picked at random in proportion to their weights.
+   */
+  private static class Weighted<T> {
+
+    private final Object[] values;
+    private final double[] cumulative;
+
+    private Weighted(Map<T, Double> weights) {
+      this.values = weights.keySet().toArray();
+      this.cumulative = new double[this.values.length];
+      double total = 0;
+      int i = 0;
+      for (double weight : weights.values()) {
+        total += weight;
+        this.cumulative[i++] = total;
+      }
+      if (total <= 0) {
+        throw new IllegalArgumentException("Weights must not all be 0: " + weights);
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T pick(Random random) {
+      double point = random.nextDouble() * this.cumulative[this.cumulative.length - 1];
+      for (int i = 0; i < this.cumulative.length; i++) {
+        if (point < this.cumulative[i]) {
+          return (T) this.values[i];
+        }
+      }
+      return (T) this.values[this.values.length - 1];
+    }
+  }
+
+  /**
+   * Ranks picked with Zipfian probability, rank k with a probability in proportion to 1/k^s.
+   */
+  private static class Zipf {
+
+    private final double[] cumulative;
+
+    private Zipf(int size, double exponent) {
+      this.cumulative = new double[size];
+      double total = 0;
+      for (int rank = 0; rank < size; rank++) {
+        total += 1 / Math.pow(rank + 1, exponent);
+        this.cumulative[rank] = total;
+      }
+      for (int rank = 0; rank < size; rank++) {
+        this.cumulative[rank] /= total;
+      }
+    }
+
+    private int next(Random random) {
+      int rank = Arrays.binarySearch(this.cumulative, random.nextDouble());
+      return Math.min(rank >= 0 ? rank : -rank - 1, this.cumulative.length - 1);
+    }
+  }
+
+  /**
+   * The files of the workload by key, with their ids and names on the servers as of the last
+   * listing and the changes of the sessions since. A renamed file keeps its key, its name
+   * alternates between the key and an alias in the same replica group.
+   */
+  private static class Keys {
+
+    private final String[] keys;
+    private final String[] aliases;
+    private final Map<String, Integer> byName = new HashMap<>();
+    private final AtomicIntegerArray ids;
+    private final AtomicReferenceArray<String> names;
+
+    private Keys(int size) {
+      ShardRing ring = new ShardRing(Constants.SHARD_GROUPS,
+          Constants.DRAINING_SHARD_GROUPS, Constants.SHARD_VIRTUAL_NODES);
+      this.keys = new String[size];
+      this.aliases = new String[size];
+      this.ids = new AtomicIntegerArray(size);
+      this.names = new AtomicReferenceArray<>(size);
+      for (int key = 0; key < size; key++) {
+        this.keys[key] = KEY_PREFIX + key;
+        String alias = this.keys[key] + ".renamed";
+        // Renames across groups are refused
+        for (int i = 1; ring.groupOf(alias) != ring.groupOf(this.keys[key]); i++) {
+          alias = this.keys[key] + ".renamed" + i;
+        }
+        this.aliases[key] = alias;
+        this.byName.put(this.keys[key], key);
+        this.byName.put(alias, key);
+        this.ids.set(key, -1);
+        this.names.set(key, this.keys[key]);
+      }
+    }
+
+    private void update(Map<Integer, String> listing) {
+      boolean[] listed = new boolean[this.keys.length];
+      for (Map.Entry<Integer, String> file : listing.entrySet()) {
+        Integer key = this.byName.get(file.getValue());
+        if (key != null) {
+          listed[key] = true;
+          this.ids.set(key, file.getKey());
+          this.names.set(key, file.getValue());
+        }
+      }
+      for (int key = 0; key < listed.length; key++) {
+        if (!listed[key]) {
+          this.ids.set(key, -1);
+        }
+      }
+    }
+
+    private String renamed(int key) {
+      return this.names.get(key).equals(this.keys[key]) ? this.aliases[key] : this.keys[key];
+    }
+  }
+
+  /**
+   * Measurements of one session, added up with those of the others at the end.
+   */
+  private static class Recorder {
+
+    private final LatencyHistogram[] responseTimes = new LatencyHistogram[Action.values().length];
+    private final LatencyHistogram[] serviceTimes = new LatencyHistogram[Action.values().length];
+    // Response times of the requests that failed
+    private final LatencyHistogram[] failureTimes = new LatencyHistogram[Action.values().length];
+    private final long[] errors = new long[Action.values().length];
+    private final long[] skipped = new long[Action.values().length];
+    // Failed requests by status, the last for servers that could not be reached
+    private final long[] failures = new long[Status.values().length + 1];
+
+    private Recorder() {
+      for (int i = 0; i < this.responseTimes.length; i++) {
+        this.responseTimes[i] = new LatencyHistogram();
+        this.serviceTimes[i] = new LatencyHistogram();
+        this.failureTimes[i] = new LatencyHistogram();
+      }
+    }
+
+    private void add(Recorder other) {
+      for (int i = 0; i < this.responseTimes.length; i++) {
+        this.responseTimes[i].add(other.responseTimes[i]);
+        this.serviceTimes[i].add(other.serviceTimes[i]);
+        this.failureTimes[i].add(other.failureTimes[i]);
+        this.errors[i] += other.errors[i];
+        this.skipped[i] += other.skipped[i];
+      }
+      for (int i = 0; i < this.failures.length; i++) {
+        this.failures[i] += other.failures[i];
+      }
+    }
+  }
+
+  private final String address;
+  private final String loadBalancerName;
+  private final int sessions;
+  private final long durationNanos;
+  private final long warmupNanos;
+  private final double rate;
+  private final long thinkMillis;
+  private final Weighted<Action> mix;
+  private final Weighted<Integer> sizes;
+  private final Zipf popularity;
+  private final boolean preload;
+  private final boolean cacheContent;
+  private final Keys keys;
+  private final AtomicLong tickets = new AtomicLong();
+  // Set when all sessions are ready, after the preload
+  private volatile long startNanos;
+
+  private LoadGenerator(Map<String, String> options) {
+    this.address = options.get("address");
+    this.loadBalancerName = options.get("balancer");
+    this.sessions = Integer.parseInt(options.get("sessions"));
+    this.durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("duration")));
+    this.warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("warmup")));
+    this.rate = Double.parseDouble(options.get("rate"));
+    this.thinkMillis = Long.parseLong(options.get("think"));
+    Map<Action, Double> mix = new LinkedHashMap<>();
+    parseWeights(options.get("mix")).forEach((action, weight) ->
+        mix.put(Action.valueOf(action.toUpperCase()), weight));
+    this.mix = new Weighted<>(mix);
+    Map<Integer, Double> sizes = new LinkedHashMap<>();
+    parseWeights(options.get("sizes")).forEach((size, weight) -> sizes.put(parseSize(size),
+        weight));
+    this.sizes = new Weighted<>(sizes);
+    int files = Integer.parseInt(options.get("files"));
+    this.popularity = new Zipf(files, Double.parseDouble(options.get("zipf")));
+    this.preload = Boolean.parseBoolean(options.get("preload"));
+    this.cacheContent = Boolean.parseBoolean(options.get("cache"));
+    this.keys = new Keys(files);
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+    for (String arg : args) {
+      String[] option = arg.split("=", 2);
+      if (option.length != 2 || !DEFAULTS.containsKey(option[0])) {
+        System.err.println("Unknown option " + arg + ", options and their defaults: " + DEFAULTS);
+        System.exit(1);
+      }
+      options.put(option[0], option[1]);
+    }
+    clientLogger.setLevel(Level.WARNING);
+    logger.log(Level.INFO, "Generating load with {0}", options);
+    new LoadGenerator(options).run();
+    // Sessions leave RMI exports behind that would keep the process alive
+    System.exit(0);
+  }
+
+  private void run() throws Exception {
+    IClient lister = new Client(this.address, false, this.loadBalancerName);
+    lister.connect();
+    CyclicBarrier ready = new CyclicBarrier(this.sessions, () -> {
+      try {
+        this.keys.update(lister.listFiles());
+      } catch (RemoteException e) {
+        logger.log(Level.WARNING, "Unable to list files: {0}", e.getMessage());
+      }
+      this.startNanos = System.nanoTime();
+    });
+    // Ids of new files are learnt from listings, sessions only keep track of their own changes
+    ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor();
+    refresher.scheduleWithFixedDelay(() -> {
+      try {
+        this.keys.update(lister.listFiles());
+      } catch (RemoteException e) {
+        logger.log(Level.FINE, "Unable to list files: {0}", e.getMessage());
+      }
+    }, 1, 1, TimeUnit.SECONDS);
+
+    ExecutorService pool = Executors.newFixedThreadPool(this.sessions);
+    Future<?>[] results = new Future<?>[this.sessions];
+    for (int session = 0; session < this.sessions; session++) {
+      int current = session;
+      results[session] = pool.submit(() -> this.runSession(current, ready));
+    }
+    Recorder total = new Recorder();
+    for (Future<?> result : results) {
+      total.add((Recorder) result.get());
+    }
+    refresher.shutdownNow();
+    pool.shutdown();
+    lister.close();
+    this.report(total);
+  }
+
+  private Recorder runSession(int session, CyclicBarrier ready) throws Exception {
+    IClient client = new Client(this.address, this.cacheContent, this.loadBalancerName);
+    Random random = ThreadLocalRandom.current();
+    Recorder recorder = new Recorder();
+    File download = File.createTempFile("load-" + session + "-", ".bin");
+    download.deleteOnExit();
+    try {
+      client.connect();
+      if (this.preload) {
+        for (int key = session; key < this.keys.keys.length; key += this.sessions) {
+          int size = this.sizes.pick(random);
+          this.send(client, Action.UPLOAD, key, size, download, new Recorder());
+        }
+      }
+      ready.await();
+      // Service times of the session by action, warm-up included, for the interval it sends every
+      // action at
+      LatencyHistogram[] serviceTimes = new LatencyHistogram[Action.values().length];
+      for (int i = 0; i < serviceTimes.length; i++) {
+        serviceTimes[i] = new LatencyHistogram();
+      }
+      long interval = this.rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / this.rate) : 0;
+      long end = this.startNanos + this.warmupNanos + this.durationNanos;
+      while (true) {
+        Action action = this.mix.pick(random);
+        int key = this.popularity.next(random);
+        int size = this.sizes.pick(random);
+        long intended;
+        if (interval > 0) {
+          intended = this.startNanos + this.tickets.getAndIncrement() * interval;
+          for (long now = System.nanoTime(); now < intended; now = System.nanoTime()) {
+            LockSupport.parkNanos(intended - now);
+          }
+        } else {
+          intended = System.nanoTime();
+        }
+        if (intended >= end) {
+          break;
+        }
+        boolean measured = intended >= this.startNanos + this.warmupNanos;
+        long expectedInterval = TimeUnit.MILLISECONDS.toMicros(this.thinkMillis)
+            + serviceTimes[action.ordinal()].percentile(50);
+        long serviceTime = this.send(client, action, key, size, download,
+            measured ? recorder : new Recorder(), intended, expectedInterval);
+        if (serviceTime >= 0) {
+          serviceTimes[action.ordinal()].record(serviceTime);
+        }
+        if (this.thinkMillis > 0) {
+          Thread.sleep(this.thinkMillis);
+        }
+      }
+    } catch (BrokenBarrierException e) {
+      logger.log(Level.SEVERE, "Session {0} stopped, another one failed", session);
+    } catch (Exception e) {
+      ready.reset();
+      throw e;
+    } finally {
+      client.close();
+      if (!download.delete()) {
+        logger.log(Level.FINE, "Unable to delete {0}", download);
+      }
+    }
+    return recorder;
+  }
+
+  private void send(IClient client, Action action, int key, int size, File download,
+      Recorder recorder) {
+    this.send(client, action, key, size, download, recorder, System.nanoTime(), 0);
+  }
+
+  /**
+   * Sends one request and records its outcome.
+   *
+   * @param intended time the request was scheduled at in open loop
+   * @param expectedInterval microseconds between the requests of the session in closed loop
+   * @return service time of the request in microseconds, -1 if it was not sent
+   */
+  private long send(IClient client, Action action, int key, int size, File download,
+      Recorder recorder, long intended, long expectedInterval) {
+    int id = this.keys.ids.get(key);
+    if (action != Action.LIST && action != Action.UPLOAD && id < 0) {
+      // The file was not uploaded yet or was deleted
+      recorder.skipped[action.ordinal()]++;
+      return -1;
+    }
+    byte[] content = null;
+    if (action == Action.UPLOAD) {
+      // Content the servers have not seen, so that none of it is deduplicated
+      content = new byte[size];
+      ThreadLocalRandom.current().nextBytes(content);
+    }
+    long sent = System.nanoTime();
+    Status status;
+    try {
+      status = this.execute(client, action, key, id, content, download);
+    } catch (RemoteException e) {
+      status = null;
+      try {
+        client.reportFailure();
+      } catch (RemoteException reportFailed) {
+        logger.log(Level.FINE, "Unable to report failure: {0}", reportFailed.getMessage());
+      }
+    } catch (IOException e) {
+      status = Status.FAILED;
+    }
+    long done = System.nanoTime();
+    long serviceTime = TimeUnit.NANOSECONDS.toMicros(done - sent);
+    long responseTime = this.rate > 0 ? TimeUnit.NANOSECONDS.toMicros(done - intended)
+        : serviceTime;
+    if (status != Status.OK) {
+      recorder.errors[action.ordinal()]++;
+      recorder.failures[status == null ? Status.values().length : status.ordinal()]++;
+      recorder.failureTimes[action.ordinal()].record(responseTime);
+      return serviceTime;
+    }
+    recorder.serviceTimes[action.ordinal()].record(serviceTime);
+    if (this.rate > 0) {
+      recorder.responseTimes[action.ordinal()].record(responseTime);
+    } else {
+      recorder.responseTimes[action.ordinal()].recordCorrected(responseTime, expectedInterval);
+    }
+    return serviceTime;
+  }
+
+  private Status execute(IClient client, Action action, int key, int id, byte[] content,
+      File download) throws IOException {
+    Response resp;
+    switch (action) {
+      case LIST:
+        this.keys.update(client.listFiles());
+        return Status.OK;
+      case UPLOAD:
+        resp = client.upload(this.keys.names.get(key), () -> new ByteArrayInputStream(content));
+        break;
+      case DOWNLOAD:
+        resp = client.download(id, download);
+        break;
+      case DELETE:
+        resp = client.delete(id);
+        if (resp.isOk()) {
+          this.keys.ids.compareAndSet(key, id, -1);
+        }
+        break;
+      default:
+        String newName = this.keys.renamed(key);
+        resp = client.rename(id, newName, 0);
+        if (resp.isOk()) {
+          this.keys.names.set(key, newName);
+        }
+    }
+    return resp.getStatus();
+  }
+
+  private void report(Recorder total) {
+    double seconds = (double) this.durationNanos / TimeUnit.SECONDS.toNanos(1);
+    System.out.printf("%d sessions, %s, %.0f s measured after %d s warm-up%n", this.sessions,
+        this.rate > 0 ? String.format("open loop at %.0f requests/s", this.rate)
+            : "closed loop" + (this.thinkMillis > 0 ? " with " + this.thinkMillis
+                + " ms think time" : ""),
+        seconds, TimeUnit.NANOSECONDS.toSeconds(this.warmupNanos));
+    // Counted from the service times, the response times include the requests a closed loop
+    // session held up
+    this.printTable("Response time (ms)", total.responseTimes, total.serviceTimes, total.errors,
+        total.skipped, seconds);
+    this.printTable("Service time (ms)", total.serviceTimes, total.serviceTimes, total.errors,
+        total.skipped, seconds);
+    if (Arrays.stream(total.errors).sum() > 0) {
+      this.printTable("Response time of failed requests (ms)", total.failureTimes,
+          total.failureTimes, null, null, seconds);
+    }
+    StringBuilder failures = new StringBuilder();
+    for (int i = 0; i < total.failures.length; i++) {
+      if (total.failures[i] > 0) {
+        failures.append(i < Status.values().length ? Status.values()[i].name() : "UNREACHABLE")
+            .append('=').append(total.failures[i]).append(' ');
+      }
+    }
+    System.out.println("Failed requests: " + (failures.length() == 0 ? "none" : failures));
+  }
+
+  /**
+   * @param completed histograms of the requests completed, for the count and throughput
+   * @param errors failed requests by action, null to leave the errors and skipped columns out
+   */
+  private void printTable(String title, LatencyHistogram[] histograms,
+      LatencyHistogram[] completed, long[] errors, long[] skipped, double seconds) {
+    System.out.printf("%n%s%n%-9s %8s", title, "", "count");
+    if (errors != null) {
+      System.out.printf(" %7s %8s", "errors", "skipped");
+    }
+    System.out.printf(" %9s %8s", "ops/s", "mean");
+    for (double percentile : PERCENTILES) {
+      System.out.printf(" %8s", "p" + (percentile % 1 == 0 ? String.valueOf((int) percentile)
+          : String.valueOf(percentile)));
+    }
+    System.out.printf(" %8s%n", "max");
+    LatencyHistogram all = new LatencyHistogram();
+    long allCompleted = 0;
+    for (Action action : Action.values()) {
+      LatencyHistogram histogram = histograms[action.ordinal()];
+      long count = completed[action.ordinal()].getCount();
+      all.add(histogram);
+      allCompleted += count;
+      this.printRow(action.name().toLowerCase(), histogram, count,
+          errors == null ? null : new long[]{errors[action.ordinal()], skipped[action.ordinal()]},
+          seconds);
+    }
+    this.printRow("all", all, allCompleted, errors == null ? null
+        : new long[]{Arrays.stream(errors).sum(), Arrays.stream(skipped).sum()}, seconds);
+  }
+
+  /**
+   * @param count requests completed
+   * @param outcomes errors and skipped requests of the row, null if the table has no such columns
+   */
+  private void printRow(String name, LatencyHistogram histogram, long count, long[] outcomes,
+      double seconds) {
+    System.out.printf("%-9s %8d", name, count);
+    if (outcomes != null) {
+      System.out.printf(" %7d %8d", outcomes[0], outcomes[1]);
+    }
+    System.out.printf(" %9.1f %8.2f", count / seconds, histogram.getMean() / 1000);
+    for (double percentile : PERCENTILES) {
+      System.out.printf(" %8.2f", histogram.percentile(percentile) / 1000.0);
+    }
+    System.out.printf(" %8.2f%n", histogram.getMax() / 1000.0);
+  }
+
+  /**
+   * @return weights by name, from a list like a:1,b:2
+   */
+  private static Map<String, Double> parseWeights(String list) {
+    Map<String, Double> weights = new LinkedHashMap<>();
+    for (String entry : list.split(",")) {
+      String[] weight = entry.trim().split(":");
+      if (weight.length != 2) {
+        throw new IllegalArgumentException("Expected name:weight, found " + entry);
+      }
+      weights.put(weight[0], Double.parseDouble(weight[1]));
+    }
+    return weights;
+  }
+
+  /**
+   * @return number of bytes of a size like 512, 64k or 1m
+   */
+  private static int parseSize(String size) {
+    String lower = size.trim().toLowerCase();
+    int unit = lower.endsWith("k") ? 1 << 10 : lower.endsWith("m") ? 1 << 20 : 1;
+    return Integer.parseInt(unit == 1 ? lower : lower.substring(0, lower.length() - 1)) * unit;
+  }
+}
@@ -14,4 +14,31 @@ public interface ILoadBalancer extends Remote {
    * @return server port
    */
   int getServerPort() throws RemoteException;
+
+  /**
+   * Method to fetch the port of a server to read files of a replica group from, one that is not far
+   * behind the most up to date server of the group.
+   *
+   * @param group number of the replica group in the shard ring
+   * @return server port
+   */
+  int getReadServerPort(int group) throws RemoteException;
+
+  /**
+   * Method to fetch the port of the server to send writes of files of a replica group to, the
+   * leader of the group if one is known. Writes sent elsewhere in the group are forwarded to the
+   * leader.
+   *
+   * @param group number of the replica group in the shard ring
+   * @return server port
+   */
+  int getWriteServerPort(int group) throws RemoteException;
+
+  /**
+   * Method to report a server that could not be reached, so that it is probed again before being
+   * handed out to another client.
+   *
+   * @param port of the server that failed
+   */
+  void reportFailure(int port) throws RemoteException;
 }
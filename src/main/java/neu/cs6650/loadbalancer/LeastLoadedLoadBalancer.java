@@ -0,0 +1,141 @@
+package neu.cs6650.loadbalancer;
+
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import neu.cs6650.utils.Constants;
+import neu.cs6650.utils.ServerStatus;
+import neu.cs6650.utils.ShardRing;
+import neu.cs6650.utils.StubCache;
+
+/**
+ * This class represents a load balancer that routes by the load the servers report in their
+ * heartbeats. It picks two live servers at random and hands out the one with the lower cost, the
+ * average latency of the server times the requests it is busy with. Picking the better of two
+ * keeps most clients off a busy server without sending them all to the same idle one. Readers are
+ * balanced the same way among the servers that are not behind, writers all go to the leader.
+ *
+ * <p>Heartbeats are a few hundred milliseconds apart, so every client sent to a server since its
+ * last heartbeat counts as a request the server is busy with.
+ */
+public class LeastLoadedLoadBalancer extends UnicastRemoteObject implements ILoadBalancer {
+
+  private static final long serialVersionUID = -6572602394505554657L;
+
+  private static Logger logger = Logger.getLogger(LeastLoadedLoadBalancer.class.getName());
+  // Latency assumed for a server that did not report any yet
+  private static final long DEFAULT_LATENCY_MICROS = 1000;
+
+  // Load of a server as of one of its heartbeats
+  private static class Load {
+
+    private final ServerStatus status;
+    // Clients sent to the server since the heartbeat
+    private final AtomicInteger assigned = new AtomicInteger();
+
+    private Load(ServerStatus status) {
+      this.status = status;
+    }
+
+    private double cost() {
+      if (this.status == null) {
+        return (double) DEFAULT_LATENCY_MICROS * (this.assigned.get() + 1);
+      }
+      long latency = Math.max(this.status.getLatencyMicros(), 1);
+      return (double) latency * (this.status.getInFlight() + this.status.getQueueDepth()
+          + this.assigned.get() + 1);
+    }
+  }
+
+  private final Membership membership;
+  private final ConcurrentHashMap<Integer, Load> loads = new ConcurrentHashMap<>();
+
+  public LeastLoadedLoadBalancer() throws RemoteException {
+    this.membership = new Membership(new ShardRing(Constants.SHARD_GROUPS,
+        Constants.DRAINING_SHARD_GROUPS, Constants.SHARD_VIRTUAL_NODES));
+  }
+
+  @Override
+  public int getServerPort() {
+    return this.leastLoaded(this.membership.live());
+  }
+
+  @Override
+  public int getReadServerPort(int group) {
+    return this.leastLoaded(this.membership.readable(group));
+  }
+
+  @Override
+  public int getWriteServerPort(int group) {
+    int leader = this.membership.leader(group);
+    return leader != 0 ? leader : this.getReadServerPort(group);
+  }
+
+  private int leastLoaded(int[] servers) {
+    if (servers.length == 0) {
+      throw new IllegalStateException("No live servers detected.");
+    }
+    int first = ThreadLocalRandom.current().nextInt(servers.length);
+    int chosen = servers[first];
+    if (servers.length > 1) {
+      // A second pick among the others, so that both are distinct
+      int second = servers[(first + 1 + ThreadLocalRandom.current().nextInt(servers.length - 1))
+          % servers.length];
+      if (this.loadOf(second).cost() < this.loadOf(chosen).cost()) {
+        chosen = second;
+      }
+    }
+    this.loadOf(chosen).assigned.incrementAndGet();
+    return chosen;
+  }
+
+  @Override
+  public void reportFailure(int port) {
+    logger.log(Level.WARNING, "Server at port {0} reported as failed", port);
+    StubCache.invalidate(Constants.IP, port, Constants.SERVER_NAME);
+    this.membership.suspect(port);
+  }
+
+  /**
+   * @return load of the server as of its last heartbeat
+   */
+  private Load loadOf(int port) {
+    ServerStatus status = this.membership.statusOf(port);
+    Load load = this.loads.get(port);
+    if (load == null || load.status != status) {
+      // Assignments before the heartbeat are part of the load the server reported
+      load = new Load(status);
+      this.loads.put(port, load);
+    }
+    return load;
+  }
+
+  public static void main(String[] args) {
+    logger.info("Least-loaded Load balancer started...");
+
+    int portNumber;
+    if (args.length < 1) {
+      logger.log(Level.WARNING, "No port provided, using default port: {0}",
+          Constants.DEFAULT_LB_PORT);
+      portNumber = Constants.DEFAULT_LB_PORT;
+    } else {
+      portNumber = Integer.parseInt(args[0]);
+    }
+
+    try {
+      ILoadBalancer loadBalancer = new LeastLoadedLoadBalancer();
+      Registry registry = LocateRegistry.createRegistry(portNumber);
+      registry.bind(Constants.LEAST_LOADED_LOAD_BALANCER, loadBalancer);
+      logger.log(Level.INFO, "Object binding is done");
+
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,223 @@
+package neu.cs6650.loadbalancer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import neu.cs6650.server.DistributedFileServer;
+import neu.cs6650.utils.Constants;
+import neu.cs6650.utils.ServerStatus;
+import neu.cs6650.utils.ShardRing;
+import neu.cs6650.utils.StubCache;
+
+/**
+ * View of the servers that are up, kept by heartbeats sent in the background so that handing out
+ * a server costs no network call. A server is live while it answered a heartbeat within
+ * Constants.MEMBER_TIMEOUT_MS. Servers that do not answer are probed less and less often, up to
+ * Constants.HEARTBEAT_MAX_BACKOFF_MS between probes, until they are back.
+ *
+ * <p>The heartbeats also tell which server leads and how far each server applied the log, so
+ * that writes can be routed to the leader and reads to servers that are not behind. Both are kept
+ * for every replica group of the shard ring, as every group runs a log of its own.
+ */
+class Membership {
+
+  private static Logger logger = Logger.getLogger(Membership.class.getName());
+
+  private static class Member {
+
+    private final int port;
+    private final int group;
+    private volatile long lastSeen;
+    private volatile ServerStatus status;
+    // Probe schedule, guarded by the membership
+    private long nextProbe;
+    private long backoff = Constants.HEARTBEAT_INTERVAL_MS;
+    private boolean probing;
+
+    private Member(int port, int group) {
+      this.port = port;
+      this.group = group;
+    }
+  }
+
+  private final ShardRing ring;
+  private final Map<Integer, Member> members = new LinkedHashMap<>();
+  // Ports of the live servers, replaced as a whole when the view changes
+  private volatile int[] live = new int[0];
+  // Live servers of every group at most Constants.READ_MAX_LAG_SLOTS behind the most up to date
+  // one of the group
+  private volatile int[][] readable;
+  // Live server of every group most live servers of the group take for the leader, 0 for none
+  private volatile int[] leaders;
+  private final ScheduledExecutorService ticker;
+  private final ExecutorService probes;
+
+  Membership(ShardRing ring) {
+    this.ring = ring;
+    for (int group = 0; group < ring.size(); group++) {
+      for (int port : ring.ports(group)) {
+        this.members.put(port, new Member(port, group));
+      }
+    }
+    this.readable = new int[ring.size()][0];
+    this.leaders = new int[ring.size()];
+    this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "membership");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.probes = Executors.newFixedThreadPool(this.members.size(), runnable -> {
+      Thread thread = new Thread(runnable, "heartbeat");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.ticker.scheduleWithFixedDelay(this::tick, 0, Constants.HEARTBEAT_INTERVAL_MS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return ports of the live servers, the array must not be changed
+   */
+  int[] live() {
+    return this.live;
+  }
+
+  /**
+   * @return ports of the live servers of the group fit to serve reads, the array must not be
+   *     changed
+   */
+  int[] readable(int group) {
+    return this.readable[group];
+  }
+
+  /**
+   * @return port of the leader of the group, 0 if no live server knows of a live leader
+   */
+  int leader(int group) {
+    return this.leaders[group];
+  }
+
+  /**
+   * @return state of the server in its last heartbeat, null if it never answered
+   */
+  ServerStatus statusOf(int port) {
+    Member member = this.members.get(port);
+    return member == null ? null : member.status;
+  }
+
+  /**
+   * Drops a server a client could not reach from the view until it answers a heartbeat again.
+   */
+  synchronized void suspect(int port) {
+    Member member = this.members.get(port);
+    if (member == null) {
+      return;
+    }
+    member.lastSeen = 0;
+    member.nextProbe = 0;
+    this.refresh(System.currentTimeMillis());
+  }
+
+  private synchronized void tick() {
+    long now = System.currentTimeMillis();
+    for (Member member : this.members.values()) {
+      if (!member.probing && member.nextProbe <= now) {
+        member.probing = true;
+        try {
+          this.probes.execute(() -> this.probe(member));
+        } catch (RejectedExecutionException e) {
+          member.probing = false;
+        }
+      }
+    }
+    // A server whose probe hangs drops out once it was not heard from for too long
+    this.refresh(now);
+  }
+
+  private void probe(Member member) {
+    ServerStatus status = null;
+    try {
+      status = StubCache.call(Constants.IP, member.port, Constants.SERVER_NAME,
+          DistributedFileServer::heartbeat);
+    } catch (Exception e) {
+      logger.log(Level.FINE, "No heartbeat from port {0}: {1}",
+          new Object[]{member.port, e.getMessage()});
+    }
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      member.probing = false;
+      if (status != null) {
+        member.status = status;
+        member.lastSeen = now;
+        member.backoff = Constants.HEARTBEAT_INTERVAL_MS;
+      } else {
+        member.backoff = Math.min(member.backoff * 2, Constants.HEARTBEAT_MAX_BACKOFF_MS);
+      }
+      member.nextProbe = now + member.backoff;
+      this.refresh(now);
+    }
+  }
+
+  private void refresh(long now) {
+    Member[] up = this.members.values().stream()
+        .filter(member -> now - member.lastSeen <= Constants.MEMBER_TIMEOUT_MS)
+        .toArray(Member[]::new);
+    int[] live = Arrays.stream(up).mapToInt(member -> member.port).toArray();
+    if (!Arrays.equals(live, this.live)) {
+      logger.log(Level.INFO, "Live servers: {0}", Arrays.toString(live));
+      this.live = live;
+    }
+
+    int[][] readable = new int[this.ring.size()][];
+    int[] leaders = new int[this.ring.size()];
+    for (int group = 0; group < this.ring.size(); group++) {
+      int current = group;
+      Member[] groupUp = Arrays.stream(up).filter(member -> member.group == current)
+          .toArray(Member[]::new);
+      readable[group] = readable(groupUp);
+      leaders[group] = leader(groupUp);
+      if (leaders[group] != this.leaders[group]) {
+        logger.log(Level.INFO, "Leader of group {0}: {1}", new Object[]{group, leaders[group]});
+      }
+    }
+    this.readable = readable;
+    this.leaders = leaders;
+  }
+
+  /**
+   * @return ports of the servers not far behind the most up to date one among them
+   */
+  private static int[] readable(Member[] up) {
+    long newest = Arrays.stream(up).filter(member -> member.status != null)
+        .mapToLong(member -> member.status.getAppliedSlot()).max().orElse(0);
+    int[] readable = Arrays.stream(up).filter(member -> member.status != null
+        && member.status.getAppliedSlot() >= newest - Constants.READ_MAX_LAG_SLOTS)
+        .mapToInt(member -> member.port).toArray();
+    return readable.length > 0 ? readable : Arrays.stream(up).mapToInt(member -> member.port)
+        .toArray();
+  }
+
+  /**
+   * @return the leader most of the servers know of if it is among them, 0 otherwise
+   */
+  private static int leader(Member[] up) {
+    // Servers learn of a new leader at different times, the view goes with most of them
+    Map<Integer, Integer> votes = new HashMap<>();
+    for (Member member : up) {
+      int port = member.status == null ? 0 : member.status.getLeaderPort();
+      if (port != 0 && Arrays.stream(up).anyMatch(other -> other.port == port)) {
+        votes.merge(port, 1, Integer::sum);
+      }
+    }
+    return votes.entrySet().stream().max(Map.Entry.comparingByValue())
+        .map(Map.Entry::getKey).orElse(0);
+  }
+}
@@ -5,48 +5,55 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import neu.cs6650.utils.Constants;
+import neu.cs6650.utils.ShardRing;
+import neu.cs6650.utils.StubCache;
 
 /**
- * This class represents a Random Loadbalancer. This loadbalancer selects a server port from a given
- * list at random.
+ * This class represents a Random Loadbalancer. This loadbalancer selects a server port from the
+ * live servers of its membership view at random.
  */
 public class RandomLoadBalancer extends UnicastRemoteObject implements ILoadBalancer {
 
-  private static Logger logger = Logger.getLogger(RandomLoadBalancer.class.getName());;
+  private static Logger logger = Logger.getLogger(RandomLoadBalancer.class.getName());
+  private final Membership membership;
 
   public RandomLoadBalancer() throws RemoteException {
-
+    this.membership = new Membership(new ShardRing(Constants.SHARD_GROUPS,
+        Constants.DRAINING_SHARD_GROUPS, Constants.SHARD_VIRTUAL_NODES));
   }
 
   @Override
   public int getServerPort() {
-    List<Integer> liveServers = this.getLiveServers();
-    if (liveServers.isEmpty()) {
+    return this.any(this.membership.live());
+  }
+
+  @Override
+  public int getReadServerPort(int group) {
+    return this.any(this.membership.readable(group));
+  }
+
+  @Override
+  public int getWriteServerPort(int group) {
+    int leader = this.membership.leader(group);
+    return leader != 0 ? leader : this.getReadServerPort(group);
+  }
+
+  private int any(int[] liveServers) {
+    if (liveServers.length == 0) {
       throw new IllegalStateException("No live servers detected.");
     }
-    int randomInt = new Random().nextInt(liveServers.size());
-    return liveServers.get(randomInt);
+    return liveServers[ThreadLocalRandom.current().nextInt(liveServers.length)];
   }
 
-  private List<Integer> getLiveServers() {
-    List<Integer> foundServers = new ArrayList<>();
-    for (int p : Constants.PORTS) {
-      try {
-        Registry discoveredRegistry = LocateRegistry.getRegistry(Constants.IP, p);
-        if (discoveredRegistry.list().length > 0) {
-          foundServers.add(p);
-        }
-      } catch (Exception e) {
-        System.out.println("Waiting for other servers...");
-      }
-    }
-    return foundServers;
+  @Override
+  public void reportFailure(int port) {
+    logger.log(Level.WARNING, "Server at port {0} reported as failed", port);
+    StubCache.invalidate(Constants.IP, port, Constants.SERVER_NAME);
+    this.membership.suspect(port);
   }
 
   public static void main(String[] args) {
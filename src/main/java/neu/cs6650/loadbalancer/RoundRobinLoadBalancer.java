@@ -4,59 +4,57 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.ArrayList;
-import java.util.LinkedHashSet;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import neu.cs6650.utils.Constants;
+import neu.cs6650.utils.ShardRing;
+import neu.cs6650.utils.StubCache;
 
 /**
  * This class represents a Round Robin Load balancer. This load balancer selects a server port from
- * a given list in a round robin fashion.
+ * the live servers of its membership view in a round robin fashion. Reads only go to servers that
+ * are up to date and writes go to the leader.
  */
 public class RoundRobinLoadBalancer extends UnicastRemoteObject implements ILoadBalancer {
 
-  private static Integer position = 0;
   private static Logger logger = Logger.getLogger(RoundRobinLoadBalancer.class.getName());
-  private LinkedHashSet<Integer> liveServers;
+  private final AtomicInteger position = new AtomicInteger();
+  private final Membership membership;
 
   public RoundRobinLoadBalancer() throws RemoteException {
-    this.liveServers = new LinkedHashSet<>();
+    this.membership = new Membership(new ShardRing(Constants.SHARD_GROUPS,
+        Constants.DRAINING_SHARD_GROUPS, Constants.SHARD_VIRTUAL_NODES));
   }
 
   @Override
   public int getServerPort() {
-    int target;
-    List<Integer> servers = this.getLiveServers();
-    if (servers.isEmpty()) {
+    return this.next(this.membership.live());
+  }
+
+  @Override
+  public int getReadServerPort(int group) {
+    return this.next(this.membership.readable(group));
+  }
+
+  @Override
+  public int getWriteServerPort(int group) {
+    int leader = this.membership.leader(group);
+    return leader != 0 ? leader : this.getReadServerPort(group);
+  }
+
+  private int next(int[] servers) {
+    if (servers.length == 0) {
       throw new IllegalStateException("No live servers detected.");
     }
-    synchronized (position) {
-      if (position > (servers.size() - 1)) {
-        position = 0;
-      }
-      target = servers.get(position);
-      position++;
-    }
-    return target;
+    return servers[Math.floorMod(this.position.getAndIncrement(), servers.length)];
   }
 
-  private List<Integer> getLiveServers() {
-    List<Integer> foundServers = new ArrayList<>();
-    for (int p : Constants.PORTS) {
-      try {
-        Registry discoveredRegistry = LocateRegistry.getRegistry(Constants.IP, p);
-        if (discoveredRegistry.list().length > 0) {
-          foundServers.add(p);
-        }
-      } catch (Exception e) {
-        System.out.println("Waiting for other servers...");
-      }
-    }
-    this.liveServers.removeIf(s -> !foundServers.contains(s));
-    this.liveServers.addAll(foundServers);
-    return new ArrayList<>(this.liveServers);
+  @Override
+  public void reportFailure(int port) {
+    logger.log(Level.WARNING, "Server at port {0} reported as failed", port);
+    StubCache.invalidate(Constants.IP, port, Constants.SERVER_NAME);
+    this.membership.suspect(port);
   }
 
   public static void main(String[] args) {
@@ -0,0 +1,118 @@
+package neu.cs6650.server;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import neu.cs6650.utils.Constants;
+
+/**
+ * Bounds the requests a server works on at the same time. RMI runs every incoming call on a
+ * thread of its own, however many arrive, so without a bound a burst of requests can run the
+ * server out of memory or threads. Reads, writes, consensus calls and chunks replicated by peers
+ * each get a number of slots of their own, so that a burst of one class does not turn away the
+ * others, and the file content all requests hold in memory together is bounded as well.
+ *
+ * <p>The content of a request counts until its method returns. RMI marshals a returned file after
+ * that, so downloads through RMI are bounded only while the file is read into memory. Downloads
+ * through the data port are bounded by its threads, which hold one chunk each at most.
+ *
+ * <p>Requests that find no free slot or no room for their content are turned away right away
+ * rather than queued, and are told when to try again.
+ */
+class AdmissionControl {
+
+  enum RequestClass {
+    READ(Constants.ADMISSION_READS, Metrics.Counter.READS_REJECTED),
+    WRITE(Constants.ADMISSION_WRITES, Metrics.Counter.WRITES_REJECTED),
+    CONSENSUS(Constants.ADMISSION_CONSENSUS, Metrics.Counter.CONSENSUS_REJECTED),
+    REPLICATION(Constants.ADMISSION_REPLICATION, Metrics.Counter.REPLICATION_REJECTED);
+
+    private final int slots;
+    private final Metrics.Counter rejections;
+
+    RequestClass(int slots, Metrics.Counter rejections) {
+      this.slots = slots;
+      this.rejections = rejections;
+    }
+  }
+
+  /**
+   * A request admitted, its slot and content are given back by closing it.
+   */
+  class Ticket implements AutoCloseable {
+
+    private final RequestClass requestClass;
+    private long bytes;
+
+    private Ticket(RequestClass requestClass, long bytes) {
+      this.requestClass = requestClass;
+      this.bytes = bytes;
+    }
+
+    /**
+     * Makes room for content the request learnt the size of after it was admitted.
+     *
+     * @return false if there is no room, the request should be turned away
+     */
+    boolean reserve(long bytes) {
+      if (!AdmissionControl.this.reserve(bytes)) {
+        AdmissionControl.this.metrics.count(this.requestClass.rejections);
+        return false;
+      }
+      this.bytes += bytes;
+      return true;
+    }
+
+    @Override
+    public void close() {
+      AdmissionControl.this.inFlightBytes.addAndGet(-this.bytes);
+      AdmissionControl.this.slots[this.requestClass.ordinal()].release();
+    }
+  }
+
+  private final Semaphore[] slots = new Semaphore[RequestClass.values().length];
+  private final AtomicLong inFlightBytes = new AtomicLong();
+  private final Metrics metrics;
+
+  /**
+   * @param metrics to count the requests turned away in
+   */
+  AdmissionControl(Metrics metrics) {
+    this.metrics = metrics;
+    for (RequestClass requestClass : RequestClass.values()) {
+      this.slots[requestClass.ordinal()] = new Semaphore(requestClass.slots);
+    }
+  }
+
+  /**
+   * Admits a request if its class has a free slot and there is room for its content.
+   *
+   * @param bytes of file content the request holds in memory, 0 for none
+   * @return the ticket of the request, null if it was turned away
+   */
+  Ticket admit(RequestClass requestClass, long bytes) {
+    Semaphore classSlots = this.slots[requestClass.ordinal()];
+    if (!classSlots.tryAcquire()) {
+      this.metrics.count(requestClass.rejections);
+      return null;
+    }
+    if (!this.reserve(bytes)) {
+      classSlots.release();
+      this.metrics.count(requestClass.rejections);
+      return null;
+    }
+    return new Ticket(requestClass, bytes);
+  }
+
+  private boolean reserve(long bytes) {
+    while (true) {
+      long current = this.inFlightBytes.get();
+      // Content larger than the whole budget is let in alone, it would never fit otherwise
+      if (bytes > 0 && current > 0 && current + bytes > Constants.ADMISSION_PAYLOAD_BYTES) {
+        return false;
+      }
+      if (this.inFlightBytes.compareAndSet(current, current + bytes)) {
+        return true;
+      }
+    }
+  }
+}
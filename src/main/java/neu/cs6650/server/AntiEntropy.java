@@ -0,0 +1,279 @@
+package neu.cs6650.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import neu.cs6650.utils.Constants;
+import neu.cs6650.utils.StubCache;
+
+/**
+ * Brings the files of a server in line with its peers in the background, for files a server
+ * missed while it was down or failed to apply.
+ *
+ * <p>A round compares the index digests of this server with those of a random peer that applied
+ * at least as many slots, lists the files of the buckets that differ and pulls the files the peer
+ * has in a newer version or this server lacks. Files are indexed under the id the peer has them
+ * under, the ids of a file must be the same on all replicas as clients name files by id. Only the
+ * chunks of a file missing from the {@link ChunkStore} of this server are transferred. Only files
+ * last changed at or before the slot this server applied are pulled, as the peer and this server
+ * must agree on those. Files are never deleted by a round, a file only this server has is either
+ * deleted by a slot it did not apply yet or missing at the peer. A server that fell behind further
+ * than the peers retain their log installs the whole index of a peer instead. Transfers are
+ * throttled to {@link Constants#ANTI_ENTROPY_BYTES_PER_SEC}.
+ */
+class AntiEntropy {
+
+  private static Logger logger = Logger.getLogger(AntiEntropy.class.getName());
+
+  private final int serverPort;
+  private final FileIndex index;
+  private final ReplicatedLog log;
+  private final ChunkStore chunks;
+  private final Set<Integer> peers;
+  // Saves the index, repaired files are not recorded in the write-ahead log
+  private final Runnable onRepaired;
+  private final Throttle throttle = new Throttle(Constants.ANTI_ENTROPY_BYTES_PER_SEC);
+
+  AntiEntropy(int serverPort, FileIndex index, ReplicatedLog log, ChunkStore chunks,
+      Set<Integer> peers, Runnable onRepaired) {
+    this.serverPort = serverPort;
+    this.index = index;
+    this.log = log;
+    this.chunks = chunks;
+    this.peers = peers;
+    this.onRepaired = onRepaired;
+  }
+
+  /**
+   * Runs one round against the first peer that is reachable and not behind this server.
+   */
+  void run() {
+    try {
+      this.runRound();
+    } catch (RuntimeException e) {
+      // Keep the periodic rounds going
+      logger.log(Level.SEVERE, "Anti-entropy round failed at port {0}: {1}",
+          new Object[]{serverPort, e});
+    }
+  }
+
+  private void runRound() {
+    List<Integer> ports = new ArrayList<>(this.peers);
+    Collections.shuffle(ports);
+    long slot = this.log.getAppliedSlot();
+    for (int port : ports) {
+      long[] theirs;
+      try {
+        theirs = this.call(port, dfs -> dfs.getIndexDigests(slot));
+      } catch (Exception e) {
+        continue;
+      }
+      if (theirs[0] < slot) {
+        continue;
+      }
+      long[] mine = this.index.digests(slot);
+      Set<Integer> buckets = new HashSet<>();
+      for (int i = 0; i < mine.length; i++) {
+        if (mine[i] != theirs[i + 1]) {
+          buckets.add(i);
+        }
+      }
+      if (!buckets.isEmpty()) {
+        this.repair(port, slot, buckets);
+      }
+      return;
+    }
+  }
+
+  private void repair(int port, long slot, Set<Integer> buckets) {
+    FileIndex.Snapshot theirs;
+    try {
+      theirs = this.call(port, dfs -> dfs.getIndexEntries(new ArrayList<>(buckets)));
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "Unable to list index entries of port {0}", port);
+      return;
+    }
+    int repaired = 0;
+    for (FileIndex.Entry entry : theirs.getIndex().entries()) {
+      int id = theirs.getIndex().idOf(entry.getName());
+      if (entry.getVersion() > slot || (!this.isStale(entry) && !this.isMisplaced(entry, id))
+          || !this.fetch(port, entry.getContent(), true)) {
+        continue;
+      }
+      boolean moved;
+      try {
+        moved = this.log.atAppliedSlot(applied -> {
+          // A slot applied meanwhile may have changed the file, it is up to date then
+          if (this.log.touchedSince(slot, entry.getName())
+              || (!this.isStale(entry) && !this.isMisplaced(entry, id))) {
+            return false;
+          }
+          this.moveIn(id, entry);
+          return true;
+        });
+      } catch (UncheckedIOException e) {
+        logger.log(Level.SEVERE, "Unable to repair {0}: {1}",
+            new Object[]{entry.getName(), e.getMessage()});
+        moved = false;
+      }
+      if (moved) {
+        repaired++;
+      }
+    }
+    logger.log(Level.INFO, "Anti-entropy repaired {0} files of {1} buckets at port {2} from {3}",
+        new Object[]{repaired, buckets.size(), serverPort, port});
+    if (repaired > 0) {
+      this.onRepaired.run();
+    }
+  }
+
+  /**
+   * Replaces the index and files of this server with those of a peer, for a server that can not
+   * catch up through the log as the peer no longer retains the slots it missed. Only the chunks
+   * this server lacks are transferred, chunks only the old index referred to are left to garbage
+   * collection.
+   *
+   * @return true if the state was installed
+   */
+  boolean install(int port) {
+    FileIndex.Snapshot theirs;
+    try {
+      theirs = this.call(port, dfs -> dfs.getIndexEntries(null));
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "Unable to read index of port {0}", port);
+      return false;
+    }
+    if (theirs.getSlot() <= this.log.getAppliedSlot()) {
+      return false;
+    }
+    logger.log(Level.INFO, "Installing index of port {0} at slot {1} on port {2}",
+        new Object[]{port, theirs.getSlot(), serverPort});
+    for (FileIndex.Entry entry : theirs.getIndex().entries()) {
+      if (this.isStale(entry) && !this.fetch(port, entry.getContent(), true)) {
+        return false;
+      }
+    }
+    boolean installed = this.log.atAppliedSlot(applied -> {
+      if (applied >= theirs.getSlot()) {
+        return false;
+      }
+      this.index.replaceWith(theirs.getIndex());
+      this.chunks.recount(this.index.contents());
+      this.log.skipTo(theirs.getSlot());
+      return true;
+    });
+    if (!installed) {
+      return false;
+    }
+    this.onRepaired.run();
+    return true;
+  }
+
+  /**
+   * @return true if this server lacks the file, has an older version of it or lacks some of its
+   * chunks
+   */
+  private boolean isStale(FileIndex.Entry entry) {
+    FileIndex.Entry mine = this.index.find(entry.getName());
+    return mine == null || mine.getVersion() < entry.getVersion()
+        || !this.chunks.isComplete(mine.getContent());
+  }
+
+  /**
+   * @return true if this server has the file under another id than the peer
+   */
+  private boolean isMisplaced(FileIndex.Entry entry, int id) {
+    Integer mine = this.index.idOf(entry.getName());
+    return mine != null && mine != id;
+  }
+
+  /**
+   * Copies the manifest and the chunks of a file content this server lacks from a peer. For an
+   * erasure coded file the shards this server keeps are rebuilt from those of the other servers.
+   *
+   * @param throttled to pace the transfer to {@link Constants#ANTI_ENTROPY_BYTES_PER_SEC}
+   * @return true if the whole content is stored on this server now
+   */
+  boolean fetch(int port, String content, boolean throttled) {
+    try {
+      if (!this.chunks.contains(content)) {
+        this.fetchBlock(port, content, throttled);
+      }
+      Manifest manifest = this.chunks.manifest(content);
+      if (manifest.isErasureCoded()) {
+        this.chunks.rebuild(manifest);
+        return true;
+      }
+      for (String hash : this.chunks.missing(manifest.getHashes())) {
+        this.fetchBlock(port, hash, throttled);
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "Unable to fetch content {0} from port {1}: {2}",
+          new Object[]{content, port, e.getMessage()});
+    }
+    return false;
+  }
+
+  private void fetchBlock(int port, String hash, boolean throttled) throws Exception {
+    byte[] data = this.call(port, dfs -> dfs.getBlock(hash));
+    if (throttled) {
+      this.throttle.acquire(data.length);
+    }
+    this.chunks.put(hash, data);
+  }
+
+  private void moveIn(int id, FileIndex.Entry entry) {
+    try {
+      if (!this.chunks.retain(entry.getContent())) {
+        throw new IOException("Content of " + entry.getName() + " is incomplete");
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    for (FileIndex.Entry replaced : this.index.put(id, entry.getName(), entry.getSize(),
+        entry.getVersion(), entry.getContent())) {
+      this.chunks.release(replaced.getContent());
+    }
+  }
+
+  private <R> R call(int port, StubCache.RemoteCall<DistributedFileServer, R> call)
+      throws Exception {
+    return StubCache.call(Constants.IP, port, Constants.SERVER_NAME, call);
+  }
+
+  /**
+   * Paces transfers to a number of bytes per second.
+   */
+  private static class Throttle {
+
+    private final long bytesPerSecond;
+    private long nextFreeNanos = System.nanoTime();
+
+    Throttle(long bytesPerSecond) {
+      this.bytesPerSecond = bytesPerSecond;
+    }
+
+    void acquire(long bytes) throws InterruptedException {
+      long wait;
+      synchronized (this) {
+        long now = System.nanoTime();
+        wait = this.nextFreeNanos - now;
+        this.nextFreeNanos = Math.max(now, this.nextFreeNanos)
+            + TimeUnit.SECONDS.toNanos(bytes) / this.bytesPerSecond;
+      }
+      if (wait > 0) {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      }
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package neu.cs6650.server;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Bounded cache of the chunks most read on a server. Chunks are held outside the heap, as
+ * mappings of their files or, for chunks rebuilt from erasure coded shards, as direct buffers, so
+ * a large cache does not add to the work of the garbage collector.
+ *
+ * <p>Eviction is a segmented LRU weighed by size. A chunk enters the probation segment and moves
+ * to the protected segment when it is read again, so a scan through many chunks read once only
+ * displaces other chunks on probation. The protected segment takes at most
+ * {@link #PROTECTED_SHARE} of the capacity, chunks falling out of it go back on probation.
+ *
+ * <p>Chunks never change as they are named by their content, entries only have to be dropped once
+ * no file refers to their chunk anymore.
+ */
+class ChunkCache implements ChunkCacheMXBean {
+
+  private static Logger logger = Logger.getLogger(ChunkCache.class.getName());
+  private static final double PROTECTED_SHARE = 0.8;
+
+  private final long capacity;
+  private final long protectedCapacity;
+  // Both segments in access order, least recently used first
+  private final LinkedHashMap<String, ByteBuffer> probation = new LinkedHashMap<>(16, 0.75f,
+      true);
+  private final LinkedHashMap<String, ByteBuffer> protectedSegment = new LinkedHashMap<>(16,
+      0.75f, true);
+  private long probationBytes;
+  private long protectedBytes;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  ChunkCache(long capacity) {
+    this.capacity = capacity;
+    this.protectedCapacity = (long) (capacity * PROTECTED_SHARE);
+  }
+
+  /**
+   * Registers the statistics of the cache with the platform MBean server.
+   */
+  void register(int serverPort) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+          new ObjectName("neu.cs6650:type=ChunkCache,port=" + serverPort));
+    } catch (JMException e) {
+      logger.log(Level.WARNING, "Unable to register chunk cache statistics: {0}",
+          e.getMessage());
+    }
+  }
+
+  /**
+   * @return a read-only view of the cached chunk, null if it is not cached
+   */
+  synchronized ByteBuffer get(String hash) {
+    ByteBuffer buffer = this.protectedSegment.get(hash);
+    if (buffer == null) {
+      buffer = this.probation.remove(hash);
+      if (buffer == null) {
+        this.misses.incrementAndGet();
+        return null;
+      }
+      this.probationBytes -= buffer.capacity();
+      this.protect(hash, buffer);
+    }
+    this.hits.incrementAndGet();
+    return buffer.asReadOnlyBuffer();
+  }
+
+  /**
+   * Adds a chunk on probation, evicting the least recently used chunks to make room. Chunks
+   * larger than an eighth of the capacity are not cached.
+   */
+  synchronized void put(String hash, ByteBuffer buffer) {
+    if (buffer.capacity() > this.capacity / 8 || this.protectedSegment.containsKey(hash)
+        || this.probation.containsKey(hash)) {
+      return;
+    }
+    this.probation.put(hash, buffer);
+    this.probationBytes += buffer.capacity();
+    this.evict();
+  }
+
+  synchronized void invalidate(String hash) {
+    ByteBuffer buffer = this.probation.remove(hash);
+    if (buffer != null) {
+      this.probationBytes -= buffer.capacity();
+    }
+    buffer = this.protectedSegment.remove(hash);
+    if (buffer != null) {
+      this.protectedBytes -= buffer.capacity();
+    }
+  }
+
+  private void protect(String hash, ByteBuffer buffer) {
+    this.protectedSegment.put(hash, buffer);
+    this.protectedBytes += buffer.capacity();
+    Iterator<Map.Entry<String, ByteBuffer>> oldest = this.protectedSegment.entrySet().iterator();
+    while (this.protectedBytes > this.protectedCapacity && oldest.hasNext()) {
+      Map.Entry<String, ByteBuffer> demoted = oldest.next();
+      oldest.remove();
+      this.protectedBytes -= demoted.getValue().capacity();
+      this.probation.put(demoted.getKey(), demoted.getValue());
+      this.probationBytes += demoted.getValue().capacity();
+    }
+    this.evict();
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<String, ByteBuffer>> oldest = this.probation.entrySet().iterator();
+    while (this.probationBytes + this.protectedBytes > this.capacity && oldest.hasNext()) {
+      this.probationBytes -= oldest.next().getValue().capacity();
+      oldest.remove();
+      this.evictions.incrementAndGet();
+    }
+  }
+
+  @Override
+  public long getHits() {
+    return this.hits.get();
+  }
+
+  @Override
+  public long getMisses() {
+    return this.misses.get();
+  }
+
+  @Override
+  public long getEvictions() {
+    return this.evictions.get();
+  }
+
+  @Override
+  public double getHitRatio() {
+    long hits = this.hits.get();
+    long lookups = hits + this.misses.get();
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+
+  @Override
+  public synchronized long getSize() {
+    return this.probationBytes + this.protectedBytes;
+  }
+
+  @Override
+  public long getCapacity() {
+    return this.capacity;
+  }
+
+  @Override
+  public synchronized int getEntries() {
+    return this.probation.size() + this.protectedSegment.size();
+  }
+}
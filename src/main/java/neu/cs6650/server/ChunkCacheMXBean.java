@@ -0,0 +1,27 @@
+package neu.cs6650.server;
+
+/**
+ * Statistics of the chunk cache of a server, exposed through JMX.
+ */
+public interface ChunkCacheMXBean {
+
+  long getHits();
+
+  long getMisses();
+
+  long getEvictions();
+
+  /**
+   * @return share of the lookups that were hits, 0 before the first lookup
+   */
+  double getHitRatio();
+
+  /**
+   * @return bytes held by the cached chunks
+   */
+  long getSize();
+
+  long getCapacity();
+
+  int getEntries();
+}
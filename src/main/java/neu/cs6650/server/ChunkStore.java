@@ -0,0 +1,503 @@
+package neu.cs6650.server;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import neu.cs6650.utils.Constants;
+import neu.cs6650.utils.ContentChunker;
+
+/**
+ * Content-addressed store of the chunks that make up the files of a server. Every chunk is kept
+ * once in a file named by its SHA-256, no matter how many files or versions share it. The content
+ * of a file is described by a {@link Manifest}, which is stored as a chunk as well, so a file in
+ * the index refers to its content by the hash of its manifest.
+ *
+ * <p>The chunks of an erasure coded file are not kept whole. Every server keeps one Reed-Solomon
+ * shard of every chunk, the shard whose index is the position of the server in its replica group,
+ * stored under the hash of the chunk followed by the shard index. A chunk
+ * is rebuilt from the shards of any {@link Constants#EC_DATA_SHARDS} servers when it is read.
+ *
+ * <p>The store counts how many indexed files refer to every chunk. Chunks nobody refers to are
+ * removed by {@link #collectGarbage()}, once they were not used for a while, so that the chunks of
+ * an upload survive until the upload is applied.
+ */
+class ChunkStore {
+
+  private static Logger logger = Logger.getLogger(ChunkStore.class.getName());
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private final File dir;
+  // Index of the shards of erasure coded chunks this server keeps, -1 for none
+  private final int shardIndex;
+  private final ShardSource shardSource;
+  private final ChunkCache cache;
+  // Number of references to every chunk, shard and manifest, by block name
+  private final Map<String, Integer> references = new HashMap<>();
+
+  /**
+   * Reads shards of erasure coded chunks from the servers keeping them.
+   */
+  interface ShardSource {
+
+    byte[] fetch(int shardIndex, String block) throws Exception;
+  }
+
+  ChunkStore(File dir, int shardIndex, ShardSource shardSource, ChunkCache cache) {
+    this.dir = dir;
+    this.shardIndex = shardIndex;
+    this.shardSource = shardSource;
+    this.cache = cache;
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      logger.log(Level.SEVERE, "Unable to create chunk directory {0}", dir);
+      throw new RuntimeException();
+    }
+  }
+
+  File getDir() {
+    return dir;
+  }
+
+  /**
+   * @return true if the string is shaped like the hash of a chunk
+   */
+  static boolean isHash(String hash) {
+    return hash != null && hash.length() == 64 && hash.chars()
+        .allMatch(c -> (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'));
+  }
+
+  /**
+   * @return true if the string names a chunk, a manifest or a shard of a chunk
+   */
+  static boolean isBlockName(String name) {
+    int dot = name == null ? -1 : name.indexOf('.');
+    if (dot < 0) {
+      return isHash(name);
+    }
+    String index = name.substring(dot + 1);
+    return isHash(name.substring(0, dot)) && !index.isEmpty() && index.length() <= 3
+        && index.chars().allMatch(Character::isDigit);
+  }
+
+  static String shardName(String hash, int shardIndex) {
+    return hash + "." + shardIndex;
+  }
+
+  /**
+   * @return hash of the chunk a block belongs to
+   */
+  private static String chunkOf(String block) {
+    int dot = block.indexOf('.');
+    return dot < 0 ? block : block.substring(0, dot);
+  }
+
+  /**
+   * @return names of the blocks a server keeps for the chunks of a file
+   */
+  static List<String> blocksOf(Manifest manifest, int shardIndex) {
+    if (!manifest.isErasureCoded()) {
+      return manifest.getHashes();
+    }
+    List<String> blocks = new ArrayList<>();
+    if (shardIndex >= 0) {
+      manifest.getHashes().forEach(hash -> blocks.add(shardName(hash, shardIndex)));
+    }
+    return blocks;
+  }
+
+  synchronized boolean contains(String hash) {
+    return this.fileOf(hash).exists();
+  }
+
+  /**
+   * @return the hashes the store lacks, the chunks it has count as used again
+   */
+  synchronized List<String> missing(Collection<String> hashes) {
+    Set<String> missing = new LinkedHashSet<>();
+    long now = System.currentTimeMillis();
+    for (String hash : hashes) {
+      if (!this.fileOf(hash).setLastModified(now)) {
+        missing.add(hash);
+      }
+    }
+    return new ArrayList<>(missing);
+  }
+
+  /**
+   * Adds a chunk, manifest or shard unless it is stored already. The data is forced to disk, the
+   * entry of its file in the directory is forced along with the write-ahead log. Shards can not
+   * be checked against their name, a damaged shard is noticed once the chunk is rebuilt.
+   *
+   * @throws IOException if the data does not match the hash or can not be written
+   */
+  void put(String hash, byte[] data) throws IOException {
+    if (isHash(hash) && !ContentChunker.hash(data).equals(hash)) {
+      throw new IOException("Chunk does not match hash " + hash);
+    }
+    if (!this.missing(Collections.singletonList(hash)).isEmpty()) {
+      File temp = new File(this.dir, UUID.randomUUID() + TEMP_SUFFIX);
+      try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE_NEW,
+          StandardOpenOption.WRITE)) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        channel.force(false);
+      }
+      synchronized (this) {
+        Files.move(temp.toPath(), this.fileOf(hash).toPath(), StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+  }
+
+  byte[] get(String hash) throws IOException {
+    if (!isBlockName(hash)) {
+      throw new IOException("Invalid chunk hash " + hash);
+    }
+    File file = this.fileOf(hash);
+    if (!file.exists()) {
+      throw new IOException("No chunk with hash " + hash);
+    }
+    return Files.readAllBytes(file.toPath());
+  }
+
+  Manifest manifest(String hash) throws IOException {
+    return Manifest.decode(this.get(hash));
+  }
+
+  /**
+   * Splits content into chunks and adds those that are not stored yet.
+   *
+   * @return hash of the manifest of the content
+   */
+  String store(InputStream in) throws IOException {
+    List<String> hashes = new ArrayList<>();
+    List<Integer> lengths = new ArrayList<>();
+    ContentChunker.split(in, (hash, chunk) -> {
+      this.put(hash, chunk);
+      hashes.add(hash);
+      lengths.add(chunk.length);
+    });
+    return this.putManifest(newManifest(hashes, lengths));
+  }
+
+  /**
+   * Adds the manifest of stored chunks, their lengths are taken from the store. The hashes come
+   * from clients, so shards and manifests are refused, a file may only be made of whole chunks.
+   *
+   * @return hash of the manifest
+   * @throws IOException if a chunk is missing or a hash names a shard or a manifest
+   */
+  String putManifest(List<String> hashes) throws IOException {
+    List<Integer> lengths = new ArrayList<>(hashes.size());
+    for (String hash : hashes) {
+      if (!isHash(hash)) {
+        throw new IOException("Invalid chunk hash " + hash);
+      }
+      File file = this.fileOf(hash);
+      if (!file.exists()) {
+        throw new IOException("No chunk with hash " + hash);
+      }
+      if (isManifest(file)) {
+        throw new IOException("Hash " + hash + " names a manifest");
+      }
+      lengths.add((int) file.length());
+    }
+    return this.putManifest(newManifest(hashes, lengths));
+  }
+
+  /**
+   * @return true if the block decodes as a manifest, only blocks starting with its magic number
+   * are read whole
+   */
+  private static boolean isManifest(File file) throws IOException {
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      if (file.length() < 4 || in.readInt() != Manifest.MAGIC) {
+        return false;
+      }
+    }
+    try {
+      Manifest.decode(Files.readAllBytes(file.toPath()));
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return a manifest for new content, erasure coded if {@link Constants#ERASURE_CODING} is on
+   */
+  private static Manifest newManifest(List<String> hashes, List<Integer> lengths) {
+    return Constants.ERASURE_CODING ? new Manifest(hashes, lengths, Constants.EC_DATA_SHARDS,
+        Constants.EC_PARITY_SHARDS) : new Manifest(hashes, lengths);
+  }
+
+  private String putManifest(Manifest manifest) throws IOException {
+    byte[] encoded = manifest.encode();
+    String hash = ContentChunker.hash(encoded);
+    this.put(hash, encoded);
+    return hash;
+  }
+
+  /**
+   * Reads at most {@link Constants#CHUNK_SIZE} bytes of a file starting at offset.
+   *
+   * @return the bytes, empty once the end of the file is reached
+   */
+  byte[] read(Manifest manifest, long offset) throws IOException {
+    long remaining = manifest.getSize() - offset;
+    if (remaining <= 0) {
+      return new byte[]{};
+    }
+    byte[] data = new byte[(int) Math.min(Constants.CHUNK_SIZE, remaining)];
+    int filled = 0;
+    for (int i = manifest.chunkAt(offset); filled < data.length; i++) {
+      ByteBuffer chunk = this.buffer(manifest, i);
+      int from = (int) (offset + filled - manifest.offsetOf(i));
+      int length = Math.min(chunk.remaining() - from, data.length - filled);
+      ((Buffer) chunk).position(from);
+      chunk.get(data, filled, length);
+      filled += length;
+    }
+    return data;
+  }
+
+  /**
+   * Reads a chunk of a file through the cache. A chunk that is not cached yet is mapped from its
+   * file, or rebuilt into a direct buffer if it is erasure coded, and added to the cache.
+   *
+   * @return a read-only view of the chunk
+   */
+  ByteBuffer buffer(Manifest manifest, int chunk) throws IOException {
+    String hash = manifest.getHashes().get(chunk);
+    ByteBuffer cached = this.cache.get(hash);
+    if (cached != null) {
+      return cached;
+    }
+    ByteBuffer buffer;
+    if (manifest.isErasureCoded() && !this.contains(hash)) {
+      byte[] data = this.chunk(manifest, chunk);
+      buffer = ByteBuffer.allocateDirect(data.length);
+      buffer.put(data);
+      ((Buffer) buffer).flip();
+    } else {
+      try (FileChannel channel = FileChannel.open(this.fileOf(hash).toPath(),
+          StandardOpenOption.READ)) {
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+    }
+    this.cache.put(hash, buffer);
+    return buffer.asReadOnlyBuffer();
+  }
+
+  /**
+   * Reads a chunk of a file. The chunk of an erasure coded file is rebuilt from the shards of the
+   * first servers that answer, unless this server still has it whole.
+   *
+   * @throws IOException if the chunk is missing or too few shards of it can be read
+   */
+  byte[] chunk(Manifest manifest, int chunk) throws IOException {
+    String hash = manifest.getHashes().get(chunk);
+    if (!manifest.isErasureCoded() || this.contains(hash)) {
+      return this.get(hash);
+    }
+    ReedSolomon code = new ReedSolomon(manifest.getDataShards(), manifest.getParityShards());
+    byte[][] shards = new byte[manifest.getDataShards() + manifest.getParityShards()][];
+    int found = 0;
+    // Data shards come first, with all of them at hand nothing has to be decoded
+    for (int i = 0; i < shards.length && found < manifest.getDataShards(); i++) {
+      String block = shardName(hash, i);
+      try {
+        shards[i] = i == this.shardIndex ? this.get(block) : this.shardSource.fetch(i, block);
+        found++;
+      } catch (Exception e) {
+        logger.log(Level.FINE, "Shard {0} unavailable: {1}", new Object[]{block, e.getMessage()});
+      }
+    }
+    byte[] data = code.decode(shards, manifest.lengthOf(chunk));
+    if (!ContentChunker.hash(data).equals(hash)) {
+      throw new IOException("Shards of chunk " + hash + " are damaged");
+    }
+    return data;
+  }
+
+  /**
+   * Writes a chunk of a file to a channel without copying it through the heap. A cached chunk is
+   * written from its mapping or direct buffer. Other chunks this server keeps whole are sent from
+   * their file with {@link FileChannel#transferTo}, which the platform may do straight from the
+   * page cache, and are not added to the cache, so that a large download does not evict the
+   * chunks read through RMI. Erasure coded chunks are rebuilt through the cache.
+   */
+  void transfer(Manifest manifest, int chunk, WritableByteChannel target) throws IOException {
+    String hash = manifest.getHashes().get(chunk);
+    ByteBuffer buffer = this.cache.get(hash);
+    if (buffer == null && (!manifest.isErasureCoded() || this.contains(hash))) {
+      try (FileChannel channel = FileChannel.open(this.fileOf(hash).toPath(),
+          StandardOpenOption.READ)) {
+        long size = channel.size();
+        long position = 0;
+        while (position < size) {
+          position += channel.transferTo(position, size - position, target);
+        }
+      }
+      return;
+    }
+    if (buffer == null) {
+      buffer = this.buffer(manifest, chunk);
+    }
+    while (buffer.hasRemaining()) {
+      target.write(buffer);
+    }
+  }
+
+  /**
+   * Computes one shard of a chunk of an erasure coded file.
+   */
+  byte[] shard(Manifest manifest, int chunk, int shardIndex) throws IOException {
+    ReedSolomon code = new ReedSolomon(manifest.getDataShards(), manifest.getParityShards());
+    return code.encode(this.chunk(manifest, chunk))[shardIndex];
+  }
+
+  /**
+   * Stores the shards of an erasure coded file this server is missing, rebuilding the chunks
+   * from the shards of other servers if needed.
+   */
+  void rebuild(Manifest manifest) throws IOException {
+    if (!manifest.isErasureCoded() || this.shardIndex < 0) {
+      return;
+    }
+    List<String> missing = this.missing(blocksOf(manifest, this.shardIndex));
+    for (int i = 0; i < manifest.getHashes().size() && !missing.isEmpty(); i++) {
+      String block = shardName(manifest.getHashes().get(i), this.shardIndex);
+      if (missing.remove(block)) {
+        this.put(block, this.shard(manifest, i, this.shardIndex));
+      }
+    }
+  }
+
+  /**
+   * Adds a reference to a file content and all blocks this server keeps of it, unless some of
+   * them are missing.
+   *
+   * @return false if the manifest or a block is missing, no reference is added then
+   */
+  synchronized boolean retain(String content) throws IOException {
+    if (!this.contains(content)) {
+      return false;
+    }
+    List<String> hashes = blocksOf(this.manifest(content), this.shardIndex);
+    for (String hash : hashes) {
+      if (!this.contains(hash)) {
+        return false;
+      }
+    }
+    this.references.merge(content, 1, Integer::sum);
+    hashes.forEach(hash -> this.references.merge(hash, 1, Integer::sum));
+    return true;
+  }
+
+  /**
+   * Drops a reference added by {@link #retain(String)}.
+   */
+  synchronized void release(String content) {
+    if (!this.references.containsKey(content)) {
+      return;
+    }
+    this.references.computeIfPresent(content, (hash, count) -> count > 1 ? count - 1 : null);
+    try {
+      for (String hash : blocksOf(this.manifest(content), this.shardIndex)) {
+        this.references.computeIfPresent(hash, (key, count) -> count > 1 ? count - 1 : null);
+        if (!this.references.containsKey(hash)) {
+          // No file refers to the chunk anymore, do not hold it in memory
+          this.cache.invalidate(chunkOf(hash));
+        }
+      }
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Unable to read manifest {0}", content);
+    }
+  }
+
+  /**
+   * Recounts the references from the contents of all indexed files.
+   */
+  synchronized void recount(Collection<String> contents) {
+    this.references.clear();
+    for (String content : contents) {
+      try {
+        if (!this.retain(content)) {
+          logger.log(Level.WARNING, "Content {0} is incomplete", content);
+        }
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Unable to read manifest {0}", content);
+      }
+    }
+  }
+
+  /**
+   * @return true if the manifest and all blocks this server keeps of a file content are stored
+   */
+  synchronized boolean isComplete(String content) {
+    try {
+      return this.contains(content) && this.missing(blocksOf(this.manifest(content),
+          this.shardIndex)).isEmpty();
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Deletes the chunks no file refers to that were not used for
+   * {@link Constants#TRANSFER_IDLE_TIMEOUT_MS}, along with temporary files left by a crash.
+   */
+  synchronized void collectGarbage() {
+    File[] files = this.dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    long cutOff = System.currentTimeMillis() - Constants.TRANSFER_IDLE_TIMEOUT_MS;
+    int deleted = 0;
+    for (File file : files) {
+      if (this.references.containsKey(file.getName()) || file.lastModified() >= cutOff) {
+        continue;
+      }
+      if (file.delete()) {
+        if (isBlockName(file.getName())) {
+          this.cache.invalidate(chunkOf(file.getName()));
+        }
+        deleted++;
+      } else {
+        logger.log(Level.SEVERE, "Unable to delete chunk {0}", file);
+      }
+    }
+    if (deleted > 0) {
+      logger.log(Level.INFO, "Deleted {0} unused chunks from {1}", new Object[]{deleted, this.dir});
+    }
+  }
+
+  private File fileOf(String hash) {
+    if (!isBlockName(hash)) {
+      throw new IllegalArgumentException("Invalid chunk hash " + hash);
+    }
+    return new File(this.dir, hash);
+  }
+}
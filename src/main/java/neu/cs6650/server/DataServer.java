@@ -0,0 +1,127 @@
+package neu.cs6650.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import neu.cs6650.utils.Constants;
+
+/**
+ * Serves the bytes of downloads over plain sockets, next to RMI which only opens the download
+ * session. A client connects to the data port of the server, sends the id of its session and
+ * reads the file to the end. The session is closed once the file was sent in full, until then
+ * the client can read it through RMI instead. Chunks are never copied into the heap on the way,
+ * see {@link ChunkStore#transfer}: cached chunks are written from their mapping, the others are
+ * sent from their files with {@link java.nio.channels.FileChannel#transferTo}.
+ *
+ * <p>At most {@link Constants#DATA_QUEUE_SIZE} connections wait for one of the
+ * {@link Constants#DATA_THREADS} data threads, further connections are closed without an answer
+ * and the client falls back to reading through RMI.
+ */
+class DataServer {
+
+  private static Logger logger = Logger.getLogger(DataServer.class.getName());
+  // Download session ids are UUIDs
+  private static final int TICKET_BYTES = 36;
+
+  private final ServerSocketChannel serverChannel;
+  private final TransferManager transfers;
+  private final ChunkStore chunks;
+  private final ExecutorService workers;
+  private final Metrics metrics;
+
+  DataServer(int port, TransferManager transfers, ChunkStore chunks, Metrics metrics)
+      throws IOException {
+    this.transfers = transfers;
+    this.chunks = chunks;
+    this.metrics = metrics;
+    this.serverChannel = ServerSocketChannel.open();
+    this.serverChannel.bind(new InetSocketAddress(port));
+    this.workers = new ThreadPoolExecutor(Constants.DATA_THREADS, Constants.DATA_THREADS, 0L,
+        TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Constants.DATA_QUEUE_SIZE), runnable -> {
+          Thread thread = new Thread(runnable, "data-" + port);
+          thread.setDaemon(true);
+          return thread;
+        });
+    Thread acceptor = new Thread(this::acceptConnections, "data-acceptor-" + port);
+    acceptor.setDaemon(true);
+    acceptor.start();
+    logger.log(Level.INFO, "Serving downloads at data port {0}", port);
+  }
+
+  private void acceptConnections() {
+    while (this.serverChannel.isOpen()) {
+      SocketChannel socket;
+      try {
+        socket = this.serverChannel.accept();
+      } catch (IOException e) {
+        if (this.serverChannel.isOpen()) {
+          logger.log(Level.SEVERE, "Unable to accept data connection: {0}", e.getMessage());
+        }
+        continue;
+      }
+      try {
+        this.workers.execute(() -> this.serve(socket));
+      } catch (RejectedExecutionException e) {
+        logger.log(Level.WARNING, "Too many data connections, closing one from {0}",
+            socket.socket().getRemoteSocketAddress());
+        closeQuietly(socket);
+      }
+    }
+  }
+
+  /**
+   * Stops taking connections and aborts the downloads in progress.
+   */
+  void close() {
+    try {
+      this.serverChannel.close();
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Unable to close data port");
+    }
+    this.workers.shutdownNow();
+  }
+
+  private void serve(SocketChannel socket) {
+    String ticket = null;
+    try {
+      ByteBuffer request = ByteBuffer.allocate(TICKET_BYTES);
+      while (request.hasRemaining()) {
+        if (socket.read(request) < 0) {
+          throw new IOException("Connection closed before the ticket was sent");
+        }
+      }
+      ticket = new String(request.array(), StandardCharsets.US_ASCII);
+      Manifest manifest = this.transfers.findDownload(ticket);
+      if (manifest == null) {
+        throw new IOException("Unknown download session " + ticket);
+      }
+      for (int i = 0; i < manifest.getHashes().size(); i++) {
+        this.chunks.transfer(manifest, i, socket);
+      }
+      this.transfers.closeDownload(ticket);
+      this.metrics.add(Metrics.Counter.BYTES_SENT, manifest.getSize());
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Download {0} failed: {1}", new Object[]{ticket, e.getMessage()});
+    } finally {
+      closeQuietly(socket);
+    }
+  }
+
+  private static void closeQuietly(SocketChannel socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Unable to close data connection");
+    }
+  }
+}
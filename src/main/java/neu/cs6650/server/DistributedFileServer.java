@@ -3,31 +3,157 @@ package neu.cs6650.server;
 import java.io.IOException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import neu.cs6650.utils.FileListing;
+import neu.cs6650.utils.InvalidationListener;
 import neu.cs6650.utils.Response;
+import neu.cs6650.utils.ServerStatus;
 
 
 public interface DistributedFileServer extends Remote {
 
   /**
-   * Used to get promise from acceptors
+   * Used to get promise from acceptors for a leader ballot
    *
-   * @param id to propose
-   * @return same id if successful else null
+   * @param id ballot to propose
+   * @param traceId of the request the election is run for, 0 for none
+   * @return last log slot known to the acceptor, a PromiseException is thrown if a higher ballot
+   * was promised already
    * @throws RemoteException upon failure
    */
-  long prepare(long id) throws RemoteException;
+  long prepare(long id, long traceId) throws RemoteException;
 
   /**
-   * Perform the operation promised
+   * Accept the batch of writes proposed for a log slot by the leader of a ballot, committed
+   * batches are applied in slot order
+   *
+   * @param ballot of the leader sending the request
+   * @param slot in the log the batch was assigned to
+   * @param entries writes of the slot, empty for a no-op
+   * @param commitSlot slot up to which the leader committed the log
+   * @param traceId of the first write of the batch, 0 for none
+   * @throws RemoteException upon failure
+   */
+  void acceptRequest(long ballot, long slot, List<LogEntry> entries, long commitSlot,
+      long traceId) throws RemoteException;
+
+  /**
+   * Learn up to which slot the leader of a ballot committed the log
+   *
+   * @param ballot of the leader
+   * @param slot up to which the log is committed
+   * @throws RemoteException upon failure
+   */
+  void commit(long ballot, long slot) throws RemoteException;
+
+  /**
+   * Fetch stored slots of the log, used by servers that missed some slots and by new leaders
+   *
+   * @param fromSlot first slot to return
+   * @return slots starting at fromSlot if it is still retained
+   * @throws RemoteException upon failure
+   */
+  TreeMap<Long, LogSlot> getLogEntries(long fromSlot) throws RemoteException;
+
+  /**
+   * Order a write through the log, used by servers to forward writes to the leader
    *
    * @param operation Accept a file, delete a file, rename a file
    * @param fileName to perform the operation on
-   * @param data file data, null in case of delete, new file name in case of rename and entire file
-   * in case of accept
+   * @param data null in case of delete, new file name in case of rename and the manifest hash and
+   * size of content put through putBlock in case of upload
+   * @param traceId of the client request on the forwarding server
+   * @return response describing the result of the operation
+   * @throws RemoteException upon failure
+   */
+  Response propose(Operation operation, String fileName, byte[] data, long traceId)
+      throws RemoteException;
+
+  /**
+   * Hold a file for the leader renaming it, reads and writes of the file on this server wait
+   * meanwhile
+   *
+   * @param fileName to hold
+   * @param duration of the hold in milliseconds, at most Constants.MAX_FILE_HOLD_MS, the file is
+   * released after it even if the leader is gone
+   * @return true if the file was held for the whole duration
+   * @throws RemoteException upon failure
+   */
+  boolean holdFile(String fileName, long duration) throws RemoteException;
+
+  /**
+   * Find the content chunks the server lacks, so that only those have to be sent with putBlock
+   *
+   * @param hashes SHA-256 of the chunks, as hex strings, followed by a dot and the shard index
+   * for a shard of an erasure coded chunk
+   * @return the hashes of the chunks the server does not store
+   * @throws RemoteException upon failure
+   * @throws IOException if a hash is invalid or the server is overloaded
+   */
+  List<String> missingChunks(List<String> hashes) throws RemoteException, IOException;
+
+  /**
+   * Store a content chunk, shard or manifest, used by clients uploading files and by servers
+   * sending the content of an upload to their peers
+   *
+   * @param hash SHA-256 of the data, as hex string, or the hash of the chunk followed by a dot and
+   * the shard index for a shard
+   * @param data of the chunk
+   * @throws RemoteException upon failure
+   */
+  void putBlock(String hash, byte[] data) throws RemoteException, IOException;
+
+  /**
+   * Store a content chunk, shard or manifest of an upload the leader replicates, like putBlock
+   * but admitted apart from client requests so that client uploads cannot turn replication away
+   *
+   * @param hash SHA-256 of the data, as hex string, or the hash of the chunk followed by a dot and
+   * the shard index for a shard
+   * @param data of the chunk
+   * @throws RemoteException upon failure
+   */
+  void replicateBlock(String hash, byte[] data) throws RemoteException, IOException;
+
+  /**
+   * Read a content chunk, shard or manifest, used by servers fetching content they missed and
+   * rebuilding erasure coded chunks
+   *
+   * @param hash SHA-256 of the data, as hex string, or the hash of the chunk followed by a dot and
+   * the shard index for a shard
+   * @return the data of the chunk
    * @throws RemoteException upon failure
    */
-  void acceptRequest(Operation operation, String fileName, byte[] data) throws RemoteException, IOException;
+  byte[] getBlock(String hash) throws RemoteException, IOException;
+
+  /**
+   * Report that the server is up along with its state, used by the load balancers to track which
+   * servers to hand out
+   *
+   * @return state of the server
+   * @throws RemoteException upon failure
+   */
+  ServerStatus heartbeat() throws RemoteException;
+
+  /**
+   * Summarize the file index for anti-entropy, files are hashed into buckets by name and every
+   * bucket is summarized by one digest
+   *
+   * @param uptoSlot only files last changed at or before this slot are summarized
+   * @return the slot this server applied up to, followed by the digest of every bucket
+   * @throws RemoteException upon failure
+   */
+  long[] getIndexDigests(long uptoSlot) throws RemoteException;
+
+  /**
+   * Fetch the files of some buckets of the file index, used by anti-entropy
+   *
+   * @param buckets to list the files of, null for all files
+   * @return the files along with the slot the index is at
+   * @throws RemoteException upon failure
+   */
+  FileIndex.Snapshot getIndexEntries(List<Integer> buckets) throws RemoteException;
 
   /**
    * Fetches all files from the neu.cs6650.server
@@ -37,6 +163,18 @@ public interface DistributedFileServer extends Remote {
    */
   Map<Integer, String> getAllFilesOnServer() throws RemoteException;
 
+  /**
+   * Fetch the files on the server unless they did not change since the version the client holds,
+   * and lease the listing to the client
+   *
+   * @param knownVersion of the listing the client holds, -1 if it holds none
+   * @param listener to send invalidations to while the lease lasts, null for no lease
+   * @return the listing, without files if the version of the client is current
+   * @throws RemoteException upon failure
+   */
+  FileListing getFileListing(long knownVersion, InvalidationListener listener)
+      throws RemoteException;
+
   /**
    * Upload a file from the neu.cs6650.client
    *
@@ -47,6 +185,55 @@ public interface DistributedFileServer extends Remote {
    */
   Response uploadFile(byte[] fileContent, String fileName) throws RemoteException;
 
+  /**
+   * Open a chunked upload session, chunks are then sent with putChunk and the upload is finished
+   * with commitUpload
+   *
+   * @param fileName to be set
+   * @return id of the upload session
+   * @throws RemoteException upon failure
+   */
+  String openUpload(String fileName) throws RemoteException, IOException;
+
+  /**
+   * Write a chunk of an open upload session
+   *
+   * @param sessionId returned by openUpload
+   * @param offset of the chunk in the file, at most the number of bytes written so far
+   * @param chunk at most Constants.CHUNK_SIZE bytes of the file
+   * @throws RemoteException upon failure
+   */
+  void putChunk(String sessionId, long offset, byte[] chunk) throws RemoteException, IOException;
+
+  /**
+   * Replicate the file of an upload session to all servers
+   *
+   * @param sessionId returned by openUpload
+   * @return response describing the result of the upload
+   * @throws RemoteException upon failure
+   */
+  Response commitUpload(String sessionId) throws RemoteException;
+
+  /**
+   * Upload a file whose chunks were put with putBlock already
+   *
+   * @param fileName to be set
+   * @param hashes of the chunks of the file in order, as split by ContentChunker
+   * @return response describing the result of the upload
+   * @throws RemoteException upon failure
+   */
+  Response commitChunks(String fileName, List<String> hashes) throws RemoteException;
+
+  /**
+   * Upload a file whose chunks were put with putBlock already, unless a file with the name exists
+   *
+   * @param fileName to be set
+   * @param hashes of the chunks of the file in order, as split by ContentChunker
+   * @return response describing the result of the upload, EXISTS if a file has the name already
+   * @throws RemoteException upon failure
+   */
+  Response createChunks(String fileName, List<String> hashes) throws RemoteException;
+
   /**
    * Download a file
    *
@@ -56,6 +243,36 @@ public interface DistributedFileServer extends Remote {
    */
   Response downloadFile(String fileName) throws RemoteException;
 
+  /**
+   * Open a download session. The file is then either read chunk by chunk with getChunk, or read
+   * in one go by connecting to the data port, the RMI port plus Constants.DATA_PORT_OFFSET, and
+   * sending the session id, which ends the session
+   *
+   * @param fileId of the file to be downloaded
+   * @return response holding the session id as return value and the file size, the return value
+   * is null if the file does not exist
+   * @throws RemoteException upon failure
+   */
+  Response openDownload(String fileId) throws RemoteException;
+
+  /**
+   * Read a chunk of an open download session
+   *
+   * @param sessionId returned by openDownload
+   * @param offset of the chunk in the file
+   * @return at most Constants.CHUNK_SIZE bytes, empty at the end of the file
+   * @throws RemoteException upon failure
+   */
+  byte[] getChunk(String sessionId, long offset) throws RemoteException, IOException;
+
+  /**
+   * Close a download session
+   *
+   * @param sessionId returned by openDownload
+   * @throws RemoteException upon failure
+   */
+  void closeDownload(String sessionId) throws RemoteException, IOException;
+
   /**
    * Delete file from neu.cs6650.server
    *
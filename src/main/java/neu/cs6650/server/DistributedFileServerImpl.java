@@ -2,399 +2,1659 @@ package neu.cs6650.server;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
-import java.nio.channels.OverlappingFileLockException;
-import java.rmi.NotBoundException;
+import java.io.UncheckedIOException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import neu.cs6650.utils.AsyncLogHandler;
 import neu.cs6650.utils.Constants;
+import neu.cs6650.utils.FileListing;
+import neu.cs6650.utils.InvalidationListener;
 import neu.cs6650.utils.Response;
+import neu.cs6650.utils.ServerStatus;
+import neu.cs6650.utils.ShardRing;
+import neu.cs6650.utils.Status;
+import neu.cs6650.utils.StubCache;
 
 public class DistributedFileServerImpl extends UnicastRemoteObject implements
     DistributedFileServer {
 
-  private static Set<Integer> serverPorts = new HashSet<>(
-      Arrays.asList(7000, 7001, 7002, 7003, 7004));
   private static Logger logger = Logger.getLogger(DistributedFileServerImpl.class.getName());
-  private Map<Integer, String> fileNameAndNumber;
+  // Logs every request, sampled under load unlike the records of elections and recovery
+  private static Logger requestLogger = AsyncLogHandler.requestLogger(
+      DistributedFileServerImpl.class);
+  private static final String RENAME_SUCCESS = "Rename successful.";
+  private FileIndex fileIndex;
   private int serverId;
+  private final ShardRing ring = new ShardRing(Constants.SHARD_GROUPS,
+      Constants.DRAINING_SHARD_GROUPS, Constants.SHARD_VIRTUAL_NODES);
+  // Replica group of the server, its peers are the other servers of the group
+  private final int group;
+  private final Set<Integer> serverPorts = new HashSet<>();
   private String directory;
-  private long paxosId = System.currentTimeMillis();
-  private int localServerFileCount;
-  private Response renameResponse = new Response();
-  Set<String> lockedFileIds = new HashSet<String>();
-  private boolean isDeletePossible;
+  private final PaxosState paxos;
+  private final Metrics metrics;
+  private final FileLocks fileLocks;
+  private final AdmissionControl admission;
+  private TransferManager transfers;
+  private final ChunkStore chunks;
+  private final ExecutorService peerExecutor;
+  private final WriteAheadLog wal;
+  private final File snapshotFile;
+  private final AntiEntropy antiEntropy;
+  private final LeaseTable leases;
+  private final RequestStats requests = new RequestStats();
+  private final ScheduledExecutorService repairer;
+  // Null if the data port could not be opened
+  private final DataServer dataServer;
+  private volatile long snapshotSlot;
+  private final ReplicatedLog log;
+  private final BlockingQueue<PendingWrite> pendingWrites = new LinkedBlockingQueue<>(
+      Constants.MAX_PENDING_WRITES);
+  private final Semaphore batchesInFlight = new Semaphore(Constants.MAX_BATCHES_IN_FLIGHT);
+  private final ExecutorService batchExecutor;
+  private final AtomicBoolean catchingUp = new AtomicBoolean();
+  // Next file id this server gives out while leader, see nextFileId
+  private final AtomicInteger fileIds = new AtomicInteger();
+  private volatile long lastSentCommit;
+  private volatile long lastHeartbeat;
 
   public DistributedFileServerImpl(int serverPort) throws RemoteException {
+    group = ring.groupOfPort(serverPort);
+    if (group < 0) {
+      logger.log(Level.SEVERE, "Port {0} is in no replica group", serverPort);
+      throw new IllegalArgumentException("Port " + serverPort + " is in no replica group");
+    }
+    Arrays.stream(ring.ports(group)).forEach(serverPorts::add);
     serverPorts.remove(serverPort);
     serverId = serverPort;
-    fileNameAndNumber = new HashMap<>();
+    metrics = new Metrics(serverPorts.stream().mapToInt(Integer::intValue).toArray());
+    fileLocks = new FileLocks(metrics);
+    admission = new AdmissionControl(metrics);
+    paxos = new PaxosState(serverPort);
     directory = String.valueOf(serverId);
     File newDir = new File(directory);
-    this.delete(newDir);
-    if (!newDir.mkdir()) {
+    if (!newDir.isDirectory() && !newDir.mkdir()) {
       logger.log(Level.SEVERE, "Unable to create directory");
       throw new RuntimeException();
     }
-    localServerFileCount = 0;
-  }
+    ChunkCache cache = new ChunkCache(Constants.CHUNK_CACHE_BYTES);
+    cache.register(serverPort);
+    chunks = new ChunkStore(new File(newDir, Constants.CHUNKS_DIR), this.shardIndexOf(serverPort),
+        (shardIndex, block) -> this.callPeer(ring.ports(group)[shardIndex],
+            dfs -> dfs.getBlock(block)), cache);
+    leases = new LeaseTable(serverPort);
+    transfers = new TransferManager(new File(newDir, Constants.STAGING_DIR), chunks);
+    peerExecutor = new ThreadPoolExecutor(Constants.PEER_THREADS, Constants.PEER_THREADS, 60L,
+        TimeUnit.SECONDS, new ArrayBlockingQueue<>(Constants.PEER_QUEUE_SIZE), runnable -> {
+          Thread thread = new Thread(runnable, "peer-rpc-" + serverPort);
+          thread.setDaemon(true);
+          return thread;
+        });
+    wal = new WriteAheadLog(new File(newDir, Constants.WAL_DIR), chunks.getDir());
+    log = new ReplicatedLog(new ReplicatedLog.Applier() {
+      @Override
+      public Response apply(long slot, LogEntry entry) {
+        return applyEntry(slot, entry);
+      }
 
-  private void delete(File f) {
-    if (f.isDirectory()) {
-      for (File c : f.listFiles()) {
-        delete(c);
+      @Override
+      public void replay(long slot, LogEntry entry, Status result) {
+        replayEntry(slot, entry, result);
       }
+    }, wal);
+    // Pick up where the server stopped instead of starting over with an empty directory, from the
+    // snapshot of the index and the writes recorded after it
+    File indexDir = new File(newDir, Constants.INDEX_DIR);
+    snapshotFile = new File(indexDir, "snapshot");
+    if (!indexDir.isDirectory() && !indexDir.mkdir()) {
+      logger.log(Level.SEVERE, "Unable to create index directory");
+      throw new RuntimeException();
+    }
+    try {
+      if (snapshotFile.exists()) {
+        FileIndex.Snapshot snapshot = FileIndex.Snapshot.read(snapshotFile);
+        fileIndex = snapshot.getIndex();
+        snapshotSlot = snapshot.getSlot();
+        paxos.restore(snapshot.getPromisedBallot(), snapshot.getSlot());
+        log.restoreSnapshot(snapshot.getSlot());
+      } else {
+        fileIndex = new FileIndex(ring.firstId(group));
+      }
+      wal.replay(record -> {
+        paxos.restore(record.getBallot(), record.getSlot());
+        log.restore(record);
+      });
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Unable to restore state: {0}", e.getMessage());
+      throw new RuntimeException(e);
+    }
+    chunks.recount(fileIndex.contents());
+    logger.log(Level.INFO, "FileServer at port {0} restored {1} files up to slot {2}",
+        new Object[]{serverId, fileIndex.size(), log.getAppliedSlot()});
+    batchExecutor = Executors.newFixedThreadPool(Constants.MAX_BATCHES_IN_FLIGHT, runnable -> {
+      Thread thread = new Thread(runnable, "batch-" + serverPort);
+      thread.setDaemon(true);
+      return thread;
+    });
+    Thread batcher = new Thread(this::runBatcher, "batcher-" + serverPort);
+    batcher.setDaemon(true);
+    batcher.start();
+    ScheduledExecutorService committer = Executors.newSingleThreadScheduledExecutor(
+        runnable -> {
+          Thread thread = new Thread(runnable, "committer-" + serverPort);
+          thread.setDaemon(true);
+          return thread;
+        });
+    committer.scheduleWithFixedDelay(this::sendCommits, Constants.COMMIT_INTERVAL_MS,
+        Constants.COMMIT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    committer.scheduleWithFixedDelay(this::syncAppliedSlots, Constants.COMMIT_INTERVAL_MS,
+        Constants.COMMIT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    committer.scheduleWithFixedDelay(() -> this.checkpoint(false),
+        Constants.CHECKPOINT_INTERVAL_MS, Constants.CHECKPOINT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    antiEntropy = new AntiEntropy(serverPort, fileIndex, log, chunks, serverPorts,
+        () -> {
+          this.checkpoint(true);
+          this.leases.invalidateAll();
+        });
+    repairer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "anti-entropy-" + serverPort);
+      thread.setDaemon(true);
+      return thread;
+    });
+    repairer.scheduleWithFixedDelay(antiEntropy::run, Constants.ANTI_ENTROPY_INTERVAL_MS,
+        Constants.ANTI_ENTROPY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    ShardHandoff handoff = new ShardHandoff(serverPort, group, ring, fileIndex, chunks, fileLocks,
+        metrics, this.paxos::getLeaderPort, name -> this.order(Operation.DELETE_FILE, name, null));
+    repairer.scheduleWithFixedDelay(handoff::run, Constants.SHARD_HANDOFF_INTERVAL_MS,
+        Constants.SHARD_HANDOFF_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    repairer.scheduleWithFixedDelay(chunks::collectGarbage, Constants.CHUNK_GC_INTERVAL_MS,
+        Constants.CHUNK_GC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    DataServer data = null;
+    try {
+      data = new DataServer(serverPort + Constants.DATA_PORT_OFFSET, transfers, chunks, metrics);
+    } catch (IOException e) {
+      // Clients fall back to reading downloads chunk by chunk through RMI
+      logger.log(Level.SEVERE, "Unable to open data port: {0}", e.getMessage());
     }
-    if (!f.delete()) {
-      logger.log(Level.SEVERE, "Failed to delete file : {0}", f);
+    dataServer = data;
+    metrics.export(serverPort);
+  }
+
+  /**
+   * Closes the ports the server opened next to RMI. The server object has to be unexported
+   * separately.
+   */
+  public void shutdown() {
+    if (this.dataServer != null) {
+      this.dataServer.close();
+    }
+    this.metrics.close();
+  }
+
+  /**
+   * A write waiting at the leader to be put into a batch.
+   */
+  private static class PendingWrite {
+
+    private final LogEntry entry;
+    private final Trace trace;
+    private final CompletableFuture<Response> result = new CompletableFuture<>();
+
+    PendingWrite(LogEntry entry, Trace trace) {
+      this.entry = entry;
+      this.trace = trace;
+    }
+
+    void fail() {
+      this.result.complete(new Response(Status.UNAVAILABLE,
+          entry.getOperation().failureMessage()));
     }
   }
 
   @Override
-  public long prepare(long id) {
-    logger.log(Level.INFO, "Proposal Id at port {0} is {1} and current server paxos Id is {2}",
-        new Object[]{serverId, id, paxosId});
+  public long prepare(long id, long traceId) {
+    try (AdmissionControl.Ticket ticket = this.admission.admit(
+        AdmissionControl.RequestClass.CONSENSUS, 0)) {
+      if (ticket == null) {
+        throw this.overloadedException();
+      }
+      Trace trace = Trace.resume(traceId);
+      try {
+        logger.log(Level.INFO,
+            "Proposal Id at port {0} is {1} and current leader is {2}, trace {3}",
+            new Object[]{serverId, id, paxos.getLeaderPort(), Long.toHexString(traceId)});
+        long lastSlot = this.paxos.promise(id);
+        try {
+          this.wal.sync(this.wal.append(WalRecord.promise(id)));
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        if (trace.elapsedMillis() >= Constants.SLOW_REQUEST_MS) {
+          logger.log(Level.WARNING, "Slow promise of ballot {0}: {1} ms, trace {2}",
+              new Object[]{id, trace.elapsedMillis(), trace});
+        }
+        return lastSlot;
+      } finally {
+        Trace.end();
+      }
+    }
+  }
 
-    if (this.paxosId > id) {
-      throw new PromiseException("Requester Id lower than Acceptor Id");
+  /**
+   * Makes the applied slots recorded since the last sync durable. Accepts sync on their own before
+   * they are acknowledged, applied slots only need to reach the disk eventually.
+   */
+  private void syncAppliedSlots() {
+    try {
+      this.wal.sync();
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Unable to sync write-ahead log: {0}", e.getMessage());
+    }
+  }
+
+  /**
+   * Saves the file index as a snapshot once enough slots were applied since the last one and
+   * removes the write-ahead log segments it made obsolete. A few slots before the snapshot stay in
+   * the log, so that replicas lagging slightly behind can still catch up from this server after
+   * it restarted.
+   *
+   * @param force to save the snapshot right away, after anti-entropy changed the index
+   * @return true if a snapshot was saved
+   */
+  private synchronized boolean checkpoint(boolean force) {
+    if (!force && this.log.getAppliedSlot() - this.snapshotSlot < Constants.INDEX_SNAPSHOT_SLOTS) {
+      return false;
+    }
+    FileIndex.Snapshot snapshot = this.log.atAppliedSlot(slot -> new FileIndex.Snapshot(slot,
+        this.paxos.getPromisedBallot(), this.fileIndex.copy()));
+    try {
+      // The chunks the snapshot refers to have to be durable before the records describing
+      // them go
+      this.wal.sync();
+      snapshot.write(this.snapshotFile);
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Unable to save index snapshot: {0}", e.getMessage());
+      return false;
     }
-    logger.log(Level.INFO, "New paxos id at port {0} is {1}", new Object[]{serverId, paxosId});
-    this.paxosId = id;
-    return this.paxosId;
+    this.snapshotSlot = snapshot.getSlot();
+    this.wal.truncate(snapshot.getSlot() - Constants.WAL_RETAINED_SLOTS,
+        snapshot.getPromisedBallot());
+    logger.log(Level.INFO, "Saved index snapshot of {0} files at slot {1}",
+        new Object[]{snapshot.getIndex().size(), snapshot.getSlot()});
+    return true;
   }
 
-  private Set<Integer> sendPrepare() {
+  /**
+   * Runs a prepare round with a new ballot and makes this server leader if a majority promised.
+   * Package-private so that the consensus benchmarks can run rounds on their own.
+   *
+   * @return the ballot this server now leads with, 0 if consensus was not reached
+   */
+  long sendPrepare() {
+    return this.sendPrepare(null);
+  }
 
+  /**
+   * @param trace of the write the election is run for, null for none
+   */
+  private long sendPrepare(Trace trace) {
+    long ballot = this.paxos.nextBallot();
     logger.log(Level.INFO, "Trying with paxos id {0} to get consensus for FileServer at port {1} ",
-        new Object[]{paxosId, serverId});
+        new Object[]{ballot, serverId});
 
-    Set<Integer> promisedPorts = new HashSet<>();
-    int upServers = 0;
+    long start = System.nanoTime();
+    QuorumCall<Long> promises = QuorumCall.send(this.peerExecutor, serverPorts, port -> {
+      long response = this.callPeer(Metrics.Phase.PREPARE, port, trace,
+          dfs -> dfs.prepare(ballot, Trace.idOf(trace)));
+      logger.log(Level.INFO, "Response received from Server at port {0} with last slot {1}",
+          new Object[]{port, response});
+      return response;
+    }, this.peerQuorum(), Constants.PEER_RPC_TIMEOUT_MS, "Prepare", null);
+    this.metrics.round(Metrics.Phase.PREPARE, microsSince(start));
 
-    for (int port : serverPorts) {
-      try {
-        DistributedFileServer dfs = (DistributedFileServer) LocateRegistry.getRegistry(port)
-            .lookup(Constants.SERVER_NAME);
-        long response = dfs.prepare(this.paxosId);
-        promisedPorts.add(port);
-        logger.log(Level.INFO, "Response received from Server at port {0} with id {1}",
-            new Object[]{port, response});
-        upServers++;
-      } catch (RemoteException | NotBoundException e) {
-        logger.log(Level.SEVERE, "Server at port {0} is down", port);
-      } catch (PromiseException p) {
-        upServers++;
-        logger.log(Level.SEVERE, p.getMessage());
-      }
-    }
-
-    int numPromises = promisedPorts.size() + 1;
-    int liveServers = upServers + 1;
-    double upPercent = ((double) (numPromises) / liveServers);
-
-    if (upPercent > 0.5) {
-      logger.log(Level.INFO,
-          "Consensus SUCCESS: {0} / {1} ACCEPTORS promised. Majority reached for {2} ",
-          new Object[]{numPromises, liveServers, serverId});
+    // The majority is one of the whole group, peers that did not answer count against it
+    int numPromises = promises.getResponses().size() + 1;
+    int groupSize = serverPorts.size() + 1;
+    long highestSlot = promises.getResponses().values().stream().mapToLong(Long::longValue)
+        .max().orElse(0);
 
-      return promisedPorts;
+    if (promises.getResponses().size() >= this.peerQuorum() && this.promiseOwnBallot(ballot)
+        && this.paxos.becomeLeader(ballot, highestSlot)) {
+      logger.log(Level.INFO,
+          "Consensus SUCCESS: {0} / {1} ACCEPTORS promised. {2} is leader with paxos id {3}",
+          new Object[]{numPromises, groupSize, serverId, ballot});
+      this.recoverSlots(ballot, Math.max(highestSlot, this.log.getLastSlot()),
+          promises.getResponses().keySet());
+      return this.paxos.getLeaderBallot();
     } else {
-      logger.log(Level.SEVERE,
-          "Consensus FAILED: {0} / {1} ACCEPTORS promised. Majority was not reached for {2} ",
-          new Object[]{numPromises, liveServers, serverId});
-      // Increase the id in case of consensus failure
-      this.paxosId = new Date().getTime();
-      return null;
+      logger.log(Level.SEVERE, "Consensus FAILED: {0} / {1} ACCEPTORS promised, {2} rejected, "
+          + "{3} failed and {4} timed out. Majority was not reached for {5}",
+          new Object[]{numPromises, groupSize, promises.getRejections(), promises.getFailures(),
+              promises.getTimeouts(), serverId});
+      return 0;
     }
   }
 
-  private void sendUploadAcceptRequest(int port, byte[] data, String fileName) {
+  /**
+   * Records the promise this server makes to its own ballot, which counts toward the majority.
+   * Without it a restarted server would compute its next ballot from an older promise and could
+   * reuse a ballot it led with already.
+   *
+   * @return false if the promise could not be made durable
+   */
+  private boolean promiseOwnBallot(long ballot) {
     try {
-      ((DistributedFileServer) LocateRegistry
-          .getRegistry(port).lookup(Constants.SERVER_NAME))
-          .acceptRequest(Operation.UPLOAD_FILE, fileName, data);
-    } catch (Exception e) {
-      logger.log(Level.SEVERE, "Failed to Accept Request for FileServer at port {}", port);
+      this.wal.sync(this.wal.append(WalRecord.promise(ballot)));
+      return true;
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Unable to record promise of own ballot {0}: {1}",
+          new Object[]{ballot, e.getMessage()});
+      return false;
+    }
+  }
+
+  /**
+   * Returns the ballot this server leads with, running an election first if it is not leader.
+   *
+   * @return the ballot, 0 if leadership could not be acquired
+   */
+  private long acquireLeadership(Trace trace) {
+    long ballot = this.paxos.getLeaderBallot();
+    int retries = 0;
+    // Retries till it does not get consensus or learns of another leader to hand writes to
+    while (ballot == 0 && retries < Constants.RETRY_COUNT && (this.paxos.getLeaderPort() == 0
+        || this.paxos.getLeaderPort() == this.serverId)) {
+      if (retries > 0) {
+        this.metrics.count(Metrics.Counter.RETRIES);
+        // Back off a random amount so that competing candidates do not keep out-bidding each other
+        try {
+          Thread.sleep(ThreadLocalRandom.current().nextLong(Constants.ELECTION_BACKOFF_MS));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return 0;
+        }
+      }
+      ballot = this.sendPrepare(trace);
+      retries++;
     }
+    return ballot;
+  }
+
+  /**
+   * Number of peer answers that, together with this server, form a majority of the cluster.
+   */
+  private int peerQuorum() {
+    return (serverPorts.size() + 1) / 2;
   }
 
-  private void sendDeleteAcceptRequest(int port, String fileName) {
+  private <R> R callPeer(int port, StubCache.RemoteCall<DistributedFileServer, R> call)
+      throws Exception {
+    return StubCache.call(Constants.IP, port, Constants.SERVER_NAME, call);
+  }
+
+  /**
+   * Calls a peer for a phase of a write, recording the round trip in the metrics and in the trace
+   * of the write, which may be null.
+   */
+  private <R> R callPeer(Metrics.Phase phase, int port, Trace trace,
+      StubCache.RemoteCall<DistributedFileServer, R> call) throws Exception {
+    long start = System.nanoTime();
     try {
-      ((DistributedFileServer) LocateRegistry
-          .getRegistry(port).lookup("FileServer"))
-          .acceptRequest(Operation.DELETE_FILE, fileName, null);
+      return this.callPeer(port, call);
+    } catch (PromiseException e) {
+      this.metrics.count(Metrics.Counter.PROMISE_REJECTIONS);
+      throw e;
     } catch (Exception e) {
-      logger.log(Level.SEVERE, "Failed to Accept Request for FileServer at port {0} ", port);
+      this.metrics.count(Metrics.Counter.PEER_FAILURES);
+      throw e;
+    } finally {
+      long micros = microsSince(start);
+      this.metrics.roundTrip(phase, port, micros);
+      if (trace != null) {
+        trace.span(phase, port, micros);
+      }
+    }
+  }
+
+  private static long microsSince(long start) {
+    return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+  }
+
+  /**
+   * @return index of the shards a server keeps of erasure coded files, -1 for none
+   */
+  private int shardIndexOf(int port) {
+    int[] ports = this.ring.ports(this.group);
+    for (int i = 0; i < ports.length; i++) {
+      if (ports[i] == port) {
+        return i;
+      }
     }
+    return -1;
+  }
+
+  /**
+   * @return whether files with the name belong to the replica group of this server
+   */
+  private boolean ownsName(String fileName) {
+    return this.ring.groupOf(fileName) == this.group;
   }
 
-  private void sendRenameAcceptRequest(int port, byte[] data, String fileName) {
+  /**
+   * Sends the chunks of a file content to every peer, so that they can accept the upload later,
+   * or only the shard of every chunk a peer keeps if the file is erasure coded. Every peer is
+   * asked which blocks it lacks first and only gets those. Waits until all peers got their copy
+   * or the deadline passed.
+   */
+  private void distributeContent(String content, Manifest manifest) {
+    long megabytes = manifest.getSize() / Constants.CHUNK_SIZE + 1;
+    Trace trace = Trace.current();
+    long start = System.nanoTime();
+    QuorumCall.send(this.peerExecutor, serverPorts, port -> this.callPeer(Metrics.Phase.TRANSFER,
+        port, trace, dfs -> {
+          int shardIndex = shardIndexOf(port);
+          List<String> blocks = new ArrayList<>(ChunkStore.blocksOf(manifest, shardIndex));
+          // The manifest goes last, a peer that has it has the whole content
+          blocks.add(content);
+          Set<String> missing = new HashSet<>(dfs.missingChunks(blocks));
+          for (int i = 0; i < blocks.size() - 1; i++) {
+            String block = blocks.get(i);
+            if (missing.remove(block)) {
+              this.sendBlock(dfs, block, manifest.isErasureCoded()
+                  ? this.chunks.shard(manifest, i, shardIndex) : this.chunks.get(block));
+            }
+          }
+          if (missing.contains(content)) {
+            this.sendBlock(dfs, content, this.chunks.get(content));
+          }
+          return true;
+        }), serverPorts.size(), Constants.PEER_RPC_TIMEOUT_MS * megabytes, "Content transfer",
+        null);
+    this.metrics.round(Metrics.Phase.TRANSFER, microsSince(start));
+  }
+
+  private void sendBlock(DistributedFileServer peer, String hash, byte[] data)
+      throws IOException {
+    peer.replicateBlock(hash, data);
+    this.metrics.add(Metrics.Counter.BYTES_SENT, data.length);
+  }
+
+  /**
+   * Replicates a file content stored on this server and orders its upload through the log.
+   */
+  private Response replicateUpload(Operation operation, String fileName, String content) {
+    Manifest manifest;
     try {
-      ((DistributedFileServer) LocateRegistry
-          .getRegistry(port).lookup("FileServer"))
-          .acceptRequest(Operation.RENAME_FILE, fileName, data);
-    } catch (Exception e) {
-      logger.log(Level.SEVERE, "Failed to Accept Request for FileServer at port {0} ", port);
+      manifest = this.chunks.manifest(content);
+      this.chunks.rebuild(manifest);
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Upload failed due to: {0}", e.getMessage());
+      return new Response(Status.FAILED, "UPLOAD FAILED!");
     }
+    this.distributeContent(content, manifest);
+    return this.submit(operation, fileName, (content + "," + manifest.getSize()).getBytes());
   }
 
+  /**
+   * Hands a write to the leader, or proposes it from this server if there is no reachable leader.
+   */
+  private Response submit(Operation operation, String fileName, byte[] data) {
+    Response resp = null;
+    Trace trace = Trace.current();
+    for (int retries = 0; retries < Constants.RETRY_COUNT; retries++) {
+      if (retries > 0) {
+        this.metrics.count(Metrics.Counter.RETRIES);
+      }
+      int leader = this.paxos.getLeaderPort();
+      if (leader != 0 && leader != this.serverId) {
+        try {
+          requestLogger.log(Level.INFO, "Forwarding {0} of {1} to leader at port {2}",
+              new Object[]{operation, fileName, leader});
+          return this.callPeer(Metrics.Phase.FORWARD, leader, trace,
+              dfs -> dfs.propose(operation, fileName, data, Trace.idOf(trace)));
+        } catch (Exception e) {
+          logger.log(Level.SEVERE, "Leader at port {0} is down, proposing from {1}",
+              new Object[]{leader, serverId});
+          this.paxos.leaderFailed(leader);
+          this.metrics.count(Metrics.Counter.RETRIES);
+        }
+      }
+      resp = this.proposeLocally(operation, fileName, data);
+      int newLeader = this.paxos.getLeaderPort();
+      if (resp.getStatus() != Status.UNAVAILABLE || newLeader == 0
+          || newLeader == this.serverId) {
+        return resp;
+      }
+      // Another server won the leadership meanwhile, hand the write to it
+    }
+    return resp;
+  }
 
   @Override
-  public void acceptRequest(Operation operation, String fileName, byte[] data) throws IOException {
-    if (operation == Operation.UPLOAD_FILE) {
-      this.writeToFile(fileName, data);
-    } else if (operation == Operation.DELETE_FILE) {
-      this.deleteFileWithName(fileName);
-    } else {
-      this.renameFileWithName(fileName, data);
+  public Response propose(Operation operation, String fileName, byte[] data, long traceId) {
+    try (AdmissionControl.Ticket ticket = this.admission.admit(
+        AdmissionControl.RequestClass.WRITE, 0)) {
+      if (ticket == null) {
+        return this.overloaded(operation.failureMessage());
+      }
+      Trace trace = Trace.resume(traceId);
+      try {
+        Response resp = this.proposeLocally(operation, fileName, data);
+        if (trace.elapsedMillis() >= Constants.SLOW_REQUEST_MS) {
+          logger.log(Level.WARNING, "Slow forwarded {0} of {1}: {2} ms, trace {3}",
+              new Object[]{operation, fileName, trace.elapsedMillis(), trace});
+        }
+        return resp;
+      } finally {
+        Trace.end();
+      }
     }
   }
 
+  /**
+   * Orders a write through the log from this server, after taking the lock of the file.
+   */
+  private Response proposeLocally(Operation operation, String fileName, byte[] data) {
+    Response resp = new Response(Status.LOCKED, operation.failureMessage());
+    // Every write passes through the leader, so its locks order the writes of a file
+    try (FileLocks.Hold hold = this.fileLocks.write(fileName, Constants.FILE_LOCK_TIMEOUT_MS)) {
+      if (hold == null) {
+        requestLogger.log(Level.INFO, "{0} of {1} timed out waiting for the file",
+            new Object[]{operation, fileName});
+        if (operation == Operation.DELETE_FILE) {
+          resp.setMessage("File locked, cannot delete. Try again later.");
+        } else if (operation == Operation.RENAME_FILE) {
+          resp.setMessage("File locked for renaming. Try again later.");
+        }
+        return resp;
+      }
+      if (operation == Operation.RENAME_FILE
+          && !this.holdForRename(fileName, Long.parseLong(new String(data).split(",")[1]))) {
+        resp.setMessage("File locked for renaming. Try again later.");
+        return resp;
+      }
+      return this.order(operation, fileName, data);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      resp.setStatus(Status.FAILED);
+      return resp;
+    }
+  }
 
-  private void deleteFileWithName(String fileName) throws IOException {
-    if (this.lockedFileIds.contains(fileName)) {
-      this.isDeletePossible = false;
-      return;
+  /**
+   * Queues a write for the batcher and waits until it was applied.
+   */
+  private Response order(Operation operation, String fileName, byte[] data) {
+    Response resp = new Response(Status.UNAVAILABLE, operation.failureMessage());
+    PendingWrite write = new PendingWrite(new LogEntry(operation, fileName, data),
+        Trace.current());
+    if (!this.pendingWrites.offer(write)) {
+      logger.log(Level.WARNING, "Too many pending writes at port {0}", serverId);
+      return this.overloaded(operation.failureMessage());
     }
-    this.isDeletePossible = true;
-    File f = new File(this.directory, fileName);
-    if (f.delete()) {
-      this.fileNameAndNumber.entrySet().removeIf(entry -> entry.getValue().equals(fileName));
-      logger.log(Level.INFO, "Successfully deleted file at FileServer {0} with name {1}",
-          new Object[]{serverId, fileName});
-    } else {
-      throw new IOException("Unable to Delete File with name : " + fileName);
+    try {
+      return write.result.get(Constants.WRITE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException | TimeoutException e) {
+      logger.log(Level.SEVERE, "{0} of {1} was not applied in time",
+          new Object[]{operation, fileName});
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
+    return resp;
   }
 
-  private void renameFileWithName(String fileName, byte[] data) throws FileNotFoundException {
+  /**
+   * Groups the writes waiting at the leader into batches, one batch per log slot, and keeps up to
+   * Constants.MAX_BATCHES_IN_FLIGHT batches replicating at the same time.
+   */
+  private void runBatcher() {
+    while (true) {
+      List<PendingWrite> batch = new ArrayList<>();
+      try {
+        batch.add(this.pendingWrites.take());
+        this.pendingWrites.drainTo(batch, Constants.MAX_BATCH_SIZE - 1);
+        this.batchesInFlight.acquire();
+      } catch (InterruptedException e) {
+        batch.forEach(PendingWrite::fail);
+        return;
+      }
+      long ballot = this.acquireLeadership(batch.get(0).trace);
+      long slot = ballot == 0 ? -1 : this.paxos.reserveSlot(ballot);
+      if (slot < 0) {
+        this.batchesInFlight.release();
+        batch.forEach(PendingWrite::fail);
+        continue;
+      }
+      this.batchExecutor.execute(() -> {
+        try {
+          this.replicateBatch(ballot, slot, batch);
+        } finally {
+          this.batchesInFlight.release();
+        }
+      });
+    }
+  }
 
-    File file = new File(this.directory, fileName);
-    String str = new String(data);
-    String newName = str.split(",")[0];
-    long duration = Long.parseLong(str.split(",")[1]);
-    int fileId = Integer.parseInt(str.split(",")[2]);
-    FileChannel fc;
-    RandomAccessFile randomAccessFile = null;
+  private void replicateBatch(long ballot, long slot, List<PendingWrite> batch) {
+    List<LogEntry> entries = new ArrayList<>(batch.size());
+    batch.forEach(write -> entries.add(this.withFileId(write.entry)));
+    // Round trips of the batch, handed to the trace of every write in it once it is applied
+    Trace trace = Trace.detached(Trace.idOf(batch.get(0).trace));
+    if (!this.replicateSlot(ballot, slot, entries, trace, results -> {
+      for (int i = 0; i < batch.size(); i++) {
+        if (batch.get(i).trace != null) {
+          batch.get(i).trace.merge(trace);
+        }
+        if (i < results.size()) {
+          batch.get(i).result.complete(results.get(i));
+        } else {
+          batch.get(i).fail();
+        }
+      }
+    })) {
+      // Leave the slot to the next leader, it proposes again what the acceptors know or a no-op
+      this.paxos.stepDown(ballot);
+      batch.forEach(PendingWrite::fail);
+    }
+  }
+
+  /**
+   * Gives the file of an upload its id, once on the leader, so that all replicas index the file
+   * under the same id however many writes they failed to apply or had repaired.
+   */
+  private LogEntry withFileId(LogEntry entry) {
+    if (!entry.getOperation().uploads()) {
+      return entry;
+    }
+    // A file uploaded again keeps its id, replicas that lack it add it under that id
+    Integer existing = this.fileIndex.idOf(entry.getFileName());
+    return new LogEntry(entry.getOperation(), entry.getFileName(), (new String(entry.getData())
+        + "," + (existing != null ? existing : this.nextFileId())).getBytes());
+  }
+
+  /**
+   * @return an id no file was given yet, above those of the files indexed and of the uploads in
+   * slots not applied yet, which the previous leader may have given out
+   */
+  private int nextFileId() {
+    int floor = 0;
+    // The slots are read before the index, an upload applied in between is found in the index
+    for (LogSlot slot : this.log.slotsFrom(this.log.getAppliedSlot() + 1, Integer.MAX_VALUE)
+        .values()) {
+      for (LogEntry entry : slot.getEntries()) {
+        floor = Math.max(floor, fileIdOf(entry) + 1);
+      }
+    }
+    int next = Math.max(floor, this.fileIndex.getNextId());
+    return Math.max(this.fileIds.getAndUpdate(id -> Math.max(id, next) + 1), next);
+  }
+
+  /**
+   * @return id of the file of an upload, -1 for other writes and for uploads logged before the
+   * leader gave out ids
+   */
+  private static int fileIdOf(LogEntry entry) {
+    if (!entry.getOperation().uploads()) {
+      return -1;
+    }
+    String[] upload = new String(entry.getData()).split(",");
+    return upload.length > 2 ? Integer.parseInt(upload[2]) : -1;
+  }
 
-    boolean fileLocked = true;
+  /**
+   * Accepts a batch for a slot locally, sends it to all peers and commits it once a majority of
+   * the cluster accepted it.
+   *
+   * @return true if the slot was committed
+   */
+  private boolean replicateSlot(long ballot, long slot, List<LogEntry> entries, Trace trace,
+      Consumer<List<Response>> onApplied) {
+    try {
+      this.paxos.accept(ballot, slot);
+    } catch (PromiseException e) {
+      return false;
+    }
+    long position;
     try {
-      randomAccessFile = new RandomAccessFile(fileName, "rw");
-    } catch (FileNotFoundException e) {
-      logger.log(Level.SEVERE, "Cannot find file for renaming.");
-      renameResponse.setMessage("Cannot find file for renaming.");
+      position = this.log.accept(slot, ballot, entries);
+    } catch (UncheckedIOException e) {
+      logger.log(Level.SEVERE, "Unable to record slot {0}: {1}",
+          new Object[]{slot, e.getMessage()});
+      return false;
+    }
+    long commitSlot = this.log.getAppliedSlot();
+    long start = System.nanoTime();
+    QuorumCall<Boolean> accepted = QuorumCall.send(this.peerExecutor, serverPorts,
+        port -> this.callPeer(Metrics.Phase.ACCEPT, port, trace, dfs -> {
+          dfs.acceptRequest(ballot, slot, entries, commitSlot, Trace.idOf(trace));
+          return true;
+        }), this.peerQuorum(), Constants.PEER_RPC_TIMEOUT_MS, "Accept Request", null);
+    this.metrics.round(Metrics.Phase.ACCEPT, microsSince(start));
+
+    // Chosen only once a majority of the whole group accepted it, not of the peers that answered
+    if (accepted.getRejections() > 0 || accepted.getResponses().size() < this.peerQuorum()) {
+      logger.log(Level.SEVERE, "Slot {0} accepted by {1} / {2} ACCEPTORS only",
+          new Object[]{slot, accepted.getResponses().size() + 1, serverPorts.size() + 1});
+      return false;
+    }
+    // The local accept counts towards the majority only once it is durable, it synced in the
+    // meantime along with the accepts of other slots in most cases
+    try {
+      this.wal.sync(position);
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Unable to sync slot {0}: {1}", new Object[]{slot, e.getMessage()});
+      return false;
+    }
+    this.log.commit(slot, onApplied);
+    return true;
+  }
+
+  /**
+   * Fills the slots between what this server applied and the highest slot its acceptors know of.
+   * For every slot the batch accepted with the highest ballot is proposed again with the new
+   * ballot, slots nobody accepted become no-ops. The leader steps down if the slots of a peer
+   * that promised can not be read in full, as the peer may hold the only copy of a chosen batch.
+   */
+  private void recoverSlots(long ballot, long highestSlot, Set<Integer> ports) {
+    long from = this.log.getAppliedSlot() + 1;
+    if (from > highestSlot) {
+      return;
+    }
+    logger.log(Level.INFO, "Recovering slots {0} to {1} at port {2}",
+        new Object[]{from, highestSlot, serverId});
+    Map<Long, LogSlot> known = this.log.slotsFrom(from, Integer.MAX_VALUE);
+    for (int port : ports) {
+      Map<Long, LogSlot> slots;
+      try {
+        slots = this.fetchSlots(port, from, highestSlot);
+      } catch (Exception e) {
+        logger.log(Level.SEVERE, "Unable to read slots of port {0} to recover them: {1}",
+            new Object[]{port, e.getMessage()});
+        this.paxos.stepDown(ballot);
+        return;
+      }
+      slots.forEach((slot, fetched) -> known.merge(slot, fetched, (mine, theirs) ->
+          mine.isCommitted() || (!theirs.isCommitted() && mine.getBallot() >= theirs.getBallot())
+              ? mine : theirs));
+    }
+    for (long slot = from; slot <= highestSlot; slot++) {
+      LogSlot chosen = known.get(slot);
+      List<LogEntry> entries = chosen == null ? Collections.emptyList() : chosen.getEntries();
+      if (!this.replicateSlot(ballot, slot, entries, null, null)) {
+        this.paxos.stepDown(ballot);
+        return;
+      }
     }
+  }
 
-    fc = randomAccessFile.getChannel();
+  /**
+   * Reads the stored slots of a range from a peer.
+   *
+   * @throws Exception if the peer could not be read from, none of the slots are returned then
+   */
+  private Map<Long, LogSlot> fetchSlots(int port, long from, long to) throws Exception {
+    Map<Long, LogSlot> fetched = new TreeMap<>();
+    long next = from;
+    while (next <= to) {
+      long start = next;
+      TreeMap<Long, LogSlot> slots = this.callPeer(port, dfs -> dfs.getLogEntries(start));
+      if (slots.isEmpty()) {
+        break;
+      }
+      fetched.putAll(slots.headMap(to, true));
+      next = slots.lastKey() + 1;
+    }
+    return fetched;
+  }
 
+  /**
+   * Asks the leader for the committed slots this server missed, so that the ones after them can
+   * be applied. The content of uploads among them is fetched from the leader as well, as it was
+   * pushed to the peers that were up at the time only.
+   */
+  private void catchUp(int leaderPort) {
+    if (leaderPort == this.serverId || !this.catchingUp.compareAndSet(false, true)) {
+      return;
+    }
     try {
-      FileLock fileLock = fc.tryLock();
-      if (null != fileLock) {
-        logger.log(Level.INFO, "Renaming {0} to {1}", new Object[]{fileName, newName});
-        fileLocked = false;
-        this.lockedFileIds.add(fileName);
-        Thread.sleep(duration);
-      } else {
-        logger.info("File is locked for renaming");
+      this.peerExecutor.execute(() -> {
+        boolean installing = false;
+        try {
+          long from = this.log.getAppliedSlot() + 1;
+          Map<Long, LogSlot> missed;
+          try {
+            missed = this.fetchSlots(leaderPort, from, this.log.getLastSlot());
+          } catch (Exception e) {
+            // Tried again on the next commit that leaves a gap
+            logger.log(Level.SEVERE, "Unable to read log entries from port {0}", leaderPort);
+            return;
+          }
+          if (!missed.isEmpty() && !missed.containsKey(from)) {
+            // The leader no longer retains the slots this server missed, copy its state instead
+            this.repairer.execute(() -> {
+              try {
+                this.antiEntropy.install(leaderPort);
+              } finally {
+                this.catchingUp.set(false);
+              }
+            });
+            installing = true;
+            return;
+          }
+          missed.values().forEach(slot -> this.fetchMissingContent(leaderPort, slot));
+          missed.forEach(this.log::learn);
+        } finally {
+          if (!installing) {
+            this.catchingUp.set(false);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      this.catchingUp.set(false);
+    }
+  }
+
+  private void fetchMissingContent(int port, LogSlot slot) {
+    for (LogEntry entry : slot.getEntries()) {
+      if (!entry.getOperation().uploads()) {
+        continue;
       }
-    } catch (OverlappingFileLockException | IOException ex) {
-      logger.log(Level.SEVERE, "File locked for renaming. Try again later.");
-      renameResponse.setMessage("File locked for renaming. Try again later.");
-    } catch (InterruptedException e) {
-      logger.log(Level.SEVERE, "Interrupted exception occurred");
-      renameResponse.setMessage("Interrupted exception occurred.");
+      String content = new String(entry.getData()).split(",")[0];
+      if (!this.chunks.isComplete(content) && !this.antiEntropy.fetch(port, content, false)) {
+        logger.log(Level.SEVERE, "Unable to fetch missed upload of {0} from port {1}",
+            new Object[]{entry.getFileName(), port});
+      }
+    }
+  }
+
+  /**
+   * Lets the peers know up to which slot the log is committed, when it moved since the last time
+   * or the leader has been quiet for a while. Runs periodically on the leader, commits are also
+   * piggybacked on accept requests.
+   */
+  private void sendCommits() {
+    long ballot = this.paxos.getLeaderBallot();
+    long commitSlot = this.log.getAppliedSlot();
+    long now = System.currentTimeMillis();
+    if (ballot == 0 || (commitSlot <= this.lastSentCommit
+        && now - this.lastHeartbeat < Constants.LEADER_HEARTBEAT_MS)) {
+      return;
     }
-    if (!fileLocked) {
+    this.lastSentCommit = commitSlot;
+    this.lastHeartbeat = now;
+    for (int port : serverPorts) {
       try {
-        fc.close();
-        logger.info("Releasing lock on file.");
-        this.lockedFileIds.remove(fileName);
-      } catch (IOException e) {
-        logger.log(Level.SEVERE, "IO exception occurred {0}", e.getMessage());
-        renameResponse.setMessage("IO exception occurred.");
-      }
-      File fileWithNewName = new File(file.getParent(), newName);
-      boolean success = file.renameTo(fileWithNewName);
-      if (!success) {
-        logger.log(Level.SEVERE, "Something went wrong while renaming");
-        renameResponse.setMessage("Something went wrong while renaming file.");
-      } else {
-        this.fileNameAndNumber.remove(fileId);
-        this.fileNameAndNumber.put(fileId, newName);
-        renameResponse.setMessage("Rename successful.");
+        this.peerExecutor.execute(() -> {
+          try {
+            this.callPeer(Metrics.Phase.COMMIT, port, null, dfs -> {
+              dfs.commit(ballot, commitSlot);
+              return true;
+            });
+          } catch (Exception e) {
+            logger.log(Level.FINE, "Unable to send commit to port {0}", port);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        logger.log(Level.FINE, "Commit to port {0} skipped, too many requests in flight", port);
       }
-    } else {
+    }
+  }
+
+  @Override
+  public void acceptRequest(long ballot, long slot, List<LogEntry> entries, long commitSlot,
+      long traceId) {
+    try (AdmissionControl.Ticket ticket = this.admission.admit(
+        AdmissionControl.RequestClass.CONSENSUS, 0)) {
+      if (ticket == null) {
+        throw this.overloadedException();
+      }
+      Trace trace = Trace.resume(traceId);
       try {
-        fc.close();
-        logger.info("Releasing lock on file.");
-      } catch (IOException e) {
-        logger.log(Level.SEVERE, "Error occurred while closing FileChannel.");
-        renameResponse.setMessage("Something went wrong while renaming file.");
+        this.paxos.accept(ballot, slot);
+        requestLogger.log(Level.INFO, "Accepted slot {0} with paxos id {1} at port {2}, trace {3}",
+            new Object[]{slot, ballot, serverId, Long.toHexString(traceId)});
+        try {
+          this.wal.sync(this.log.accept(slot, ballot, entries));
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        this.commit(ballot, commitSlot);
+        if (trace.elapsedMillis() >= Constants.SLOW_REQUEST_MS) {
+          logger.log(Level.WARNING, "Slow accept of slot {0}: {1} ms, trace {2}",
+              new Object[]{slot, trace.elapsedMillis(), trace});
+        }
+      } finally {
+        Trace.end();
       }
     }
-    if (this.lockedFileIds.contains(fileName)) {
-      this.lockedFileIds.remove(fileName);
-    }
   }
 
-  private void writeToFile(String fileName, byte[] data) throws IOException {
-    File f = new File(this.directory, fileName);
-    FileOutputStream fos = null;
-    if (!f.createNewFile()) {
-      // log
+  @Override
+  public void commit(long ballot, long slot) {
+    if (!this.paxos.learnLeader(ballot)) {
       return;
     }
-    fos = new FileOutputStream(f);
-    fos.write(data);
-    this.fileNameAndNumber.put(localServerFileCount++, fileName);
-    fos.flush();
-    logger.log(Level.INFO, "Upload succeeded for server FileStore at port {0}", serverId);
-     /*catch (IOException e) {
-      logger.error("Upload failure for server FileStore at port {} due to : {}", serverId,
-          e.getMessage());
-    }*/
+    this.log.commitUpTo(slot, ballot);
+    if (this.log.hasGap()) {
+      this.catchUp(PaxosState.portOf(ballot));
+    }
+  }
+
+  @Override
+  public TreeMap<Long, LogSlot> getLogEntries(long fromSlot) {
+    try (AdmissionControl.Ticket ticket = this.admission.admit(
+        AdmissionControl.RequestClass.CONSENSUS, 0)) {
+      if (ticket == null) {
+        throw this.overloadedException();
+      }
+      return this.log.slotsFrom(fromSlot, Constants.LOG_FETCH_SLOTS);
+    }
+  }
+
+  /**
+   * Applies a write taken from the log to the files of this server.
+   */
+  private Response applyEntry(long slot, LogEntry entry) {
+    Response resp;
+    Operation operation = entry.getOperation();
     try {
-      fos.close();
+      if (operation == Operation.CREATE_FILE && this.fileIndex.contains(entry.getFileName())) {
+        this.fileIndex.advanceIds(fileIdOf(entry));
+        resp = new Response(Status.EXISTS, "UPLOAD FAILED! A file named " + entry.getFileName()
+            + " exists already");
+      } else if (operation.uploads()) {
+        String[] upload = new String(entry.getData()).split(",");
+        this.addFile(fileIdOf(entry), entry.getFileName(), upload[0], Long.parseLong(upload[1]),
+            slot);
+        resp = new Response(Status.OK, operation.successMessage());
+      } else if (operation == Operation.DELETE_FILE) {
+        this.deleteFileWithName(entry.getFileName());
+        resp = new Response(Status.OK, operation.successMessage());
+      } else {
+        resp = this.renameFileWithName(entry.getFileName(), entry.getData(), slot);
+      }
     } catch (IOException e) {
-      logger.log(Level.SEVERE, "Unable to close stream");
+      logger.log(Level.SEVERE, "{0} failed due to: {1}", new Object[]{operation, e.getMessage()});
+      resp = new Response(Status.FAILED, operation.failureMessage());
     }
+    resp.setVersion(slot);
+    return resp;
+  }
+
+  /**
+   * Redoes the changes of an entry to the file index, for entries applied before a restart.
+   */
+  private void replayEntry(long slot, LogEntry entry, Status result) {
+    Operation operation = entry.getOperation();
+    if (operation.uploads()) {
+      this.fileIndex.advanceIds(fileIdOf(entry));
+    }
+    if (result != Status.OK) {
+      return;
+    }
+    if (operation.uploads()) {
+      String[] upload = new String(entry.getData()).split(",");
+      this.fileIndex.add(fileIdOf(entry), entry.getFileName(), Long.parseLong(upload[1]), slot,
+          upload[0]);
+    } else if (operation == Operation.DELETE_FILE) {
+      this.fileIndex.remove(entry.getFileName());
+    } else if (operation == Operation.RENAME_FILE) {
+      String[] rename = new String(entry.getData()).split(",");
+      this.fileIndex.rename(Integer.parseInt(rename[2]), rename[0], slot);
+    }
+  }
+
+  @Override
+  public ServerStatus heartbeat() {
+    return new ServerStatus(this.serverId, this.paxos.getLeaderPort(), this.log.getAppliedSlot(),
+        this.fileIndex.size(), this.requests.getInFlight(), this.requests.getLatencyMicros(),
+        this.pendingWrites.size());
+  }
+
+  @Override
+  public long[] getIndexDigests(long uptoSlot) {
+    return this.log.atAppliedSlot(slot -> {
+      long[] digests = this.fileIndex.digests(uptoSlot);
+      long[] response = new long[digests.length + 1];
+      response[0] = slot;
+      System.arraycopy(digests, 0, response, 1, digests.length);
+      return response;
+    });
+  }
+
+  @Override
+  public FileIndex.Snapshot getIndexEntries(List<Integer> buckets) {
+    return this.log.atAppliedSlot(slot -> new FileIndex.Snapshot(slot, 0,
+        buckets == null ? this.fileIndex.copy() : this.fileIndex.subset(new HashSet<>(buckets))));
+  }
+
+  @Override
+  public List<String> missingChunks(List<String> hashes) throws IOException {
+    try (AdmissionControl.Ticket ticket = this.admission.admit(
+        AdmissionControl.RequestClass.WRITE, 0)) {
+      if (ticket == null) {
+        throw this.overloadedException();
+      }
+      for (String hash : hashes) {
+        if (!ChunkStore.isBlockName(hash)) {
+          throw new IOException("Invalid chunk hash " + hash);
+        }
+      }
+      return this.chunks.missing(hashes);
+    }
+  }
+
+  @Override
+  public void putBlock(String hash, byte[] data) throws IOException {
+    this.storeBlock(AdmissionControl.RequestClass.WRITE, hash, data);
+  }
+
+  @Override
+  public void replicateBlock(String hash, byte[] data) throws IOException {
+    this.storeBlock(AdmissionControl.RequestClass.REPLICATION, hash, data);
+  }
+
+  private void storeBlock(AdmissionControl.RequestClass requestClass, String hash, byte[] data)
+      throws IOException {
+    try (AdmissionControl.Ticket ticket = this.admission.admit(requestClass, data.length)) {
+      if (ticket == null) {
+        throw this.overloadedException();
+      }
+      this.chunks.put(hash, data);
+      this.metrics.add(Metrics.Counter.BYTES_RECEIVED, data.length);
+    }
+  }
+
+  @Override
+  public byte[] getBlock(String hash) throws IOException {
+    try (AdmissionControl.Ticket ticket = this.admission.admit(
+        AdmissionControl.RequestClass.REPLICATION, Constants.CHUNK_SIZE)) {
+      if (ticket == null) {
+        throw this.overloadedException();
+      }
+      byte[] block = this.chunks.get(hash);
+      this.metrics.add(Metrics.Counter.BYTES_SENT, block.length);
+      return block;
+    }
+  }
+
+  private void deleteFileWithName(String fileName) {
+    // A missing file was deleted already, by this entry before a restart
+    Integer fileId = this.fileIndex.idOf(fileName);
+    FileIndex.Entry removed = this.fileIndex.remove(fileName);
+    if (removed != null) {
+      this.chunks.release(removed.getContent());
+    }
+    if (fileId != null) {
+      this.leases.invalidate(fileId);
+    }
+    requestLogger.log(Level.INFO, "Successfully deleted file at FileServer {0} with name {1}",
+        new Object[]{serverId, fileName});
+  }
+
+  /**
+   * Holds the file for the duration requested by the client before its rename is proposed. The
+   * caller holds the write lock of the file, so writes and reads of the file on the leader wait
+   * meanwhile. With Constants.CLUSTER_FILE_HOLDS the peers hold the file as well.
+   *
+   * @return true if the file was held for the whole duration
+   */
+  private boolean holdForRename(String fileName, long requested) throws InterruptedException {
+    long duration = boundedHold(requested);
+    requestLogger.log(Level.INFO, "Holding {0} for renaming", fileName);
+    long until = System.currentTimeMillis() + duration;
+    boolean held = true;
+    if (Constants.CLUSTER_FILE_HOLDS) {
+      // Peers that are down serve no reads, only a peer that answered without the file counts
+      QuorumCall<Boolean> holds = QuorumCall.send(this.peerExecutor, serverPorts,
+          port -> this.callPeer(port, dfs -> dfs.holdFile(fileName, duration)),
+          serverPorts.size(), duration + Constants.FILE_LOCK_TIMEOUT_MS
+              + Constants.PEER_RPC_TIMEOUT_MS, "Hold", null);
+      held = !holds.getResponses().containsValue(false);
+    }
+    long remaining = until - System.currentTimeMillis();
+    if (remaining > 0) {
+      Thread.sleep(remaining);
+    }
+    logger.info("Releasing lock on file.");
+    return held;
+  }
+
+  @Override
+  public boolean holdFile(String fileName, long duration) {
+    try (AdmissionControl.Ticket ticket = this.admission.admit(
+        AdmissionControl.RequestClass.WRITE, 0)) {
+      if (ticket == null) {
+        return false;
+      }
+      try (FileLocks.Hold hold = this.fileLocks.write(fileName, Constants.FILE_LOCK_TIMEOUT_MS)) {
+        if (hold == null) {
+          return false;
+        }
+        Thread.sleep(boundedHold(duration));
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+  }
+
+  /**
+   * @return the duration of a hold asked for by a client, at most Constants.MAX_FILE_HOLD_MS
+   */
+  private static long boundedHold(long duration) {
+    return Math.min(Math.max(duration, 0), Constants.MAX_FILE_HOLD_MS);
+  }
+
+  /**
+   * Renames a file in the index, its content stays where it is.
+   */
+  private Response renameFileWithName(String fileName, byte[] data, long slot) {
+    Response resp = new Response();
+    String str = new String(data);
+    String newName = str.split(",")[0];
+    int fileId = Integer.parseInt(str.split(",")[2]);
+    requestLogger.log(Level.INFO, "Renaming {0} to {1}", new Object[]{fileName, newName});
+
+    if (this.fileIndex.get(fileId) == null) {
+      logger.log(Level.SEVERE, "Something went wrong while renaming");
+      resp.setStatus(Status.NOT_FOUND);
+      resp.setMessage("Something went wrong while renaming file.");
+    } else if (!this.fileIndex.rename(fileId, newName, slot)) {
+      // Taken by an upload or rename ordered after the request was checked
+      resp.setStatus(Status.EXISTS);
+      resp.setMessage("RENAME FAILED! A file named " + newName + " exists already");
+    } else {
+      this.leases.invalidate(fileId);
+      resp.setStatus(Status.OK);
+      resp.setMessage(RENAME_SUCCESS);
+    }
+    return resp;
+  }
+
+  /**
+   * Adds an uploaded file to the index, all of its chunks have to be in the chunk store.
+   *
+   * @param fileId id the leader gave the file, -1 if it gave none
+   */
+  private void addFile(int fileId, String fileName, String content, long size, long slot)
+      throws IOException {
+    // Taken even if the upload fails here, so that ids given out later do not depend on it
+    this.fileIndex.advanceIds(fileId);
+    if (this.fileIndex.contains(fileName)) {
+      // A duplicate, the file keeps its content
+      return;
+    }
+    if (!ChunkStore.isHash(content) || !this.chunks.retain(content)) {
+      throw new IOException("Missing chunks for upload of " + fileName);
+    }
+    this.fileIndex.add(fileId, fileName, size, slot, content);
+    this.leases.invalidate(this.fileIndex.idOf(fileName));
+    requestLogger.log(Level.INFO, "Upload succeeded for server FileStore at port {0}", serverId);
   }
 
   @Override
   public Map<Integer, String> getAllFilesOnServer() {
-    return this.fileNameAndNumber;
+    long start = System.nanoTime();
+    Map<Integer, String> names = this.fileIndex.names();
+    this.metrics.request(Metrics.Request.LIST, microsSince(start), true);
+    return names;
+  }
+
+  @Override
+  public FileListing getFileListing(long knownVersion, InvalidationListener listener) {
+    long start = System.nanoTime();
+    // Granted before the index is read, changes applied meanwhile are sent to the listener
+    long lease = listener == null ? 0 : this.leases.grant(listener);
+    FileListing listing = this.log.atAppliedSlot(slot -> slot <= knownVersion
+        ? new FileListing(slot, null, null, lease)
+        : new FileListing(slot, this.fileIndex.names(), this.fileIndex.contentsById(), lease));
+    this.metrics.request(Metrics.Request.LIST, microsSince(start), true);
+    return listing;
   }
 
   @Override
   public Response uploadFile(byte[] data, String fileName) throws RemoteException {
-    logger.log(Level.INFO, "Upload request for server FileStore at port {0}", serverId);
-    Set<Integer> ports = null;
-    Response resp = new Response();
-    int retries = 0;
-    // Retries till it does not get consensus
-    while (ports == null && retries < Constants.RETRY_COUNT) {
-      ports = this.sendPrepare();
-      retries++;
+    try (AdmissionControl.Ticket ticket = this.admission.admit(
+        AdmissionControl.RequestClass.WRITE, data.length)) {
+      if (ticket == null) {
+        return this.overloaded("UPLOAD FAILED!");
+      }
+      long start = this.begin();
+      String sessionId;
+      try {
+        sessionId = this.openUpload(fileName);
+        int offset = 0;
+        do {
+          int length = Math.min(Constants.CHUNK_SIZE, data.length - offset);
+          this.writeChunk(sessionId, offset, Arrays.copyOfRange(data, offset, offset + length));
+          offset += length;
+        } while (offset < data.length);
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Upload failed due to: {0}", e.getMessage());
+        return this.finish(Metrics.Request.UPLOAD, start,
+            new Response(Status.FAILED, "UPLOAD FAILED!"));
+      }
+      return this.finish(Metrics.Request.UPLOAD, start, this.commit(sessionId));
     }
-    if (ports == null) {
-      resp.setMessage("UPLOAD FAILED!");
-      return resp;
+  }
+
+  @Override
+  public String openUpload(String fileName) throws IOException {
+    if (!this.ownsName(fileName)) {
+      throw new IOException(fileName + " belongs to the servers at ports "
+          + Arrays.toString(this.ring.ports(this.ring.groupOf(fileName))));
+    }
+    requestLogger.log(Level.INFO, "Upload session opened for {0} at port {1}",
+        new Object[]{fileName, serverId});
+    return this.transfers.openUpload(fileName);
+  }
+
+  @Override
+  public void putChunk(String sessionId, long offset, byte[] chunk) throws IOException {
+    try (AdmissionControl.Ticket ticket = this.admission.admit(
+        AdmissionControl.RequestClass.WRITE, chunk.length)) {
+      if (ticket == null) {
+        throw this.overloadedException();
+      }
+      this.writeChunk(sessionId, offset, chunk);
     }
-    ports.forEach(port -> this.sendUploadAcceptRequest(port, data, fileName));
+  }
+
+  /**
+   * Writes a chunk of an upload session, for requests admitted already.
+   */
+  private void writeChunk(String sessionId, long offset, byte[] chunk) throws IOException {
+    if (this.transfers.fileNameOf(sessionId) == null) {
+      throw new IOException("Unknown upload session " + sessionId);
+    }
+    this.transfers.write(sessionId, offset, chunk);
+    this.metrics.add(Metrics.Counter.BYTES_RECEIVED, chunk.length);
+  }
+
+  @Override
+  public Response commitUpload(String sessionId) {
+    try (AdmissionControl.Ticket ticket = this.admission.admit(
+        AdmissionControl.RequestClass.WRITE, 0)) {
+      if (ticket == null) {
+        return this.overloaded("UPLOAD FAILED!");
+      }
+      long start = this.begin();
+      return this.finish(Metrics.Request.UPLOAD, start, this.commit(sessionId));
+    }
+  }
+
+  /**
+   * Stores the file of an upload session in the chunk store and replicates it.
+   */
+  private Response commit(String sessionId) {
+    requestLogger.log(Level.INFO, "Upload request for server FileStore at port {0}", serverId);
+    String fileName = this.transfers.fileNameOf(sessionId);
+    if (fileName == null) {
+      return new Response(Status.NOT_FOUND, "UPLOAD FAILED! Unknown upload session");
+    }
+    String content;
     try {
-      this.acceptRequest(Operation.UPLOAD_FILE, fileName, data);
-      resp.setMessage("UPLOAD SUCCESS!");
+      File staged = this.transfers.seal(sessionId);
+      if (staged == null) {
+        throw new IOException("Upload session " + sessionId + " expired");
+      }
+      try (FileInputStream in = new FileInputStream(staged)) {
+        content = this.chunks.store(in);
+      }
     } catch (IOException e) {
       logger.log(Level.SEVERE, "Upload failed due to: {0}", e.getMessage());
-      resp.setMessage("UPLOAD FAILED!");
+      return new Response(Status.FAILED, "UPLOAD FAILED!");
+    } finally {
+      this.transfers.discard(sessionId);
+    }
+    return this.replicateUpload(Operation.UPLOAD_FILE, fileName, content);
+  }
+
+  @Override
+  public Response commitChunks(String fileName, List<String> hashes) {
+    return this.commitChunks(Operation.UPLOAD_FILE, fileName, hashes);
+  }
+
+  @Override
+  public Response createChunks(String fileName, List<String> hashes) {
+    return this.commitChunks(Operation.CREATE_FILE, fileName, hashes);
+  }
+
+  private Response commitChunks(Operation operation, String fileName, List<String> hashes) {
+    try (AdmissionControl.Ticket ticket = this.admission.admit(
+        AdmissionControl.RequestClass.WRITE, 0)) {
+      if (ticket == null) {
+        return this.overloaded("UPLOAD FAILED!");
+      }
+      long start = this.begin();
+      requestLogger.log(Level.INFO, "Upload of {0} chunks for server FileStore at port {1}",
+          new Object[]{hashes.size(), serverId});
+      if (!this.ownsName(fileName)) {
+        return this.finish(Metrics.Request.UPLOAD, start, new Response(Status.FAILED,
+            "UPLOAD FAILED! " + fileName + " belongs to the servers at ports "
+                + Arrays.toString(this.ring.ports(this.ring.groupOf(fileName)))));
+      }
+      // Checked again once the upload is ordered, a file may get the name meanwhile
+      if (operation == Operation.CREATE_FILE && this.fileIndex.contains(fileName)) {
+        return this.finish(Metrics.Request.UPLOAD, start, new Response(Status.EXISTS,
+            "UPLOAD FAILED! A file named " + fileName + " exists already"));
+      }
+      String content;
+      try {
+        content = this.chunks.putManifest(hashes);
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Upload failed due to: {0}", e.getMessage());
+        return this.finish(Metrics.Request.UPLOAD, start,
+            new Response(Status.FAILED, "UPLOAD FAILED! " + e.getMessage()));
+      }
+      return this.finish(Metrics.Request.UPLOAD, start,
+          this.replicateUpload(operation, fileName, content));
     }
-    return resp;
   }
 
   @Override
   public Response downloadFile(String fileId) {
-    logger.log(Level.INFO, "File download request for id {0} and name {1}", new Object[]{fileId,
-        fileNameAndNumber.get(Integer.parseInt(fileId))});
-    Response resp = new Response();
-    File toFetch = new File(directory, this.fileNameAndNumber.get(Integer.parseInt(fileId)));
-    if (!toFetch.exists()) {
-      logger.log(Level.SEVERE, "File Does Not exist on the server");
-      resp.setMessage("DOWNLOAD FAILED!. File Does Not exist on the server");
+    try (AdmissionControl.Ticket ticket = this.admission.admit(
+        AdmissionControl.RequestClass.READ, 0)) {
+      if (ticket == null) {
+        return this.overloaded("DOWNLOAD FAILED!.");
+      }
+      long start = this.begin();
+      String fileName = this.fileIndex.nameOf(Integer.parseInt(fileId));
+      requestLogger.log(Level.INFO, "File download request for id {0} and name {1}",
+          new Object[]{fileId, fileName});
+      Response resp = new Response(Status.NOT_FOUND,
+          "DOWNLOAD FAILED!. File Does Not exist on the server");
       resp.setDownloadedFile(new byte[]{});
+      if (fileName == null) {
+        logger.log(Level.SEVERE, "File Does Not exist on the server");
+        return this.finish(Metrics.Request.DOWNLOAD, start, resp);
+      }
+      try (FileLocks.Hold hold = this.fileLocks.read(fileName, Constants.FILE_LOCK_TIMEOUT_MS)) {
+        if (hold == null) {
+          resp.setStatus(Status.LOCKED);
+          resp.setMessage("DOWNLOAD FAILED!. File locked, try again later");
+          return this.finish(Metrics.Request.DOWNLOAD, start, resp);
+        }
+        return this.finish(Metrics.Request.DOWNLOAD, start, this.readFile(fileId, fileName, resp,
+            ticket));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        resp.setStatus(Status.FAILED);
+        resp.setMessage("DOWNLOAD FAILED!. Interrupted");
+        return this.finish(Metrics.Request.DOWNLOAD, start, resp);
+      }
+    }
+  }
+
+  /**
+   * Reads a whole file into the response, the caller holds the read lock of the file. The
+   * content is reserved on the ticket only until the response is returned, RMI marshals it after.
+   */
+  private Response readFile(String fileId, String fileName, Response resp,
+      AdmissionControl.Ticket ticket) {
+    Manifest manifest = this.manifestOf(fileId);
+    if (manifest == null) {
+      logger.log(Level.SEVERE, "File Does Not exist on the server");
       return resp;
     }
-    byte[] downloadedFile = new byte[(int) toFetch.length()];
-    FileInputStream fin;
+    if (manifest.getSize() > Integer.MAX_VALUE - 8) {
+      resp.setStatus(Status.FAILED);
+      resp.setMessage("DOWNLOAD FAILED!. File is too large, use a chunked download");
+      return resp;
+    }
+    if (!ticket.reserve(manifest.getSize())) {
+      return this.overloaded("DOWNLOAD FAILED!.");
+    }
+    byte[] downloadedFile = new byte[(int) manifest.getSize()];
     try {
-      fin = new FileInputStream(toFetch);
-      fin.read(downloadedFile);
-      fin.close();
-    } catch (Exception e) {
+      int offset = 0;
+      while (offset < downloadedFile.length) {
+        byte[] chunk = this.chunks.read(manifest, offset);
+        System.arraycopy(chunk, 0, downloadedFile, offset, chunk.length);
+        offset += chunk.length;
+      }
+    } catch (IOException e) {
       logger.log(Level.SEVERE, "Error While reading file");
+      resp.setStatus(Status.FAILED);
+      resp.setMessage("DOWNLOAD FAILED!. Error while reading file");
+      return resp;
     }
-    logger.log(Level.INFO, "File download succeeded for id {0} and name {1}", new Object[]{fileId,
-        fileNameAndNumber.get(Integer.parseInt(fileId))});
+    requestLogger.log(Level.INFO, "File download succeeded for id {0} and name {1}",
+        new Object[]{fileId, fileName});
 
-    resp.setMessage("DOWNLOAD SUCCESS!" + fileNameAndNumber.get(Integer.parseInt(fileId)));
+    resp.setStatus(Status.OK);
+    resp.setVersion(this.versionOf(fileId));
+    resp.setMessage("DOWNLOAD SUCCESS!" + fileName);
     resp.setDownloadedFile(downloadedFile);
+    this.metrics.add(Metrics.Counter.BYTES_SENT, downloadedFile.length);
     return resp;
   }
 
   @Override
-  public Response deleteFile(String fileId) {
-    logger.log(Level.INFO, "Delete request for server FileStore at port {0}", serverId);
-    Set<Integer> ports = null;
-    Response resp = new Response();
-    int retries = 0;
-    // Retries till it does not get consensus
-    while (ports == null && retries < Constants.RETRY_COUNT) {
-      ports = this.sendPrepare();
-      retries++;
-    }
-    if (ports == null) {
-      resp.setMessage("DELETE FAILED!");
-      return resp;
+  public Response openDownload(String fileId) {
+    try (AdmissionControl.Ticket ticket = this.admission.admit(
+        AdmissionControl.RequestClass.READ, 0)) {
+      if (ticket == null) {
+        return this.overloaded("DOWNLOAD FAILED!.");
+      }
+      long start = this.begin();
+      Response resp = new Response(Status.NOT_FOUND,
+          "DOWNLOAD FAILED!. File Does Not exist on the server");
+      String fileName = this.fileIndex.nameOf(Integer.parseInt(fileId));
+      if (fileName == null) {
+        logger.log(Level.SEVERE, "File Does Not exist on the server");
+        return this.finish(Metrics.Request.DOWNLOAD, start, resp);
+      }
+      // Chunks stay readable after a delete until they are collected, the lock only has to order
+      // opening the download against writes and holds of the file
+      Manifest manifest;
+      try (FileLocks.Hold hold = this.fileLocks.read(fileName, Constants.FILE_LOCK_TIMEOUT_MS)) {
+        if (hold == null) {
+          resp.setStatus(Status.LOCKED);
+          resp.setMessage("DOWNLOAD FAILED!. File locked, try again later");
+          return this.finish(Metrics.Request.DOWNLOAD, start, resp);
+        }
+        manifest = this.manifestOf(fileId);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        resp.setStatus(Status.FAILED);
+        resp.setMessage("DOWNLOAD FAILED!. Interrupted");
+        return this.finish(Metrics.Request.DOWNLOAD, start, resp);
+      }
+      if (manifest == null) {
+        logger.log(Level.SEVERE, "File Does Not exist on the server");
+        return this.finish(Metrics.Request.DOWNLOAD, start, resp);
+      }
+      resp.setReturnValue(this.transfers.openDownload(fileName, manifest));
+      resp.setFileSize(manifest.getSize());
+      requestLogger.log(Level.INFO, "Download session opened for id {0} and name {1}",
+          new Object[]{fileId, fileName});
+      resp.setStatus(Status.OK);
+      resp.setVersion(this.versionOf(fileId));
+      resp.setMessage("DOWNLOAD SUCCESS!" + fileName);
+      return this.finish(Metrics.Request.DOWNLOAD, start, resp);
     }
-    String fileName = this.fileNameAndNumber.get(Integer.parseInt(fileId));
-    if (fileName == null) {
-      logger.log(Level.SEVERE, "Invalid File Id to delete : {0}", fileId);
-      resp.setMessage("DELETE FAILED! Invalid File Id Provided");
-      return resp;
+  }
+
+  /**
+   * @return manifest of the content of a file, null if the file or its content is missing
+   */
+  private Manifest manifestOf(String fileId) {
+    FileIndex.Entry entry = this.fileIndex.get(Integer.parseInt(fileId));
+    if (entry == null) {
+      return null;
     }
-    ports.forEach(port -> this.sendDeleteAcceptRequest(port, fileName));
     try {
-      this.acceptRequest(Operation.DELETE_FILE, fileName, null);
-      resp.setMessage("DELETE SUCCESS!");
+      return this.chunks.manifest(entry.getContent());
     } catch (IOException e) {
-      logger.log(Level.SEVERE, "DELETE failed due to: {0}", e.getMessage());
-      resp.setMessage("DELETE FAILED!");
+      return null;
     }
-    if (!this.isDeletePossible) {
-      resp.setMessage("File locked, cannot delete. Try again later.");
+  }
+
+  /**
+   * @return slot that last changed a file, 0 if it is gone
+   */
+  private long versionOf(String fileId) {
+    FileIndex.Entry entry = this.fileIndex.get(Integer.parseInt(fileId));
+    return entry == null ? 0 : entry.getVersion();
+  }
+
+  @Override
+  public byte[] getChunk(String sessionId, long offset) throws IOException {
+    try (AdmissionControl.Ticket ticket = this.admission.admit(
+        AdmissionControl.RequestClass.READ, Constants.CHUNK_SIZE)) {
+      if (ticket == null) {
+        throw this.overloadedException();
+      }
+      byte[] chunk = this.transfers.read(sessionId, offset);
+      this.metrics.add(Metrics.Counter.BYTES_SENT, chunk.length);
+      return chunk;
     }
-    return resp;
   }
 
   @Override
-  public Response renameFile(String fileId, String newFileName, Long duration) {
-    logger.log(Level.INFO, "Rename request for server FileStore at port {0}", serverId);
-    Set<Integer> ports = null;
-    int retries = 0;
-    String fileName = this.fileNameAndNumber.get(Integer.parseInt(fileId));
+  public void closeDownload(String sessionId) {
+    // Not admitted, turning it away would only keep the session open longer
+    this.transfers.closeDownload(sessionId);
+  }
 
-    while (ports == null && retries < Constants.RETRY_COUNT) {
-      ports = this.sendPrepare();
-      retries++;
+  @Override
+  public Response deleteFile(String fileId) {
+    try (AdmissionControl.Ticket ticket = this.admission.admit(
+        AdmissionControl.RequestClass.WRITE, 0)) {
+      if (ticket == null) {
+        return this.overloaded("DELETE FAILED!");
+      }
+      long start = this.begin();
+      requestLogger.log(Level.INFO, "Delete request for server FileStore at port {0}", serverId);
+      String fileName = this.fileIndex.nameOf(Integer.parseInt(fileId));
+      if (fileName == null) {
+        logger.log(Level.SEVERE, "Invalid File Id to delete : {0}", fileId);
+        return this.finish(Metrics.Request.DELETE, start, new Response(Status.NOT_FOUND,
+            "DELETE FAILED! Invalid File Id Provided"));
+      }
+      return this.finish(Metrics.Request.DELETE, start,
+          this.submit(Operation.DELETE_FILE, fileName, null));
     }
+  }
 
-    if (ports == null) {
-      renameResponse.setMessage("RENAME FAILED!");
-      return renameResponse;
+  @Override
+  public Response renameFile(String fileId, String newFileName, Long duration) {
+    try (AdmissionControl.Ticket ticket = this.admission.admit(
+        AdmissionControl.RequestClass.WRITE, 0)) {
+      if (ticket == null) {
+        return this.overloaded("RENAME FAILED!");
+      }
+      long start = this.begin();
+      requestLogger.log(Level.INFO, "Rename request for server FileStore at port {0}", serverId);
+      String fileName = this.fileIndex.nameOf(Integer.parseInt(fileId));
+      if (fileName == null) {
+        logger.log(Level.SEVERE, "Invalid File Id to rename : {0}", fileId);
+        return this.finish(Metrics.Request.RENAME, start, new Response(Status.NOT_FOUND,
+            "RENAME FAILED! Invalid File Id Provided"));
+      }
+      if (!this.ownsName(newFileName)) {
+        // The file would have to move to the servers of another group
+        return this.finish(Metrics.Request.RENAME, start, new Response(Status.FAILED,
+            "RENAME FAILED! The new name belongs to another shard"));
+      }
+      if (!newFileName.equals(fileName) && this.fileIndex.contains(newFileName)) {
+        return this.finish(Metrics.Request.RENAME, start, new Response(Status.EXISTS,
+            "RENAME FAILED! A file named " + newFileName + " exists already"));
+      }
+      String str = newFileName.concat(",").concat(String.valueOf(duration)).concat(",")
+          .concat(fileId);
+      return this.finish(Metrics.Request.RENAME, start,
+          this.submit(Operation.RENAME_FILE, fileName, str.getBytes()));
     }
-    String str = newFileName.concat(",").concat(String.valueOf(duration)).concat(",")
-        .concat(fileId);
-    byte[] data = str.getBytes();
-    ports.forEach(port -> this.sendRenameAcceptRequest(port, data, fileName));
-    try {
-      this.acceptRequest(Operation.RENAME_FILE, fileName, data);
-    } catch (IOException e) {
-      logger.log(Level.SEVERE, "Rename failed due to: {0}", e.getMessage());
-      renameResponse.setMessage("RENAME FAILED!");
+  }
+
+  /**
+   * @param failureMessage of the request turned away
+   * @return response telling the client the server is too busy and when to try again
+   */
+  private Response overloaded(String failureMessage) {
+    long retryAfter = this.retryAfterMs();
+    Response resp = new Response(Status.OVERLOADED,
+        failureMessage + " Server busy, try again in " + retryAfter + " ms");
+    resp.setRetryAfterMs(retryAfter);
+    return resp;
+  }
+
+  /**
+   * For calls that do not answer with a Response.
+   */
+  private OverloadedException overloadedException() {
+    long retryAfter = this.retryAfterMs();
+    return new OverloadedException("Server " + serverId + " busy, try again in " + retryAfter
+        + " ms", retryAfter);
+  }
+
+  /**
+   * @return time after which a request turned away is likely to be let in, about as long as
+   * requests take to be served at the moment
+   */
+  private long retryAfterMs() {
+    long latency = TimeUnit.MICROSECONDS.toMillis(this.requests.getLatencyMicros());
+    return Math.min(Math.max(latency, Constants.ADMISSION_MIN_RETRY_MS),
+        Constants.ADMISSION_MAX_RETRY_MS);
+  }
+
+  /**
+   * Begins a client request and its trace.
+   *
+   * @return start of the request, to be passed to finish
+   */
+  private long begin() {
+    Trace.start();
+    return this.requests.begin();
+  }
+
+  /**
+   * Ends a client request begun at start and records in the response how long it took. Slow
+   * requests are logged with their trace.
+   */
+  private Response finish(Metrics.Request request, long start, Response resp) {
+    long micros = this.requests.end(start);
+    resp.setElapsedMicros(micros);
+    this.metrics.request(request, micros, resp.isOk());
+    Trace trace = Trace.current();
+    if (trace != null && micros >= TimeUnit.MILLISECONDS.toMicros(Constants.SLOW_REQUEST_MS)) {
+      logger.log(Level.WARNING, "Slow {0} request at port {1}: {2} ms, trace {3}",
+          new Object[]{request.label(), serverId, micros / 1000, trace});
     }
-    return renameResponse;
+    Trace.end();
+    return resp;
   }
 }
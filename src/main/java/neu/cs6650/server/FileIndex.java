@@ -0,0 +1,496 @@
+package neu.cs6650.server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import neu.cs6650.utils.Constants;
+
+/**
+ * Index of the files stored on a server by file id, with the size of every file, its version, the
+ * log slot that last changed it, and its content, the hash of its manifest in the
+ * {@link ChunkStore}.
+ *
+ * <p>The index is saved as a snapshot tagged with the last applied log slot. The writes applied
+ * after the snapshot are the deltas, they are kept in the write-ahead log, so a restarting server
+ * loads the snapshot, replays the few deltas after it and fetches what it missed while it was
+ * down from the leader.
+ *
+ * <p>For anti-entropy the files are hashed into buckets by name and every bucket is summarized by
+ * a digest, so that two servers find the files they disagree on by comparing the digests first
+ * and only listing the files of the buckets that differ.
+ *
+ * <p>Files are found by id and by name through two concurrent maps, which RMI threads read
+ * without locking. Changes come from the log and from anti-entropy and are made one at a time.
+ * Listings are copies built once per change to the index and shared until the next one.
+ */
+public class FileIndex implements Serializable {
+
+  private static final long serialVersionUID = -1742209553161839846L;
+
+  private static final int MAGIC = 0x46494458;
+  private static final int FORMAT = 1;
+
+  /**
+   * A file in the index.
+   */
+  public static class Entry implements Serializable {
+
+    private static final long serialVersionUID = -6012532278004968313L;
+
+    private final String name;
+    private final long size;
+    private final long version;
+    private final String content;
+
+    Entry(String name, long size, long version, String content) {
+      this.name = name;
+      this.size = size;
+      this.version = version;
+      this.content = content;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    long getSize() {
+      return size;
+    }
+
+    long getVersion() {
+      return version;
+    }
+
+    /**
+     * @return hash of the manifest of the file
+     */
+    String getContent() {
+      return content;
+    }
+  }
+
+  /**
+   * An index read from or written to disk, along with the state of the log it matches.
+   */
+  public static class Snapshot implements Serializable {
+
+    private static final long serialVersionUID = 7714398112960443315L;
+
+    private final long slot;
+    private final long promisedBallot;
+    private final FileIndex index;
+
+    Snapshot(long slot, long promisedBallot, FileIndex index) {
+      this.slot = slot;
+      this.promisedBallot = promisedBallot;
+      this.index = index;
+    }
+
+    /**
+     * @return last log slot applied to the index
+     */
+    long getSlot() {
+      return slot;
+    }
+
+    /**
+     * @return ballot promised by the server when the snapshot was taken
+     */
+    long getPromisedBallot() {
+      return promisedBallot;
+    }
+
+    FileIndex getIndex() {
+      return index;
+    }
+
+    /**
+     * Writes the snapshot next to the file and moves it in place, so that a crash leaves either
+     * the old or the new snapshot behind.
+     */
+    void write(File file) throws IOException {
+      File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+      try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        CRC32 crc = new CRC32();
+        OutputStream stream = Channels.newOutputStream(channel);
+        DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+            new BufferedOutputStream(stream), crc));
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT);
+        out.writeLong(this.slot);
+        out.writeLong(this.promisedBallot);
+        out.writeInt(this.index.nextId.get());
+        out.writeInt(this.index.entries.size());
+        for (Map.Entry<Integer, Entry> entry : this.index.entries.entrySet()) {
+          byte[] name = entry.getValue().name.getBytes(StandardCharsets.UTF_8);
+          out.writeInt(entry.getKey());
+          out.writeLong(entry.getValue().size);
+          out.writeLong(entry.getValue().version);
+          out.writeInt(name.length);
+          out.write(name);
+          out.writeUTF(entry.getValue().content);
+        }
+        out.flush();
+        new DataOutputStream(stream).writeInt((int) crc.getValue());
+        channel.force(false);
+      }
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+      WriteAheadLog.forceDirectory(file.getParentFile());
+    }
+
+    /**
+     * Reads a snapshot by mapping the file into memory.
+     *
+     * @throws IOException if the file can not be read or is damaged
+     */
+    static Snapshot read(File file) throws IOException {
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+        long length = channel.size();
+        if (length < 4) {
+          throw new IOException("Index snapshot " + file + " is truncated");
+        }
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        ByteBuffer body = mapped.duplicate();
+        ((Buffer) body).limit((int) length - 4);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != mapped.getInt((int) length - 4)) {
+          throw new IOException("Index snapshot " + file + " is damaged");
+        }
+        int magic = mapped.getInt();
+        int format = mapped.getInt();
+        if (magic != MAGIC || format != FORMAT) {
+          throw new IOException("Unknown index snapshot format in " + file);
+        }
+        long slot = mapped.getLong();
+        long promisedBallot = mapped.getLong();
+        FileIndex index = new FileIndex();
+        index.nextId.set(mapped.getInt());
+        int count = mapped.getInt();
+        for (int i = 0; i < count; i++) {
+          int id = mapped.getInt();
+          long size = mapped.getLong();
+          long version = mapped.getLong();
+          byte[] name = new byte[mapped.getInt()];
+          mapped.get(name);
+          byte[] content = new byte[mapped.getShort() & 0xffff];
+          mapped.get(content);
+          index.load(id, new Entry(new String(name, StandardCharsets.UTF_8), size, version,
+              new String(content, StandardCharsets.UTF_8)));
+        }
+        return new Snapshot(slot, promisedBallot, index);
+      }
+    }
+  }
+
+  // Listing of the index at a number of modifications
+  private static class Listing {
+
+    private final long modifications;
+    private final Map<Integer, String> names;
+    private final Map<Integer, String> contents;
+
+    private Listing(long modifications, Map<Integer, String> names,
+        Map<Integer, String> contents) {
+      this.modifications = modifications;
+      this.names = names;
+      this.contents = contents;
+    }
+  }
+
+  // Lookups read the maps without locking, changes are made under the lock of the index so that
+  // both maps move together
+  private final ConcurrentHashMap<Integer, Entry> entries = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+  private final AtomicInteger nextId = new AtomicInteger();
+  private final AtomicLong modifications = new AtomicLong();
+  private transient volatile Listing listing;
+
+  FileIndex() {
+  }
+
+  /**
+   * @param firstId id of the first file added, the start of the id range of the replica group
+   */
+  FileIndex(int firstId) {
+    this.nextId.set(firstId);
+  }
+
+  /**
+   * Adds a file under the id the leader gave it, unless a file with the name is indexed already.
+   * The file takes the next id instead if it has none, or if the id was given to another file by
+   * a leader that did not know of it.
+   *
+   * @param id of the file, -1 for uploads logged before the leader gave out ids
+   */
+  synchronized void add(int id, String name, long size, long version, String content) {
+    this.advanceIds(id);
+    if (!this.ids.containsKey(name)) {
+      this.load(id < 0 || this.entries.containsKey(id) ? this.nextId.getAndIncrement() : id,
+          new Entry(name, size, version, content));
+      this.modifications.incrementAndGet();
+    }
+  }
+
+  /**
+   * Makes sure the ids given out by this index later are above an id given out by a leader.
+   */
+  void advanceIds(int id) {
+    this.nextId.accumulateAndGet(id + 1, Math::max);
+  }
+
+  /**
+   * @return the id the next file added without one gets
+   */
+  int getNextId() {
+    return this.nextId.get();
+  }
+
+  /**
+   * Sets size, version and content of a file, which keeps its id if it is indexed already.
+   *
+   * @return the file replaced, null if there was none
+   */
+  synchronized Entry put(String name, long size, long version, String content) {
+    Integer id = this.ids.get(name);
+    Entry replaced = this.load(id == null ? this.nextId.getAndIncrement() : id,
+        new Entry(name, size, version, content));
+    this.modifications.incrementAndGet();
+    return replaced;
+  }
+
+  /**
+   * Sets a file under the id a peer indexed it under. The file is moved if it is indexed under
+   * another id here. Another file indexed under the id is dropped, anti-entropy brings it back
+   * under its own id.
+   *
+   * @return the files replaced or dropped
+   */
+  synchronized List<Entry> put(int id, String name, long size, long version, String content) {
+    List<Entry> replaced = new ArrayList<>();
+    Integer current = this.ids.get(name);
+    if (current != null && current != id) {
+      replaced.add(this.entries.remove(current));
+    }
+    Entry previous = this.load(id, new Entry(name, size, version, content));
+    if (previous != null) {
+      if (!previous.name.equals(name)) {
+        this.ids.remove(previous.name, id);
+      }
+      replaced.add(previous);
+    }
+    this.advanceIds(id);
+    this.modifications.incrementAndGet();
+    return replaced;
+  }
+
+  /**
+   * @return the file removed, null if there was none
+   */
+  synchronized Entry remove(String name) {
+    Integer id = this.ids.remove(name);
+    if (id == null) {
+      return null;
+    }
+    Entry removed = this.entries.remove(id);
+    // Counted once both maps changed, a listing built in between is not kept
+    this.modifications.incrementAndGet();
+    return removed;
+  }
+
+  /**
+   * Gives a file a new name, which no other file may have.
+   *
+   * @return false if there is no file with the id or another file has the name
+   */
+  synchronized boolean rename(int id, String newName, long version) {
+    Entry entry = this.entries.get(id);
+    Integer taken = this.ids.get(newName);
+    if (entry == null || taken != null && taken != id) {
+      return false;
+    }
+    this.ids.remove(entry.name, id);
+    this.load(id, new Entry(newName, entry.size, version, entry.content));
+    this.modifications.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * @return name of the file with the id, null if there is none
+   */
+  String nameOf(int id) {
+    Entry entry = this.entries.get(id);
+    return entry == null ? null : entry.name;
+  }
+
+  Entry get(int id) {
+    return this.entries.get(id);
+  }
+
+  boolean contains(String name) {
+    return this.ids.containsKey(name);
+  }
+
+  /**
+   * @return the file with the name, null if there is none
+   */
+  Entry find(String name) {
+    Integer id = this.ids.get(name);
+    return id == null ? null : this.entries.get(id);
+  }
+
+  /**
+   * @return id of the file with the name, null if there is none
+   */
+  Integer idOf(String name) {
+    return this.ids.get(name);
+  }
+
+  int size() {
+    return this.entries.size();
+  }
+
+  /**
+   * @return names of the indexed files by id, shared by all callers until the index changes
+   */
+  Map<Integer, String> names() {
+    return this.listing().names;
+  }
+
+  /**
+   * @return the contents of the indexed files by id, files without content are left out
+   */
+  Map<Integer, String> contentsById() {
+    return this.listing().contents;
+  }
+
+  List<Entry> entries() {
+    return new ArrayList<>(this.entries.values());
+  }
+
+  /**
+   * @return the contents the indexed files refer to
+   */
+  List<String> contents() {
+    List<String> contents = new ArrayList<>();
+    this.entries.values().forEach(entry -> contents.add(entry.content));
+    return contents;
+  }
+
+  synchronized FileIndex copy() {
+    FileIndex copy = new FileIndex();
+    this.entries.forEach(copy::load);
+    copy.nextId.set(this.nextId.get());
+    return copy;
+  }
+
+  /**
+   * @return a copy holding only the files that fall into the buckets
+   */
+  synchronized FileIndex subset(Set<Integer> buckets) {
+    FileIndex subset = new FileIndex();
+    this.entries.forEach((id, entry) -> {
+      if (buckets.contains(bucketOf(entry.name))) {
+        subset.load(id, entry);
+      }
+    });
+    subset.nextId.set(this.nextId.get());
+    return subset;
+  }
+
+  /**
+   * Replaces the content of this index with the content of another one.
+   */
+  synchronized void replaceWith(FileIndex other) {
+    FileIndex source = other.copy();
+    this.entries.clear();
+    this.ids.clear();
+    source.entries.forEach(this::load);
+    this.nextId.set(source.nextId.get());
+    this.modifications.incrementAndGet();
+  }
+
+  /**
+   * Summarizes the files last changed at or before a slot, one digest per bucket. The digest of a
+   * bucket does not depend on the order of its files, it does on their ids, which all replicas
+   * must agree on.
+   */
+  synchronized long[] digests(long uptoSlot) {
+    long[] digests = new long[Constants.INDEX_DIGEST_BUCKETS];
+    this.entries.forEach((id, entry) -> {
+      if (entry.version <= uptoSlot) {
+        digests[bucketOf(entry.name)] += mix(mix(mix(mix(entry.name.hashCode() + entry.size)
+            + entry.version) + entry.content.hashCode()) + id);
+      }
+    });
+    return digests;
+  }
+
+  static int bucketOf(String name) {
+    return (name.hashCode() & Integer.MAX_VALUE) % Constants.INDEX_DIGEST_BUCKETS;
+  }
+
+  private static long mix(long value) {
+    long z = value + 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * Indexes an entry under the id, returns the entry it replaced.
+   */
+  private Entry load(int id, Entry entry) {
+    this.ids.put(entry.name, id);
+    return this.entries.put(id, entry);
+  }
+
+  /**
+   * Returns the listing of the index, building it again if the index changed since it was built.
+   * A listing built while the index changes is returned but not kept.
+   */
+  private Listing listing() {
+    long modifications = this.modifications.get();
+    Listing listing = this.listing;
+    if (listing != null && listing.modifications == modifications) {
+      return listing;
+    }
+    Map<Integer, String> names = new HashMap<>();
+    Map<Integer, String> contents = new HashMap<>();
+    this.entries.forEach((id, entry) -> {
+      names.put(id, entry.name);
+      contents.put(id, entry.content);
+    });
+    listing = new Listing(modifications, Collections.unmodifiableMap(names),
+        Collections.unmodifiableMap(contents));
+    if (this.modifications.get() == modifications) {
+      this.listing = listing;
+    }
+    return listing;
+  }
+}
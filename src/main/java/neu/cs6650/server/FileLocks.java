@@ -0,0 +1,105 @@
+package neu.cs6650.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read/write locks of the files of a server, by file name. Reads of a file share its lock, writes
+ * and holds for renames take it alone, and waiters are served in arrival order so that a stream of
+ * reads can not starve a write. Every file has a lock of its own, created on first use and
+ * dropped when no thread holds or waits for it, so a file held for a long time never delays
+ * another file.
+ */
+class FileLocks {
+
+  private static class FileLock {
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    // Threads holding or waiting for the lock
+    private int users;
+  }
+
+  /**
+   * A lock held on a file, released by closing it.
+   */
+  class Hold implements AutoCloseable {
+
+    private final String fileName;
+    private final Lock lock;
+
+    private Hold(String fileName, Lock lock) {
+      this.fileName = fileName;
+      this.lock = lock;
+    }
+
+    @Override
+    public void close() {
+      this.lock.unlock();
+      FileLocks.this.release(this.fileName);
+    }
+  }
+
+  private final ConcurrentHashMap<String, FileLock> locks = new ConcurrentHashMap<>();
+  private final Metrics metrics;
+
+  /**
+   * @param metrics to record how long every lock was waited for
+   */
+  FileLocks(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Locks a file for reading.
+   *
+   * @return the hold on the file, null if it was not locked within the timeout
+   */
+  Hold read(String fileName, long timeoutMs) throws InterruptedException {
+    return this.acquire(fileName, false, timeoutMs);
+  }
+
+  /**
+   * Locks a file for writing.
+   *
+   * @return the hold on the file, null if it was not locked within the timeout
+   */
+  Hold write(String fileName, long timeoutMs) throws InterruptedException {
+    return this.acquire(fileName, true, timeoutMs);
+  }
+
+  /**
+   * @return number of files locked or waited for
+   */
+  int size() {
+    return this.locks.size();
+  }
+
+  private Hold acquire(String fileName, boolean exclusive, long timeoutMs)
+      throws InterruptedException {
+    FileLock fileLock = this.locks.compute(fileName, (name, existing) -> {
+      FileLock used = existing == null ? new FileLock() : existing;
+      used.users++;
+      return used;
+    });
+    Lock lock = exclusive ? fileLock.lock.writeLock() : fileLock.lock.readLock();
+    boolean locked = false;
+    long start = System.nanoTime();
+    try {
+      locked = lock.tryLock(timeoutMs, TimeUnit.MILLISECONDS);
+    } finally {
+      this.metrics.lockWait(exclusive, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start),
+          locked);
+      if (!locked) {
+        this.release(fileName);
+      }
+    }
+    return locked ? new Hold(fileName, lock) : null;
+  }
+
+  private void release(String fileName) {
+    this.locks.computeIfPresent(fileName, (name, existing) ->
+        --existing.users == 0 ? null : existing);
+  }
+}
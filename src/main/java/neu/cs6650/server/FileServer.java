@@ -5,13 +5,19 @@ import java.rmi.registry.Registry;
 import java.util.Scanner;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import neu.cs6650.utils.AsyncLogHandler;
 import neu.cs6650.utils.Constants;
+import neu.cs6650.utils.StubCache;
 
 public class FileServer {
 
   private static Logger logger = Logger.getLogger(FileServer.class.getName());
 
   public static void main(String[] args) throws Exception {
+    // Requests are logged from the RMI threads, which must not wait for the console
+    AsyncLogHandler.install();
+    // Calls to a hung peer would otherwise hold a peer thread until TCP gives up
+    StubCache.setResponseTimeout(Constants.RMI_RESPONSE_TIMEOUT_MS);
     Scanner sc = new Scanner(System.in);
 
     System.out.print("Enter the port number which is not already used [7000 - 7004] : ");
@@ -20,7 +26,9 @@ public class FileServer {
     Registry registry = LocateRegistry.createRegistry(pNo);
     logger.log(Level.INFO, "Registry created at port : {0}", pNo);
 
-    registry.bind("FileServer", new DistributedFileServerImpl(pNo));
+    DistributedFileServerImpl server = new DistributedFileServerImpl(pNo);
+    Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown, "shutdown-" + pNo));
+    registry.bind("FileServer", server);
 
     logger.log(Level.INFO, "Bound at registry port {0} with name {1}", new Object[]{pNo,
         Constants.SERVER_NAME});
@@ -0,0 +1,97 @@
+package neu.cs6650.server;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import neu.cs6650.utils.Constants;
+import neu.cs6650.utils.InvalidationListener;
+
+/**
+ * Leases granted to clients caching the file listing of a server. While its lease lasts a client
+ * answers listings and downloads from its cache, so the server has to tell it of every file that
+ * changes. Invalidations are sent from a thread of their own, clients that can not be reached are
+ * dropped and have to ask for a new lease.
+ */
+class LeaseTable {
+
+  private static Logger logger = Logger.getLogger(LeaseTable.class.getName());
+
+  // Expiry of the lease of each listener
+  private final Map<InvalidationListener, Long> leases = new HashMap<>();
+  private final ExecutorService notifier;
+
+  LeaseTable(int serverPort) {
+    this.notifier = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "invalidations-" + serverPort);
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Grants or renews the lease of a listener. It has to be granted before the listing is read, so
+   * that no change after the listing goes unnoticed.
+   *
+   * @return duration of the lease
+   */
+  synchronized long grant(InvalidationListener listener) {
+    this.leases.put(listener, System.currentTimeMillis() + Constants.CACHE_LEASE_MS);
+    return Constants.CACHE_LEASE_MS;
+  }
+
+  /**
+   * Tells the holders of a lease that the file with the id changed.
+   */
+  void invalidate(int fileId) {
+    for (InvalidationListener listener : this.holders()) {
+      this.notifier.execute(() -> this.send(listener, () -> listener.invalidate(fileId)));
+    }
+  }
+
+  /**
+   * Tells the holders of a lease that any file may have changed.
+   */
+  void invalidateAll() {
+    for (InvalidationListener listener : this.holders()) {
+      this.notifier.execute(() -> this.send(listener, listener::invalidateAll));
+    }
+  }
+
+  /**
+   * @return listeners whose lease lasts, expired ones are dropped
+   */
+  private synchronized List<InvalidationListener> holders() {
+    long now = System.currentTimeMillis();
+    Iterator<Map.Entry<InvalidationListener, Long>> iterator = this.leases.entrySet().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().getValue() < now) {
+        iterator.remove();
+      }
+    }
+    return new ArrayList<>(this.leases.keySet());
+  }
+
+  private void send(InvalidationListener listener, Invalidation invalidation) {
+    try {
+      invalidation.send();
+    } catch (RemoteException e) {
+      // The client revalidates its listing once the lease would have expired
+      synchronized (this) {
+        this.leases.remove(listener);
+      }
+      logger.log(Level.INFO, "Dropped lease of unreachable client: {0}", e.getMessage());
+    }
+  }
+
+  private interface Invalidation {
+
+    void send() throws RemoteException;
+  }
+}
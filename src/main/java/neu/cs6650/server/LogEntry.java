@@ -0,0 +1,38 @@
+package neu.cs6650.server;
+
+import java.io.Serializable;
+
+/**
+ * A single write stored in a slot of the replicated log.
+ */
+class LogEntry implements Serializable {
+
+  private static final long serialVersionUID = 2675473394815012934L;
+
+  private final Operation operation;
+  private final String fileName;
+  private final byte[] data;
+
+  LogEntry(Operation operation, String fileName, byte[] data) {
+    this.operation = operation;
+    this.fileName = fileName;
+    this.data = data;
+  }
+
+  Operation getOperation() {
+    return operation;
+  }
+
+  String getFileName() {
+    return fileName;
+  }
+
+  byte[] getData() {
+    return data;
+  }
+
+  @Override
+  public String toString() {
+    return operation + " " + fileName;
+  }
+}
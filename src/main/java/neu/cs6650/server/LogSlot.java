@@ -0,0 +1,42 @@
+package neu.cs6650.server;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * The batch of writes accepted for a slot of the replicated log, together with the ballot it was
+ * accepted with. An empty batch is a no-op.
+ */
+class LogSlot implements Serializable {
+
+  private static final long serialVersionUID = -3189016424710541296L;
+
+  private final long ballot;
+  private final List<LogEntry> entries;
+  private final boolean committed;
+
+  LogSlot(long ballot, List<LogEntry> entries, boolean committed) {
+    this.ballot = ballot;
+    this.entries = entries;
+    this.committed = committed;
+  }
+
+  long getBallot() {
+    return ballot;
+  }
+
+  List<LogEntry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * @return true once a majority accepted the batch, only committed slots are applied
+   */
+  boolean isCommitted() {
+    return committed;
+  }
+
+  LogSlot commit() {
+    return this.committed ? this : new LogSlot(this.ballot, this.entries, true);
+  }
+}
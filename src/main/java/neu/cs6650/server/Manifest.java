@@ -0,0 +1,120 @@
+package neu.cs6650.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The list of chunks a file is made of, in order. A manifest is stored in the chunk store like any
+ * chunk, the hash of its encoding identifies the content of the file.
+ *
+ * <p>The chunks of a file are either replicated, every server keeps them whole, or erasure coded,
+ * every server keeps one Reed-Solomon shard of every chunk.
+ */
+class Manifest {
+
+  static final int MAGIC = 0x44465344;
+
+  // 0 if the chunks are replicated
+  private final int dataShards;
+  private final int parityShards;
+  private final List<String> hashes;
+  // Offset of every chunk in the file, followed by the size of the file
+  private final long[] offsets;
+
+  Manifest(List<String> hashes, List<Integer> lengths) {
+    this(hashes, lengths, 0, 0);
+  }
+
+  Manifest(List<String> hashes, List<Integer> lengths, int dataShards, int parityShards) {
+    this.dataShards = dataShards;
+    this.parityShards = parityShards;
+    this.hashes = Collections.unmodifiableList(new ArrayList<>(hashes));
+    this.offsets = new long[hashes.size() + 1];
+    for (int i = 0; i < hashes.size(); i++) {
+      this.offsets[i + 1] = this.offsets[i] + lengths.get(i);
+    }
+  }
+
+  boolean isErasureCoded() {
+    return this.dataShards > 0;
+  }
+
+  int getDataShards() {
+    return dataShards;
+  }
+
+  int getParityShards() {
+    return parityShards;
+  }
+
+  List<String> getHashes() {
+    return hashes;
+  }
+
+  long getSize() {
+    return this.offsets[this.offsets.length - 1];
+  }
+
+  long offsetOf(int chunk) {
+    return this.offsets[chunk];
+  }
+
+  int lengthOf(int chunk) {
+    return (int) (this.offsets[chunk + 1] - this.offsets[chunk]);
+  }
+
+  /**
+   * @return index of the chunk holding the byte at the offset
+   */
+  int chunkAt(long offset) {
+    int index = Arrays.binarySearch(this.offsets, offset);
+    return index >= 0 ? index : -index - 2;
+  }
+
+  byte[] encode() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(MAGIC);
+      out.writeInt(this.dataShards);
+      out.writeInt(this.parityShards);
+      out.writeInt(this.hashes.size());
+      for (int i = 0; i < this.hashes.size(); i++) {
+        out.writeUTF(this.hashes.get(i));
+        out.writeInt(this.lengthOf(i));
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  static Manifest decode(byte[] encoded) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a manifest");
+    }
+    int dataShards = in.readInt();
+    int parityShards = in.readInt();
+    int count = in.readInt();
+    if (count < 0 || count > encoded.length) {
+      throw new IOException("Not a manifest");
+    }
+    List<String> hashes = new ArrayList<>(count);
+    List<Integer> lengths = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      hashes.add(in.readUTF());
+      lengths.add(in.readInt());
+    }
+    if (in.available() > 0) {
+      throw new IOException("Not a manifest");
+    }
+    return new Manifest(hashes, lengths, dataShards, parityShards);
+  }
+}
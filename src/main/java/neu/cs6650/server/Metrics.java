@@ -0,0 +1,312 @@
+package neu.cs6650.server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import neu.cs6650.utils.AsyncLogHandler;
+import neu.cs6650.utils.Constants;
+import neu.cs6650.utils.LatencyHistogram;
+
+/**
+ * Counters and latency histograms of a server: every client request by operation, every
+ * consensus round by phase, the round trip to every peer by phase and the waits for file locks.
+ * All of them are created with the server, recording one only looks it up by index.
+ *
+ * <p>The metrics are registered with the platform MBean server and scraped in the Prometheus text
+ * format from a {@link MetricsServer}.
+ */
+class Metrics implements MetricsMXBean {
+
+  private static Logger logger = Logger.getLogger(Metrics.class.getName());
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+  private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+  private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+  /**
+   * Requests of clients.
+   */
+  enum Request {
+    LIST, UPLOAD, DOWNLOAD, DELETE, RENAME;
+
+    String label() {
+      return this.name().toLowerCase();
+    }
+  }
+
+  /**
+   * Calls to peers, a write is forwarded to the leader, its content transferred to the peers and
+   * then accepted by them. Prepare rounds run on elections only.
+   */
+  enum Phase {
+    FORWARD, TRANSFER, PREPARE, ACCEPT, COMMIT;
+
+    String label() {
+      return this.name().toLowerCase();
+    }
+  }
+
+  enum Counter {
+    RETRIES("retries_total", "Writes retried after the leader changed or an election failed"),
+    PROMISE_REJECTIONS("promise_rejections_total",
+        "Prepare and accept requests peers rejected for a higher ballot"),
+    PEER_FAILURES("peer_failures_total", "Calls to peers that failed or timed out"),
+    LOCK_TIMEOUTS("lock_timeouts_total", "Requests that timed out waiting for a file lock"),
+    READS_REJECTED("reads_rejected_total", "Reads turned away by admission control"),
+    WRITES_REJECTED("writes_rejected_total", "Writes turned away by admission control"),
+    CONSENSUS_REJECTED("consensus_rejected_total",
+        "Consensus calls from peers turned away by admission control"),
+    REPLICATION_REJECTED("replication_rejected_total",
+        "Chunks replicated by peers turned away by admission control"),
+    FILES_HANDED_OFF("files_handed_off_total",
+        "Files handed off to the replica group that owns their name"),
+    BYTES_RECEIVED("bytes_received_total", "File content received from clients and peers"),
+    BYTES_SENT("bytes_sent_total", "File content sent to clients and peers");
+
+    private final String metric;
+    private final String help;
+
+    Counter(String metric, String help) {
+      this.metric = metric;
+      this.help = help;
+    }
+  }
+
+  private final int[] peers;
+  private final LatencyHistogram.Concurrent[] requests =
+      new LatencyHistogram.Concurrent[Request.values().length];
+  private final LongAdder[] errors = new LongAdder[Request.values().length];
+  private final LatencyHistogram.Concurrent[] rounds =
+      new LatencyHistogram.Concurrent[Phase.values().length];
+  // Round trips by index of the peer in peers, then by phase
+  private final LatencyHistogram.Concurrent[][] roundTrips;
+  private final LatencyHistogram.Concurrent readLockWaits =
+      new LatencyHistogram.Concurrent();
+  private final LatencyHistogram.Concurrent writeLockWaits =
+      new LatencyHistogram.Concurrent();
+  private final LongAdder[] counters = new LongAdder[Counter.values().length];
+  // Set by export, null until then or if the port could not be opened
+  private volatile ObjectName objectName;
+  private volatile MetricsServer server;
+
+  /**
+   * @param peers ports of the servers this server calls
+   */
+  Metrics(int[] peers) {
+    this.peers = peers.clone();
+    for (int i = 0; i < this.requests.length; i++) {
+      this.requests[i] = new LatencyHistogram.Concurrent();
+      this.errors[i] = new LongAdder();
+    }
+    for (int i = 0; i < this.rounds.length; i++) {
+      this.rounds[i] = new LatencyHistogram.Concurrent();
+    }
+    this.roundTrips = new LatencyHistogram.Concurrent[this.peers.length][Phase.values().length];
+    for (LatencyHistogram.Concurrent[] phases : this.roundTrips) {
+      for (int i = 0; i < phases.length; i++) {
+        phases[i] = new LatencyHistogram.Concurrent();
+      }
+    }
+    for (int i = 0; i < this.counters.length; i++) {
+      this.counters[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Registers the metrics with the platform MBean server and serves them at the metrics port of
+   * the server.
+   */
+  void export(int serverPort) {
+    try {
+      ObjectName name = new ObjectName("neu.cs6650:type=Metrics,port=" + serverPort);
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+      this.objectName = name;
+    } catch (JMException e) {
+      logger.log(Level.WARNING, "Unable to register metrics: {0}", e.getMessage());
+    }
+    try {
+      this.server = new MetricsServer(serverPort + Constants.METRICS_PORT_OFFSET, this);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Unable to open metrics port: {0}", e.getMessage());
+    }
+  }
+
+  /**
+   * Undoes {@link #export(int)}.
+   */
+  void close() {
+    if (this.objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+      } catch (JMException e) {
+        logger.log(Level.FINE, "Unable to unregister metrics: {0}", e.getMessage());
+      }
+    }
+    if (this.server != null) {
+      this.server.close();
+    }
+  }
+
+  void request(Request request, long micros, boolean ok) {
+    this.requests[request.ordinal()].record(micros);
+    if (!ok) {
+      this.errors[request.ordinal()].increment();
+    }
+  }
+
+  /**
+   * Records how long a round of calls to the peers took until the server could go on.
+   */
+  void round(Phase phase, long micros) {
+    this.rounds[phase.ordinal()].record(micros);
+  }
+
+  void roundTrip(Phase phase, int port, long micros) {
+    for (int i = 0; i < this.peers.length; i++) {
+      if (this.peers[i] == port) {
+        this.roundTrips[i][phase.ordinal()].record(micros);
+        return;
+      }
+    }
+  }
+
+  void lockWait(boolean exclusive, long micros, boolean locked) {
+    (exclusive ? this.writeLockWaits : this.readLockWaits).record(micros);
+    if (!locked) {
+      this.count(Counter.LOCK_TIMEOUTS);
+    }
+  }
+
+  void count(Counter counter) {
+    this.counters[counter.ordinal()].increment();
+  }
+
+  void add(Counter counter, long amount) {
+    this.counters[counter.ordinal()].add(amount);
+  }
+
+  @Override
+  public Map<String, Long> getCounters() {
+    Map<String, Long> values = new TreeMap<>();
+    for (Counter counter : Counter.values()) {
+      values.put(counter.metric, this.counters[counter.ordinal()].sum());
+    }
+    for (Request request : Request.values()) {
+      values.put("request_errors_" + request.label(), this.errors[request.ordinal()].sum());
+    }
+    AsyncLogHandler log = AsyncLogHandler.installed();
+    if (log != null) {
+      values.put("log_records_dropped_total", log.getDropped());
+      values.put("log_records_sampled_out_total", log.getSampledOut());
+    }
+    return values;
+  }
+
+  @Override
+  public Map<String, Long> getLatencies() {
+    Map<String, Long> latencies = new TreeMap<>();
+    for (Request request : Request.values()) {
+      describe(latencies, "request_" + request.label(), this.requests[request.ordinal()]);
+    }
+    for (Phase phase : Phase.values()) {
+      describe(latencies, "round_" + phase.label(), this.rounds[phase.ordinal()]);
+      for (int i = 0; i < this.peers.length; i++) {
+        describe(latencies, "peer_" + this.peers[i] + "_" + phase.label(),
+            this.roundTrips[i][phase.ordinal()]);
+      }
+    }
+    describe(latencies, "lock_wait_read", this.readLockWaits);
+    describe(latencies, "lock_wait_write", this.writeLockWaits);
+    return latencies;
+  }
+
+  private static void describe(Map<String, Long> latencies, String name,
+      LatencyHistogram.Concurrent histogram) {
+    LatencyHistogram snapshot = histogram.snapshot();
+    latencies.put(name + "_count", snapshot.getCount());
+    latencies.put(name + "_mean", (long) snapshot.getMean());
+    for (int i = 0; i < PERCENTILES.length; i++) {
+      latencies.put(name + "_" + PERCENTILE_NAMES[i], snapshot.percentile(PERCENTILES[i]));
+    }
+    latencies.put(name + "_max", snapshot.getMax());
+  }
+
+  /**
+   * @return all metrics in the Prometheus text format
+   */
+  String scrape() {
+    StringBuilder out = new StringBuilder();
+    header(out, "request_duration_seconds", "summary", "Client requests handled by the server");
+    for (Request request : Request.values()) {
+      summary(out, "request_duration_seconds", "operation=\"" + request.label() + "\"",
+          this.requests[request.ordinal()]);
+    }
+    header(out, "request_errors_total", "counter", "Client requests that did not succeed");
+    for (Request request : Request.values()) {
+      sample(out, "request_errors_total", "operation=\"" + request.label() + "\"",
+          this.errors[request.ordinal()].sum());
+    }
+    header(out, "round_duration_seconds", "summary",
+        "Rounds of calls to the peers until a quorum answered");
+    for (Phase phase : Phase.values()) {
+      summary(out, "round_duration_seconds", "phase=\"" + phase.label() + "\"",
+          this.rounds[phase.ordinal()]);
+    }
+    header(out, "peer_round_trip_seconds", "summary", "Calls to every peer");
+    for (int i = 0; i < this.peers.length; i++) {
+      for (Phase phase : Phase.values()) {
+        summary(out, "peer_round_trip_seconds", "peer=\"" + this.peers[i] + "\",phase=\""
+            + phase.label() + "\"", this.roundTrips[i][phase.ordinal()]);
+      }
+    }
+    header(out, "lock_wait_seconds", "summary", "Waits for the lock of a file");
+    summary(out, "lock_wait_seconds", "mode=\"read\"", this.readLockWaits);
+    summary(out, "lock_wait_seconds", "mode=\"write\"", this.writeLockWaits);
+    for (Counter counter : Counter.values()) {
+      header(out, counter.metric, "counter", counter.help);
+      sample(out, counter.metric, null, this.counters[counter.ordinal()].sum());
+    }
+    AsyncLogHandler log = AsyncLogHandler.installed();
+    if (log != null) {
+      header(out, "log_records_dropped_total", "counter",
+          "Log records dropped because the log buffer was full");
+      sample(out, "log_records_dropped_total", null, log.getDropped());
+      header(out, "log_records_sampled_out_total", "counter",
+          "Request log records at INFO not kept by sampling");
+      sample(out, "log_records_sampled_out_total", null, log.getSampledOut());
+    }
+    return out.toString();
+  }
+
+  private static void header(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP dfs_").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE dfs_").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void summary(StringBuilder out, String name, String labels,
+      LatencyHistogram.Concurrent histogram) {
+    // One snapshot, so that the quantiles, sum and count agree with each other
+    LatencyHistogram snapshot = histogram.snapshot();
+    for (int i = 0; i < PERCENTILES.length; i++) {
+      out.append("dfs_").append(name).append('{').append(labels).append(",quantile=\"")
+          .append(QUANTILES[i]).append("\"} ").append(snapshot.percentile(PERCENTILES[i]) / 1e6)
+          .append('\n');
+    }
+    out.append("dfs_").append(name).append("_sum{").append(labels).append("} ")
+        .append(snapshot.getSum() / 1e6).append('\n');
+    sample(out, name + "_count", labels, snapshot.getCount());
+  }
+
+  private static void sample(StringBuilder out, String name, String labels, long value) {
+    out.append("dfs_").append(name);
+    if (labels != null) {
+      out.append('{').append(labels).append('}');
+    }
+    out.append(' ').append(value).append('\n');
+  }
+}
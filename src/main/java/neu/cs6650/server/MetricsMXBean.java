@@ -0,0 +1,19 @@
+package neu.cs6650.server;
+
+import java.util.Map;
+
+/**
+ * Request, consensus and peer metrics of a server, exposed through JMX.
+ */
+public interface MetricsMXBean {
+
+  /**
+   * @return value of every counter by name
+   */
+  Map<String, Long> getCounters();
+
+  /**
+   * @return latencies in microseconds by histogram and statistic, like request_upload_p99
+   */
+  Map<String, Long> getLatencies();
+}
@@ -0,0 +1,76 @@
+package neu.cs6650.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Answers Prometheus scrapes of the metrics of a server with a minimal HTTP/1.0 responder. Only
+ * the loopback interface is listened on. Scrapes are rare and cheap, so they are answered one
+ * after the other on a single thread.
+ */
+class MetricsServer {
+
+  private static Logger logger = Logger.getLogger(MetricsServer.class.getName());
+  private static final int SOCKET_TIMEOUT_MS = 5000;
+
+  private final ServerSocket serverSocket;
+  private final Metrics metrics;
+
+  MetricsServer(int port, Metrics metrics) throws IOException {
+    this.metrics = metrics;
+    this.serverSocket = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+    Thread acceptor = new Thread(this::acceptConnections, "metrics-" + port);
+    acceptor.setDaemon(true);
+    acceptor.start();
+    logger.log(Level.INFO, "Serving metrics at http://localhost:{0,number,#}/metrics", port);
+  }
+
+  private void acceptConnections() {
+    while (!this.serverSocket.isClosed()) {
+      try (Socket socket = this.serverSocket.accept()) {
+        socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+        this.serve(socket);
+      } catch (IOException e) {
+        logger.log(Level.FINE, "Metrics scrape failed: {0}", e.getMessage());
+      }
+    }
+  }
+
+  void close() {
+    try {
+      this.serverSocket.close();
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Unable to close metrics port");
+    }
+  }
+
+  private void serve(Socket socket) throws IOException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+        StandardCharsets.US_ASCII));
+    String requestLine = in.readLine();
+    // The headers are of no interest but have to be read before answering
+    for (String header = in.readLine(); header != null && !header.isEmpty();
+        header = in.readLine()) {
+      logger.log(Level.FINEST, "Metrics request header {0}", header);
+    }
+    String[] request = requestLine == null ? new String[0] : requestLine.split(" ");
+    boolean found = request.length >= 2 && request[0].equals("GET")
+        && (request[1].equals("/metrics") || request[1].startsWith("/metrics?"));
+    byte[] body = (found ? this.metrics.scrape() : "Not found\n")
+        .getBytes(StandardCharsets.UTF_8);
+    OutputStream out = socket.getOutputStream();
+    out.write(((found ? "HTTP/1.0 200 OK" : "HTTP/1.0 404 Not Found")
+        + "\r\nContent-Type: text/plain; version=0.0.4; charset=utf-8\r\nContent-Length: "
+        + body.length + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+    out.write(body);
+    out.flush();
+  }
+}
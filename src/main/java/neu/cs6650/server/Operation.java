@@ -1,7 +1,30 @@
 package neu.cs6650.server;
 
 enum Operation {
-  UPLOAD_FILE,
-  DELETE_FILE,
-  RENAME_FILE
+  UPLOAD_FILE("UPLOAD"),
+  DELETE_FILE("DELETE"),
+  RENAME_FILE("RENAME"),
+  // An upload that fails if a file with the name exists, rather than leaving that file in place
+  CREATE_FILE("UPLOAD");
+
+  private final String label;
+
+  Operation(String label) {
+    this.label = label;
+  }
+
+  /**
+   * @return whether the operation adds a file with content
+   */
+  boolean uploads() {
+    return this == UPLOAD_FILE || this == CREATE_FILE;
+  }
+
+  String successMessage() {
+    return label + " SUCCESS!";
+  }
+
+  String failureMessage() {
+    return label + " FAILED!";
+  }
 }
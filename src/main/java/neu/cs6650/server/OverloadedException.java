@@ -0,0 +1,24 @@
+package neu.cs6650.server;
+
+/**
+ * Thrown by calls that do not answer with a Response when the server turned them away for being
+ * overloaded.
+ */
+public class OverloadedException extends RuntimeException {
+
+  private static final long serialVersionUID = -1320880221821416802L;
+
+  private final long retryAfterMs;
+
+  public OverloadedException(String message, long retryAfterMs) {
+    super(message);
+    this.retryAfterMs = retryAfterMs;
+  }
+
+  /**
+   * @return time in milliseconds after which the call may be made again
+   */
+  public long getRetryAfterMs() {
+    return retryAfterMs;
+  }
+}
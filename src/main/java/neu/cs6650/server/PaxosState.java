@@ -0,0 +1,179 @@
+package neu.cs6650.server;
+
+import neu.cs6650.utils.Constants;
+
+/**
+ * Proposer and acceptor state of a server taking part in Multi-Paxos.
+ *
+ * <p>Ballots are built from a round number in the high bits and the port of the proposing server
+ * in the low 16 bits, which makes them unique per server and tells acceptors who the leader of a
+ * ballot is. A server that won a prepare round stays leader for that ballot and only runs the
+ * accept phase, with increasing log slots, until some acceptor promises a higher ballot.
+ * Acceptors that heard from a leader within the lease do not promise ballots of other servers,
+ * so a live leader is not disrupted by candidates that merely did not hear of it yet.
+ */
+class PaxosState {
+
+  private static final int PORT_BITS = 16;
+  private static final long PORT_MASK = (1L << PORT_BITS) - 1;
+
+  private final int serverPort;
+  // Highest ballot this server promised or accepted as acceptor
+  private long promisedBallot;
+  // Ballot this server leads with, 0 when not leader
+  private long leaderBallot;
+  // Port of the leader learned from accepted ballots, 0 when unknown
+  private int leaderPort;
+  private long lastSlot;
+  private long nextSlot;
+  private long lastLeaderContact;
+
+  PaxosState(int serverPort) {
+    this.serverPort = serverPort;
+  }
+
+  /**
+   * @return a ballot higher than any ballot seen so far, owned by this server
+   */
+  synchronized long nextBallot() {
+    long round = (this.promisedBallot >>> PORT_BITS) + 1;
+    return (round << PORT_BITS) | this.serverPort;
+  }
+
+  static int portOf(long ballot) {
+    return (int) (ballot & PORT_MASK);
+  }
+
+  /**
+   * Acceptor side of the prepare phase.
+   *
+   * @return last slot known to this acceptor
+   * @throws PromiseException if a higher ballot was promised already
+   */
+  synchronized long promise(long ballot) {
+    if (ballot < this.promisedBallot) {
+      throw new PromiseException("Requester Id lower than Acceptor Id");
+    }
+    if (this.hasLiveLeader() && this.leaderPort != portOf(ballot)) {
+      throw new PromiseException("Leader at port " + this.leaderPort + " is alive");
+    }
+    this.promisedBallot = ballot;
+    if (this.leaderBallot != 0 && this.leaderBallot != ballot) {
+      this.leaderBallot = 0;
+    }
+    return this.lastSlot;
+  }
+
+  /**
+   * Acceptor side of the accept phase, records the slot and learns the leader of the ballot.
+   *
+   * @throws PromiseException if a higher ballot was promised already
+   */
+  synchronized void accept(long ballot, long slot) {
+    if (!this.learnLeader(ballot)) {
+      throw new PromiseException("Requester Id lower than Acceptor Id");
+    }
+    this.lastSlot = Math.max(this.lastSlot, slot);
+  }
+
+  /**
+   * Records a message from the leader of a ballot.
+   *
+   * @return false if the ballot is lower than the one promised
+   */
+  synchronized boolean learnLeader(long ballot) {
+    if (ballot < this.promisedBallot) {
+      return false;
+    }
+    this.promisedBallot = ballot;
+    this.leaderPort = portOf(ballot);
+    this.lastLeaderContact = System.currentTimeMillis();
+    if (this.leaderBallot != ballot) {
+      this.leaderBallot = 0;
+    }
+    return true;
+  }
+
+  private boolean hasLiveLeader() {
+    return this.leaderBallot != 0 || (this.leaderPort != 0
+        && System.currentTimeMillis() - this.lastLeaderContact < Constants.LEADER_LEASE_MS);
+  }
+
+  /**
+   * Restores the acceptor state from a record of the write-ahead log, while the server starts.
+   */
+  synchronized void restore(long ballot, long slot) {
+    this.promisedBallot = Math.max(this.promisedBallot, ballot);
+    this.lastSlot = Math.max(this.lastSlot, slot);
+  }
+
+  /**
+   * Makes this server leader of a ballot after a majority promised it.
+   *
+   * @param highestSlot highest slot reported by the promising acceptors
+   */
+  synchronized boolean becomeLeader(long ballot, long highestSlot) {
+    if (ballot < this.promisedBallot) {
+      return false;
+    }
+    this.promisedBallot = ballot;
+    this.leaderBallot = ballot;
+    this.leaderPort = this.serverPort;
+    this.lastSlot = Math.max(this.lastSlot, highestSlot);
+    this.nextSlot = this.lastSlot + 1;
+    return true;
+  }
+
+  /**
+   * Gives up leadership of a ballot, for example after an acceptor rejected it.
+   */
+  synchronized void stepDown(long ballot) {
+    if (this.leaderBallot == ballot) {
+      this.leaderBallot = 0;
+      this.leaderPort = 0;
+    }
+  }
+
+  /**
+   * Forgets a leader that could not be reached.
+   */
+  synchronized void leaderFailed(int port) {
+    if (this.leaderPort == port) {
+      this.leaderPort = 0;
+      this.lastLeaderContact = 0;
+    }
+  }
+
+  /**
+   * @return the highest ballot promised or accepted so far
+   */
+  synchronized long getPromisedBallot() {
+    return this.promisedBallot;
+  }
+
+  /**
+   * @return the ballot this server currently leads with, 0 if it is not leader
+   */
+  synchronized long getLeaderBallot() {
+    return this.leaderBallot;
+  }
+
+  /**
+   * @return port of the current leader, 0 if unknown
+   */
+  synchronized int getLeaderPort() {
+    return this.leaderPort;
+  }
+
+  /**
+   * Reserves the next log slot for a ballot this server leads with.
+   *
+   * @return the slot or -1 if this server is no longer leader of the ballot
+   */
+  synchronized long reserveSlot(long ballot) {
+    if (this.leaderBallot != ballot || ballot < this.promisedBallot) {
+      return -1;
+    }
+    return this.nextSlot++;
+  }
+}
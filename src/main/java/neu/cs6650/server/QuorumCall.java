@@ -0,0 +1,149 @@
+package neu.cs6650.server;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends the same request to a set of peers concurrently and waits until a quorum of them answered
+ * successfully, all of them answered or the deadline passed, whichever comes first. Requests that
+ * are still running when the call returns keep going in the background, until they fail after
+ * {@link neu.cs6650.utils.Constants#RMI_RESPONSE_TIMEOUT_MS} at the latest.
+ *
+ * @param <T> type of the peer response
+ */
+class QuorumCall<T> {
+
+  private static Logger logger = Logger.getLogger(QuorumCall.class.getName());
+
+  /**
+   * A single request sent to the server at a port.
+   */
+  interface PeerRequest<T> {
+
+    T send(int port) throws Exception;
+  }
+
+  private final Map<Integer, T> responses = new HashMap<>();
+  private int rejections;
+  private int failures;
+  private int timeouts;
+
+  private QuorumCall() {
+  }
+
+  /**
+   * @param executor  to run the requests on
+   * @param ports     of the peers to send the request to
+   * @param request   to be sent
+   * @param quorum    number of successful responses after which the call returns
+   * @param timeoutMs deadline for the whole call
+   * @param phase     name of the request used in logs
+   * @param onAllDone run once every request finished, including stragglers, may be null
+   */
+  static <T> QuorumCall<T> send(ExecutorService executor, Collection<Integer> ports,
+      PeerRequest<T> request, int quorum, long timeoutMs, String phase, Runnable onAllDone) {
+    QuorumCall<T> call = new QuorumCall<>();
+    CompletionService<Map.Entry<Integer, T>> completion = new ExecutorCompletionService<>(
+        executor);
+    AtomicInteger pending = new AtomicInteger(ports.size());
+    Map<Future<Map.Entry<Integer, T>>, Integer> futures = new HashMap<>();
+    if (ports.isEmpty() && onAllDone != null) {
+      onAllDone.run();
+    }
+    for (int port : ports) {
+      try {
+        futures.put(completion.submit(() -> {
+          try {
+            return new HashMap.SimpleImmutableEntry<>(port, request.send(port));
+          } finally {
+            if (pending.decrementAndGet() == 0 && onAllDone != null) {
+              onAllDone.run();
+            }
+          }
+        }), port);
+      } catch (RejectedExecutionException e) {
+        logger.log(Level.SEVERE, "{0} to port {1} rejected, too many requests in flight",
+            new Object[]{phase, port});
+        call.failures++;
+        if (pending.decrementAndGet() == 0 && onAllDone != null) {
+          onAllDone.run();
+        }
+      }
+    }
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    int answered = call.failures;
+    while (call.responses.size() < quorum && answered < ports.size()) {
+      Future<Map.Entry<Integer, T>> future;
+      try {
+        future = completion.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      if (future == null) {
+        logger.log(Level.SEVERE, "{0} deadline of {1} ms passed with {2} / {3} answers",
+            new Object[]{phase, timeoutMs, answered, ports.size()});
+        call.timeouts = ports.size() - answered;
+        break;
+      }
+      answered++;
+      try {
+        Map.Entry<Integer, T> response = future.get();
+        call.responses.put(response.getKey(), response.getValue());
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof PromiseException) {
+          call.rejections++;
+          logger.log(Level.SEVERE, e.getCause().getMessage());
+        } else {
+          call.failures++;
+          logger.log(Level.SEVERE, "{0} failed for FileServer at port {1}: {2}",
+              new Object[]{phase, futures.get(future), e.getCause()});
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    return call;
+  }
+
+  /**
+   * @return successful responses by port
+   */
+  Map<Integer, T> getResponses() {
+    return responses;
+  }
+
+  /**
+   * @return number of peers that answered but rejected the request
+   */
+  int getRejections() {
+    return rejections;
+  }
+
+  /**
+   * @return number of peers that could not be reached or failed to handle the request
+   */
+  int getFailures() {
+    return failures;
+  }
+
+  /**
+   * @return number of peers that did not answer before the deadline
+   */
+  int getTimeouts() {
+    return timeouts;
+  }
+}
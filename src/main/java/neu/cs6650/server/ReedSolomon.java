@@ -0,0 +1,187 @@
+package neu.cs6650.server;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Systematic Reed-Solomon code over GF(2^8). Data is cut into a number of data shards and
+ * extended by parity shards, any set of shards as large as the number of data shards is enough to
+ * rebuild the data. The parity rows of the encoding matrix form a Cauchy matrix, so every square
+ * matrix made of its rows and those of the identity can be inverted.
+ */
+class ReedSolomon {
+
+  private static final int[] EXP = new int[512];
+  private static final int[] LOG = new int[256];
+
+  static {
+    int x = 1;
+    for (int i = 0; i < 255; i++) {
+      EXP[i] = x;
+      LOG[x] = i;
+      x <<= 1;
+      if ((x & 0x100) != 0) {
+        x ^= 0x11d;
+      }
+    }
+    for (int i = 255; i < EXP.length; i++) {
+      EXP[i] = EXP[i - 255];
+    }
+  }
+
+  private final int dataShards;
+  private final int parityShards;
+  // One row per shard, the data shards are the identity
+  private final int[][] matrix;
+
+  ReedSolomon(int dataShards, int parityShards) {
+    if (dataShards <= 0 || parityShards < 0 || dataShards + parityShards > 256) {
+      throw new IllegalArgumentException("Invalid shard counts " + dataShards + "+"
+          + parityShards);
+    }
+    this.dataShards = dataShards;
+    this.parityShards = parityShards;
+    this.matrix = new int[dataShards + parityShards][dataShards];
+    for (int i = 0; i < dataShards; i++) {
+      this.matrix[i][i] = 1;
+    }
+    for (int row = 0; row < parityShards; row++) {
+      for (int col = 0; col < dataShards; col++) {
+        this.matrix[dataShards + row][col] = inverse((dataShards + row) ^ col);
+      }
+    }
+  }
+
+  /**
+   * Cuts data into the data shards, padded with zeros to the same length, and computes the parity
+   * shards.
+   *
+   * @return all shards, data shards first
+   */
+  byte[][] encode(byte[] data) {
+    int shardLength = Math.max(1, (data.length + this.dataShards - 1) / this.dataShards);
+    byte[][] shards = new byte[this.dataShards + this.parityShards][];
+    for (int i = 0; i < this.dataShards; i++) {
+      int from = Math.min(data.length, i * shardLength);
+      shards[i] = Arrays.copyOfRange(data, from, from + shardLength);
+    }
+    for (int row = this.dataShards; row < shards.length; row++) {
+      shards[row] = this.combine(this.matrix[row], shards, shardLength);
+    }
+    return shards;
+  }
+
+  /**
+   * Rebuilds data from its shards.
+   *
+   * @param shards all shards, null for those that are missing
+   * @param length of the data
+   * @throws IOException if fewer shards than data shards are present
+   */
+  byte[] decode(byte[][] shards, int length) throws IOException {
+    int[] present = new int[this.dataShards];
+    int found = 0;
+    for (int i = 0; i < shards.length && found < this.dataShards; i++) {
+      if (shards[i] != null) {
+        present[found++] = i;
+      }
+    }
+    if (found < this.dataShards) {
+      throw new IOException("Only " + found + " of " + this.dataShards + " shards present");
+    }
+    int shardLength = shards[present[0]].length;
+    byte[][] data = new byte[this.dataShards][];
+    boolean intact = true;
+    for (int i = 0; i < this.dataShards; i++) {
+      data[i] = shards[i];
+      intact &= shards[i] != null;
+    }
+    if (!intact) {
+      // Solve for the data shards from the rows of the shards at hand
+      int[][] rows = new int[this.dataShards][];
+      byte[][] known = new byte[this.dataShards][];
+      for (int i = 0; i < this.dataShards; i++) {
+        rows[i] = this.matrix[present[i]];
+        known[i] = shards[present[i]];
+      }
+      int[][] inverted = invert(rows);
+      for (int i = 0; i < this.dataShards; i++) {
+        if (data[i] == null) {
+          data[i] = this.combine(inverted[i], known, shardLength);
+        }
+      }
+    }
+    byte[] result = new byte[length];
+    for (int i = 0, offset = 0; i < this.dataShards && offset < length; i++) {
+      int copied = Math.min(shardLength, length - offset);
+      System.arraycopy(data[i], 0, result, offset, copied);
+      offset += copied;
+    }
+    return result;
+  }
+
+  /**
+   * @return the sum of the shards multiplied by the coefficients
+   */
+  private byte[] combine(int[] coefficients, byte[][] shards, int shardLength) {
+    byte[] out = new byte[shardLength];
+    for (int i = 0; i < coefficients.length; i++) {
+      int coefficient = coefficients[i];
+      if (coefficient == 0) {
+        continue;
+      }
+      int logCoefficient = LOG[coefficient];
+      byte[] shard = shards[i];
+      for (int b = 0; b < shardLength; b++) {
+        int value = shard[b] & 0xff;
+        if (value != 0) {
+          out[b] ^= EXP[LOG[value] + logCoefficient];
+        }
+      }
+    }
+    return out;
+  }
+
+  private static int[][] invert(int[][] rows) {
+    int size = rows.length;
+    int[][] work = new int[size][2 * size];
+    for (int i = 0; i < size; i++) {
+      System.arraycopy(rows[i], 0, work[i], 0, size);
+      work[i][size + i] = 1;
+    }
+    for (int col = 0; col < size; col++) {
+      int pivot = col;
+      while (work[pivot][col] == 0) {
+        pivot++;
+      }
+      int[] swap = work[pivot];
+      work[pivot] = work[col];
+      work[col] = swap;
+      int scale = inverse(work[col][col]);
+      for (int j = 0; j < 2 * size; j++) {
+        work[col][j] = multiply(work[col][j], scale);
+      }
+      for (int row = 0; row < size; row++) {
+        int factor = work[row][col];
+        if (row != col && factor != 0) {
+          for (int j = 0; j < 2 * size; j++) {
+            work[row][j] ^= multiply(factor, work[col][j]);
+          }
+        }
+      }
+    }
+    int[][] inverted = new int[size][];
+    for (int i = 0; i < size; i++) {
+      inverted[i] = Arrays.copyOfRange(work[i], size, 2 * size);
+    }
+    return inverted;
+  }
+
+  private static int multiply(int a, int b) {
+    return a == 0 || b == 0 ? 0 : EXP[LOG[a] + LOG[b]];
+  }
+
+  private static int inverse(int a) {
+    return EXP[255 - LOG[a]];
+  }
+}
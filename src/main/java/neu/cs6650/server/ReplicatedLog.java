@@ -0,0 +1,278 @@
+package neu.cs6650.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import neu.cs6650.utils.Constants;
+import neu.cs6650.utils.Response;
+import neu.cs6650.utils.Status;
+
+/**
+ * The indexed log of writes of a server. Every slot holds a batch of entries accepted with some
+ * ballot. A slot is applied once it is committed, that is once a majority accepted it, and only
+ * after every slot before it was applied, so all replicas apply the same writes in the same order
+ * no matter in which order the batches arrive.
+ *
+ * <p>Accepted and applied slots are recorded in the write-ahead log, from which the log is
+ * restored when the server starts, on top of the latest snapshot of the state.
+ */
+class ReplicatedLog {
+
+  private static Logger logger = Logger.getLogger(ReplicatedLog.class.getName());
+
+  /**
+   * Applies a single entry to the state of the server.
+   */
+  interface Applier {
+
+    /**
+     * @param slot the entry belongs to, which becomes the version of the changed file
+     */
+    Response apply(long slot, LogEntry entry);
+
+    /**
+     * Rebuilds the in-memory state for an entry applied before the server restarted, the files
+     * already reflect it.
+     *
+     * @param result status the entry was applied with
+     */
+    void replay(long slot, LogEntry entry, Status result);
+  }
+
+  private final Applier applier;
+  private final WriteAheadLog wal;
+  // Applied slots within the retention window and slots waiting to be committed or applied
+  private final TreeMap<Long, LogSlot> slots = new TreeMap<>();
+  private final Map<Long, Consumer<List<Response>>> waiters = new HashMap<>();
+  private long appliedSlot;
+  // Highest slot known to be committed by the leader
+  private long commitSlot;
+
+  ReplicatedLog(Applier applier, WriteAheadLog wal) {
+    this.applier = applier;
+    this.wal = wal;
+  }
+
+  /**
+   * Stores the batch accepted for a slot. A batch accepted with a higher ballot replaces the one
+   * stored, committed slots never change.
+   *
+   * @return position in the write-ahead log to sync before acknowledging the batch
+   */
+  synchronized long accept(long slot, long ballot, List<LogEntry> entries) {
+    if (!this.store(slot, ballot, entries)) {
+      return 0;
+    }
+    try {
+      return this.wal.append(WalRecord.accept(slot, ballot, entries));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private boolean store(long slot, long ballot, List<LogEntry> entries) {
+    LogSlot stored = this.slots.get(slot);
+    if (slot <= this.appliedSlot || (stored != null && (stored.isCommitted()
+        || stored.getBallot() > ballot))) {
+      return false;
+    }
+    this.slots.put(slot, new LogSlot(ballot, entries, false));
+    return true;
+  }
+
+  /**
+   * Starts the log at the slot a snapshot of the state was taken at, while the server starts.
+   */
+  synchronized void restoreSnapshot(long slot) {
+    this.appliedSlot = slot;
+    this.commitSlot = slot;
+  }
+
+  /**
+   * Moves the log past slots it can no longer get, after the state as of the slot was installed
+   * from another server. Stored slots after it are applied if they are committed.
+   */
+  synchronized void skipTo(long slot) {
+    if (slot <= this.appliedSlot) {
+      return;
+    }
+    this.slots.headMap(slot, true).clear();
+    this.appliedSlot = slot;
+    this.applyCommitted();
+  }
+
+  /**
+   * Restores the log from a record of the write-ahead log, while the server starts. Slots applied
+   * before the snapshot are only kept for lagging replicas.
+   */
+  synchronized void restore(WalRecord record) {
+    if (record.getType() == WalRecord.Type.ACCEPT) {
+      this.store(record.getSlot(), record.getBallot(), record.getEntries());
+    } else if (record.getType() == WalRecord.Type.APPLIED
+        && record.getSlot() <= this.appliedSlot) {
+      this.slots.put(record.getSlot(), new LogSlot(record.getBallot(), record.getEntries(),
+          true));
+    } else if (record.getType() == WalRecord.Type.APPLIED
+        && record.getSlot() == this.appliedSlot + 1) {
+      this.appliedSlot++;
+      this.slots.put(this.appliedSlot, new LogSlot(record.getBallot(), record.getEntries(), true));
+      for (int i = 0; i < record.getEntries().size(); i++) {
+        this.applier.replay(this.appliedSlot, record.getEntries().get(i),
+            record.getResults().get(i));
+      }
+      this.commitSlot = Math.max(this.commitSlot, this.appliedSlot);
+      this.slots.headMap(this.appliedSlot - Constants.LOG_RETENTION_SLOTS, true).clear();
+    }
+  }
+
+  /**
+   * Marks a slot accepted by a majority as committed, used by the leader.
+   *
+   * @param onApplied receives the result of each entry once the slot is applied, may be null
+   */
+  synchronized void commit(long slot, Consumer<List<Response>> onApplied) {
+    LogSlot stored = this.slots.get(slot);
+    if (stored == null || slot <= this.appliedSlot) {
+      return;
+    }
+    this.slots.put(slot, stored.commit());
+    if (onApplied != null) {
+      this.waiters.put(slot, onApplied);
+    }
+    this.applyCommitted();
+  }
+
+  /**
+   * Commits every slot up to the leader's commit slot that was accepted with the leader's ballot.
+   * Slots holding a batch of an older ballot are left for catch up, as the chosen batch may
+   * differ.
+   */
+  synchronized void commitUpTo(long slot, long ballot) {
+    this.commitSlot = Math.max(this.commitSlot, slot);
+    // The leader's commit slot may lag behind what this server learned from catching up
+    if (slot <= this.appliedSlot) {
+      return;
+    }
+    for (Map.Entry<Long, LogSlot> stored : this.slots.subMap(this.appliedSlot, false, slot, true)
+        .entrySet()) {
+      if (stored.getValue().getBallot() == ballot) {
+        stored.setValue(stored.getValue().commit());
+      }
+    }
+    this.applyCommitted();
+  }
+
+  /**
+   * Stores a slot learned from the leader, which is applied if it is committed.
+   */
+  synchronized void learn(long slot, LogSlot learned) {
+    if (slot <= this.appliedSlot || !learned.isCommitted()) {
+      return;
+    }
+    this.slots.put(slot, learned);
+    this.commitSlot = Math.max(this.commitSlot, slot);
+    this.applyCommitted();
+  }
+
+  private void applyCommitted() {
+    LogSlot next;
+    while ((next = this.slots.get(this.appliedSlot + 1)) != null && next.isCommitted()) {
+      this.appliedSlot++;
+      List<Response> results = new ArrayList<>(next.getEntries().size());
+      List<Status> statuses = new ArrayList<>(next.getEntries().size());
+      for (LogEntry entry : next.getEntries()) {
+        Response result = this.applier.apply(this.appliedSlot, entry);
+        results.add(result);
+        statuses.add(result.getStatus());
+      }
+      try {
+        // Made durable by the next sync, a slot applied again after a crash leaves the same files
+        this.wal.append(WalRecord.applied(this.appliedSlot, next.getBallot(), next.getEntries(),
+            statuses));
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Unable to record applied slot {0}", this.appliedSlot);
+      }
+      Consumer<List<Response>> waiter = this.waiters.remove(this.appliedSlot);
+      if (waiter != null) {
+        waiter.accept(results);
+      }
+    }
+    this.commitSlot = Math.max(this.commitSlot, this.appliedSlot);
+    // Only keep a window of applied slots around for lagging replicas
+    this.slots.headMap(this.appliedSlot - Constants.LOG_RETENTION_SLOTS, true).clear();
+  }
+
+  /**
+   * Runs a function with the highest applied slot while no slot can be applied, so that it sees
+   * the state exactly as of that slot.
+   */
+  synchronized <T> T atAppliedSlot(LongFunction<T> function) {
+    return function.apply(this.appliedSlot);
+  }
+
+  /**
+   * @return true if a slot applied after the given one changed the file with the name, or if that
+   * can not be told as the slots are no longer retained
+   */
+  synchronized boolean touchedSince(long slot, String fileName) {
+    if (this.appliedSlot <= slot) {
+      return false;
+    }
+    if (!this.slots.containsKey(slot + 1)) {
+      return true;
+    }
+    for (LogSlot applied : this.slots.subMap(slot, false, this.appliedSlot, true).values()) {
+      for (LogEntry entry : applied.getEntries()) {
+        if (entry.getFileName().equals(fileName) || (entry.getOperation() == Operation.RENAME_FILE
+            && new String(entry.getData()).split(",")[0].equals(fileName))) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return true if the leader committed slots that this server could not apply yet
+   */
+  synchronized boolean hasGap() {
+    return this.commitSlot > this.appliedSlot;
+  }
+
+  /**
+   * @return the highest slot applied, every slot up to it is committed
+   */
+  synchronized long getAppliedSlot() {
+    return this.appliedSlot;
+  }
+
+  /**
+   * @return highest slot stored or known to be committed
+   */
+  synchronized long getLastSlot() {
+    long last = Math.max(this.appliedSlot, this.commitSlot);
+    return this.slots.isEmpty() ? last : Math.max(last, this.slots.lastKey());
+  }
+
+  /**
+   * @return the stored slots starting at a slot, at most max of them
+   */
+  synchronized TreeMap<Long, LogSlot> slotsFrom(long fromSlot, int max) {
+    TreeMap<Long, LogSlot> result = new TreeMap<>();
+    for (Map.Entry<Long, LogSlot> slot : this.slots.tailMap(fromSlot, true).entrySet()) {
+      if (result.size() == max) {
+        break;
+      }
+      result.put(slot.getKey(), slot.getValue());
+    }
+    return result;
+  }
+}
@@ -0,0 +1,59 @@
+package neu.cs6650.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load of a server as seen by its clients, the number of requests in flight and an exponentially
+ * weighted moving average of their latency. Both are reported to the load balancers in
+ * heartbeats. The average decays while the server is idle, so that a server that was slow once is
+ * not avoided for good.
+ */
+class RequestStats {
+
+  // Weight of the latest request in the average
+  private static final double ALPHA = 0.2;
+  // Time in which the average of an idle server falls to about a third
+  private static final long IDLE_DECAY_MS = 5000;
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private double latencyMicros;
+  private long updated;
+
+  /**
+   * @return start of the request, to be passed to end
+   */
+  long begin() {
+    this.inFlight.incrementAndGet();
+    return System.nanoTime();
+  }
+
+  /**
+   * @return latency of the request in microseconds
+   */
+  long end(long start) {
+    long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+    this.inFlight.decrementAndGet();
+    synchronized (this) {
+      this.latencyMicros = this.decayed(System.currentTimeMillis());
+      this.latencyMicros += ALPHA * (micros - this.latencyMicros);
+      this.updated = System.currentTimeMillis();
+    }
+    return micros;
+  }
+
+  int getInFlight() {
+    return this.inFlight.get();
+  }
+
+  synchronized long getLatencyMicros() {
+    return (long) this.decayed(System.currentTimeMillis());
+  }
+
+  private double decayed(long now) {
+    if (this.inFlight.get() > 0) {
+      return this.latencyMicros;
+    }
+    return this.latencyMicros * Math.exp(-(double) (now - this.updated) / IDLE_DECAY_MS);
+  }
+}
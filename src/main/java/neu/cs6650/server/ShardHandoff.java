@@ -0,0 +1,195 @@
+package neu.cs6650.server;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import neu.cs6650.utils.Constants;
+import neu.cs6650.utils.Response;
+import neu.cs6650.utils.ShardRing;
+import neu.cs6650.utils.Status;
+import neu.cs6650.utils.StubCache;
+
+/**
+ * Hands the files whose names belong to another replica group to that group in the background,
+ * after groups were added to the ring or are draining to be taken out of service.
+ *
+ * <p>Only the leader of a group hands files off, so that a file is copied once and its delete is
+ * ordered with the other writes of the group. A group no server leads yet, such as a draining
+ * group that takes no writes, has its first reachable server hand files off, which the first
+ * delete makes leader. A round takes up to
+ * {@link Constants#SHARD_HANDOFF_FILES} such files, holds the write lock of every file while it
+ * is copied and uploads it to a server of the owning group the way clients do, sending only the
+ * chunks that server lacks. The upload only creates the file, so that it fails rather than leaves
+ * the file in place if a client uploaded one with the name there after its name moved. Such a
+ * file is newer, so the copy of this group is then only deleted, as it is when the owning group
+ * listed the file already. The file is deleted through the log of this group. The owning group
+ * indexes the file under an id of its own range, clients find it by name. Files that fail to
+ * move are left in place and tried again the next round.
+ */
+class ShardHandoff {
+
+  private static Logger logger = Logger.getLogger(ShardHandoff.class.getName());
+
+  private final int serverPort;
+  private final int group;
+  private final ShardRing ring;
+  private final FileIndex index;
+  private final ChunkStore chunks;
+  private final FileLocks locks;
+  private final Metrics metrics;
+  // Port of the leader of the group, 0 if none is known
+  private final IntSupplier leader;
+  // Orders the delete of a file through the log of this group, for the holder of its lock
+  private final Function<String, Response> delete;
+
+  ShardHandoff(int serverPort, int group, ShardRing ring, FileIndex index, ChunkStore chunks,
+      FileLocks locks, Metrics metrics, IntSupplier leader, Function<String, Response> delete) {
+    this.serverPort = serverPort;
+    this.group = group;
+    this.ring = ring;
+    this.index = index;
+    this.chunks = chunks;
+    this.locks = locks;
+    this.metrics = metrics;
+    this.leader = leader;
+    this.delete = delete;
+  }
+
+  /**
+   * Runs one round if this server is the one of its group to hand files off.
+   */
+  void run() {
+    try {
+      this.runRound();
+    } catch (RuntimeException e) {
+      // Keep the periodic rounds going
+      logger.log(Level.SEVERE, "Shard handoff round failed at port {0}: {1}",
+          new Object[]{serverPort, e});
+    }
+  }
+
+  private void runRound() {
+    Map<Integer, List<String>> byOwner = new LinkedHashMap<>();
+    int found = 0;
+    for (FileIndex.Entry entry : this.index.entries()) {
+      int owner = this.ring.groupOf(entry.getName());
+      if (owner != this.group) {
+        byOwner.computeIfAbsent(owner, g -> new ArrayList<>()).add(entry.getName());
+        if (++found == Constants.SHARD_HANDOFF_FILES) {
+          break;
+        }
+      }
+    }
+    if (found == 0 || !this.handsOff()) {
+      return;
+    }
+    for (Map.Entry<Integer, List<String>> names : byOwner.entrySet()) {
+      this.handOff(names.getKey(), names.getValue());
+    }
+  }
+
+  /**
+   * @return whether this server leads its group, or no server is known to and none of the servers
+   *     of the group before this one is reachable
+   */
+  private boolean handsOff() {
+    int leaderPort = this.leader.getAsInt();
+    if (leaderPort != 0) {
+      return leaderPort == this.serverPort;
+    }
+    for (int port : this.ring.ports(this.group)) {
+      if (port == this.serverPort) {
+        return true;
+      }
+      try {
+        this.call(port, DistributedFileServer::heartbeat);
+        return false;
+      } catch (Exception e) {
+        // Down, the next server of the group takes its place
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Hands files off to the first server of their group that lists its files.
+   */
+  private void handOff(int owner, List<String> names) {
+    for (int port : this.ring.ports(owner)) {
+      Set<String> theirs;
+      try {
+        theirs = new HashSet<>(this.call(port, DistributedFileServer::getAllFilesOnServer)
+            .values());
+      } catch (Exception e) {
+        continue;
+      }
+      logger.log(Level.INFO, "Handing {0} files off from port {1} to port {2}",
+          new Object[]{names.size(), serverPort, port});
+      for (String name : names) {
+        this.handOff(port, name, theirs.contains(name));
+      }
+      return;
+    }
+    logger.log(Level.WARNING, "No server of group {0} reachable to hand files off to",
+        owner);
+  }
+
+  /**
+   * @param superseded whether the owning group listed a file with the name already
+   */
+  private void handOff(int port, String name, boolean superseded) {
+    try (FileLocks.Hold hold = this.locks.write(name, Constants.FILE_LOCK_TIMEOUT_MS)) {
+      FileIndex.Entry entry = this.index.find(name);
+      // Busy files and files deleted meanwhile are left to the next round
+      if (hold == null || entry == null) {
+        return;
+      }
+      if (!superseded) {
+        Manifest manifest = this.chunks.manifest(entry.getContent());
+        List<String> hashes = manifest.getHashes();
+        Set<String> missing = new HashSet<>(this.call(port, dfs -> dfs.missingChunks(hashes)));
+        for (int i = 0; i < hashes.size(); i++) {
+          String hash = hashes.get(i);
+          if (missing.remove(hash)) {
+            byte[] chunk = this.chunks.chunk(manifest, i);
+            this.call(port, dfs -> {
+              dfs.putBlock(hash, chunk);
+              return null;
+            });
+          }
+        }
+        Response resp = this.call(port, dfs -> dfs.createChunks(name, hashes));
+        if (resp.getStatus() != Status.OK && resp.getStatus() != Status.EXISTS) {
+          logger.log(Level.WARNING, "Handoff of {0} to port {1} failed: {2}",
+              new Object[]{name, port, resp.getMessage()});
+          return;
+        }
+      }
+      Response resp = this.delete.apply(name);
+      if (resp.getStatus() != Status.OK) {
+        logger.log(Level.WARNING, "{0} was handed off to port {1} but not deleted: {2}",
+            new Object[]{name, port, resp.getMessage()});
+        return;
+      }
+      this.metrics.count(Metrics.Counter.FILES_HANDED_OFF);
+      logger.log(Level.INFO, "{0} handed off to port {1}", new Object[]{name, port});
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "Handoff of {0} to port {1} failed: {2}",
+          new Object[]{name, port, e});
+    }
+  }
+
+  private <R> R call(int port, StubCache.RemoteCall<DistributedFileServer, R> call)
+      throws Exception {
+    return StubCache.call(Constants.IP, port, Constants.SERVER_NAME, call);
+  }
+}
@@ -0,0 +1,125 @@
+package neu.cs6650.server;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trace of a client request on a server. Its id is sent along with the consensus calls made for
+ * the request, so that the servers it passed through log it under the same id. The trace keeps
+ * the slowest peer of every phase of the request, so that a slow write can be blamed on the peer
+ * that held it up.
+ *
+ * <p>The trace of the request a thread works on is kept in a thread local. Work handed to other
+ * threads carries the trace along explicitly.
+ */
+class Trace {
+
+  private static final ThreadLocal<Trace> current = new ThreadLocal<>();
+
+  private final long id;
+  private final long start = System.nanoTime();
+  private final int[] slowestPorts = new int[Metrics.Phase.values().length];
+  private final long[] slowestMicros = new long[Metrics.Phase.values().length];
+
+  private Trace(long id) {
+    this.id = id;
+  }
+
+  /**
+   * Starts the trace of a request received from a client on the current thread.
+   */
+  static Trace start() {
+    return resume(0);
+  }
+
+  /**
+   * Continues on the current thread the trace of a request sent by another server.
+   *
+   * @param id of the trace, 0 to start a new one
+   */
+  static Trace resume(long id) {
+    Trace trace = detached(id);
+    current.set(trace);
+    return trace;
+  }
+
+  /**
+   * Starts a trace of work done for requests on other threads, like a batch of writes, without
+   * making it the trace of the current thread.
+   *
+   * @param id of the trace, 0 to start a new one
+   */
+  static Trace detached(long id) {
+    return new Trace(id != 0 ? id : ThreadLocalRandom.current().nextLong() | 1);
+  }
+
+  /**
+   * @return trace of the request the current thread works on, null if there is none
+   */
+  static Trace current() {
+    return current.get();
+  }
+
+  /**
+   * Ends the trace of the current thread.
+   */
+  static void end() {
+    current.remove();
+  }
+
+  /**
+   * @return id of a trace, 0 for none
+   */
+  static long idOf(Trace trace) {
+    return trace == null ? 0 : trace.id;
+  }
+
+  /**
+   * Records how long a peer took to answer a call made for the request.
+   */
+  synchronized void span(Metrics.Phase phase, int port, long micros) {
+    if (micros >= this.slowestMicros[phase.ordinal()]) {
+      this.slowestMicros[phase.ordinal()] = micros;
+      this.slowestPorts[phase.ordinal()] = port;
+    }
+  }
+
+  /**
+   * Adds the round trips of a trace of work done for this request elsewhere.
+   */
+  void merge(Trace other) {
+    int[] ports;
+    long[] micros;
+    synchronized (other) {
+      ports = other.slowestPorts.clone();
+      micros = other.slowestMicros.clone();
+    }
+    for (Metrics.Phase phase : Metrics.Phase.values()) {
+      if (ports[phase.ordinal()] != 0) {
+        this.span(phase, ports[phase.ordinal()], micros[phase.ordinal()]);
+      }
+    }
+  }
+
+  /**
+   * @return time since the trace started in milliseconds
+   */
+  long elapsedMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.start);
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder description = new StringBuilder(Long.toHexString(this.id));
+    String separator = ", slowest peers: ";
+    for (Metrics.Phase phase : Metrics.Phase.values()) {
+      if (this.slowestPorts[phase.ordinal()] != 0) {
+        description.append(separator).append(phase.label()).append(' ')
+            .append(this.slowestPorts[phase.ordinal()]).append(" in ")
+            .append(this.slowestMicros[phase.ordinal()] / 1000).append(" ms");
+        separator = ", ";
+      }
+    }
+    return description.toString();
+  }
+}
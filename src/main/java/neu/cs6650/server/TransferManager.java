@@ -0,0 +1,211 @@
+package neu.cs6650.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import neu.cs6650.utils.Constants;
+
+/**
+ * Keeps track of chunked upload and download sessions of a file server. Uploaded chunks are
+ * written straight to a staging file on disk and downloads are read from the {@link ChunkStore}
+ * one chunk at a time, so the memory used by a transfer does not depend on the size of the file.
+ */
+class TransferManager {
+
+  private static Logger logger = Logger.getLogger(TransferManager.class.getName());
+  private final File stagingDir;
+  private final ChunkStore chunks;
+  private final Map<String, Session> uploads = new ConcurrentHashMap<>();
+  private final Map<String, Session> downloads = new ConcurrentHashMap<>();
+
+  TransferManager(File stagingDir, ChunkStore chunks) {
+    this.stagingDir = stagingDir;
+    this.chunks = chunks;
+    if (!stagingDir.isDirectory() && !stagingDir.mkdirs()) {
+      logger.log(Level.SEVERE, "Unable to create staging directory {0}", stagingDir);
+      throw new RuntimeException();
+    }
+  }
+
+  /**
+   * Opens a new upload session backed by an empty staging file.
+   *
+   * @param fileName name the file will have once committed
+   * @return id of the session
+   */
+  String openUpload(String fileName) throws IOException {
+    this.expireIdleSessions();
+    String transferId = UUID.randomUUID().toString();
+    this.uploads.put(transferId, new Session(fileName, this.openStaging(transferId), null));
+    return transferId;
+  }
+
+  /**
+   * Writes a chunk at the given offset of the staging file. The offset may not lie past the bytes
+   * written so far, so that a session can not grow its staging file by more than the chunks it
+   * sends.
+   */
+  void write(String transferId, long offset, byte[] chunk) throws IOException {
+    if (chunk.length > Constants.CHUNK_SIZE) {
+      throw new IOException("Chunk larger than " + Constants.CHUNK_SIZE + " bytes");
+    }
+    Session session = this.uploads.get(transferId);
+    if (session == null) {
+      throw new IOException("Unknown upload session " + transferId);
+    }
+    if (offset < 0 || offset > session.channel.size()) {
+      throw new IOException("Offset " + offset + " outside the " + session.channel.size()
+          + " bytes written to upload session " + transferId);
+    }
+    session.touch();
+    ByteBuffer buffer = ByteBuffer.wrap(chunk);
+    long position = offset;
+    while (buffer.hasRemaining()) {
+      position += session.channel.write(buffer, position);
+    }
+  }
+
+  /**
+   * @return name of the file that an upload session was opened for, or null if unknown
+   */
+  String fileNameOf(String transferId) {
+    Session session = this.uploads.get(transferId);
+    return session == null ? null : session.fileName;
+  }
+
+  /**
+   * Closes the upload session and hands over its staging file.
+   *
+   * @return the staging file or null if the session does not exist
+   */
+  File seal(String transferId) throws IOException {
+    Session session = this.uploads.remove(transferId);
+    if (session == null) {
+      return null;
+    }
+    session.channel.close();
+    return this.stagingFile(transferId);
+  }
+
+  /**
+   * Drops an upload session together with its staging file.
+   */
+  void discard(String transferId) {
+    Session session = this.uploads.remove(transferId);
+    if (session != null) {
+      closeQuietly(session.channel);
+    }
+    File staged = this.stagingFile(transferId);
+    if (staged.exists() && !staged.delete()) {
+      logger.log(Level.SEVERE, "Unable to delete staging file {0}", staged);
+    }
+  }
+
+  /**
+   * Opens a download session on the content of a stored file. The session keeps reading the
+   * content it was opened on, even if the file is changed meanwhile.
+   *
+   * @return id of the session
+   */
+  String openDownload(String fileName, Manifest manifest) {
+    this.expireIdleSessions();
+    String transferId = UUID.randomUUID().toString();
+    this.downloads.put(transferId, new Session(fileName, null, manifest));
+    return transferId;
+  }
+
+  /**
+   * Reads at most {@link Constants#CHUNK_SIZE} bytes starting at offset.
+   *
+   * @return the chunk, empty once the end of the file is reached
+   */
+  byte[] read(String transferId, long offset) throws IOException {
+    Session session = this.downloads.get(transferId);
+    if (session == null) {
+      throw new IOException("Unknown download session " + transferId);
+    }
+    session.touch();
+    return this.chunks.read(session.manifest, offset);
+  }
+
+  /**
+   * Looks up a download session to serve it outside of RMI. The session stays open, so that the
+   * client can still read it through RMI if the transfer fails, and is closed once the file was
+   * sent in full.
+   *
+   * @return the content the session was opened on, null if the session does not exist
+   */
+  Manifest findDownload(String transferId) {
+    Session session = this.downloads.get(transferId);
+    if (session == null) {
+      return null;
+    }
+    session.touch();
+    return session.manifest;
+  }
+
+  void closeDownload(String transferId) {
+    this.downloads.remove(transferId);
+  }
+
+  private FileChannel openStaging(String transferId) throws IOException {
+    return FileChannel.open(this.stagingFile(transferId).toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+  }
+
+  private File stagingFile(String transferId) {
+    if (transferId.contains(File.separator) || transferId.contains("..")) {
+      throw new IllegalArgumentException("Invalid transfer id " + transferId);
+    }
+    return new File(this.stagingDir, transferId);
+  }
+
+  private void expireIdleSessions() {
+    long cutOff = System.currentTimeMillis() - Constants.TRANSFER_IDLE_TIMEOUT_MS;
+    this.uploads.entrySet().removeIf(entry -> {
+      if (entry.getValue().lastAccess < cutOff) {
+        logger.log(Level.INFO, "Expiring idle upload session {0}", entry.getKey());
+        closeQuietly(entry.getValue().channel);
+        this.stagingFile(entry.getKey()).delete();
+        return true;
+      }
+      return false;
+    });
+    this.downloads.entrySet().removeIf(entry -> entry.getValue().lastAccess < cutOff);
+  }
+
+  private static void closeQuietly(FileChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Unable to close channel");
+    }
+  }
+
+  private static class Session {
+
+    private final String fileName;
+    // Staging file of an upload
+    private final FileChannel channel;
+    // Content read by a download
+    private final Manifest manifest;
+    private volatile long lastAccess = System.currentTimeMillis();
+
+    Session(String fileName, FileChannel channel, Manifest manifest) {
+      this.fileName = fileName;
+      this.channel = channel;
+      this.manifest = manifest;
+    }
+
+    void touch() {
+      this.lastAccess = System.currentTimeMillis();
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package neu.cs6650.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import neu.cs6650.utils.Status;
+
+/**
+ * A record of the write-ahead log. Promises and accepted slots are recorded so that the server
+ * keeps its word as Paxos acceptor across restarts, applied slots are recorded together with the
+ * result of every entry so that the state of the server can be rebuilt without applying them
+ * again.
+ */
+class WalRecord {
+
+  enum Type {
+    PROMISE,
+    ACCEPT,
+    APPLIED
+  }
+
+  private final Type type;
+  private final long slot;
+  private final long ballot;
+  private final List<LogEntry> entries;
+  // Status every entry of an applied slot was applied with
+  private final List<Status> results;
+
+  private WalRecord(Type type, long slot, long ballot, List<LogEntry> entries,
+      List<Status> results) {
+    this.type = type;
+    this.slot = slot;
+    this.ballot = ballot;
+    this.entries = entries;
+    this.results = results;
+  }
+
+  static WalRecord promise(long ballot) {
+    return new WalRecord(Type.PROMISE, 0, ballot, Collections.emptyList(),
+        Collections.emptyList());
+  }
+
+  static WalRecord accept(long slot, long ballot, List<LogEntry> entries) {
+    return new WalRecord(Type.ACCEPT, slot, ballot, entries, Collections.emptyList());
+  }
+
+  static WalRecord applied(long slot, long ballot, List<LogEntry> entries, List<Status> results) {
+    return new WalRecord(Type.APPLIED, slot, ballot, entries, results);
+  }
+
+  Type getType() {
+    return type;
+  }
+
+  long getSlot() {
+    return slot;
+  }
+
+  long getBallot() {
+    return ballot;
+  }
+
+  List<LogEntry> getEntries() {
+    return entries;
+  }
+
+  List<Status> getResults() {
+    return results;
+  }
+
+  byte[] encode() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(this.type.ordinal());
+    out.writeLong(this.slot);
+    out.writeLong(this.ballot);
+    out.writeInt(this.entries.size());
+    for (LogEntry entry : this.entries) {
+      out.writeByte(entry.getOperation().ordinal());
+      out.writeUTF(entry.getFileName());
+      if (entry.getData() == null) {
+        out.writeInt(-1);
+      } else {
+        out.writeInt(entry.getData().length);
+        out.write(entry.getData());
+      }
+    }
+    out.writeInt(this.results.size());
+    for (Status result : this.results) {
+      out.writeUTF(result == null ? Status.FAILED.name() : result.name());
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  static WalRecord decode(byte[] payload) throws IOException {
+    DataInput in = new DataInputStream(new ByteArrayInputStream(payload));
+    Type type = Type.values()[in.readUnsignedByte()];
+    long slot = in.readLong();
+    long ballot = in.readLong();
+    int numEntries = in.readInt();
+    List<LogEntry> entries = new ArrayList<>(numEntries);
+    for (int i = 0; i < numEntries; i++) {
+      Operation operation = Operation.values()[in.readUnsignedByte()];
+      String fileName = in.readUTF();
+      int length = in.readInt();
+      byte[] data = null;
+      if (length >= 0) {
+        data = new byte[length];
+        in.readFully(data);
+      }
+      entries.add(new LogEntry(operation, fileName, data));
+    }
+    int numResults = in.readInt();
+    List<Status> results = new ArrayList<>(numResults);
+    for (int i = 0; i < numResults; i++) {
+      results.add(Status.valueOf(in.readUTF()));
+    }
+    return new WalRecord(type, slot, ballot, entries, results);
+  }
+}
@@ -0,0 +1,285 @@
+package neu.cs6650.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import neu.cs6650.utils.Constants;
+
+/**
+ * Append-only log of {@link WalRecord}s split into numbered segment files. Every record is framed
+ * by its length and a CRC32 of its payload, so a record torn by a crash is detected and cut off
+ * when the log is replayed.
+ *
+ * <p>Appending only writes to the segment, records become durable with {@link #sync(long)}.
+ * Syncs are grouped: while one thread forces the segment to disk, others wanting to sync queue up
+ * behind it and usually find their records covered by that force once they get their turn, so a
+ * single fsync is shared by all writes that came in meanwhile.
+ *
+ * <p>Once the state is saved in a snapshot, the segments holding only records the snapshot covers
+ * are removed with {@link #truncate(long, long)}.
+ */
+class WriteAheadLog {
+
+  private static Logger logger = Logger.getLogger(WriteAheadLog.class.getName());
+  private static final String SEGMENT_SUFFIX = ".wal";
+  // Length and checksum in front of every record
+  private static final int HEADER_BYTES = 8;
+
+  private final File walDir;
+  private final File dataDir;
+  private final Object syncLock = new Object();
+  // Bytes appended since the server started, positions handed out by append are based on it
+  private long appended;
+  private final AtomicLong durable = new AtomicLong();
+  private FileChannel segment;
+  private long segmentNumber;
+  // Highest slot and ballot recorded in every segment, by segment number
+  private final TreeMap<Long, long[]> segmentMarks = new TreeMap<>();
+
+  /**
+   * @param walDir  directory holding the segments
+   * @param dataDir directory whose entries are forced together with the log, as applied records
+   *                describe files moved into it
+   */
+  WriteAheadLog(File walDir, File dataDir) {
+    this.walDir = walDir;
+    this.dataDir = dataDir;
+    if (!walDir.isDirectory() && !walDir.mkdirs()) {
+      logger.log(Level.SEVERE, "Unable to create write-ahead log directory {0}", walDir);
+      throw new RuntimeException();
+    }
+  }
+
+  /**
+   * Hands every intact record to the consumer in the order it was appended and opens the log for
+   * appending. Must be called once before anything is appended.
+   */
+  void replay(Consumer<WalRecord> consumer) throws IOException {
+    File[] segments = this.segments();
+    int replayed = 0;
+    for (int i = 0; i < segments.length; i++) {
+      long[] marks = new long[2];
+      this.segmentMarks.put(numberOf(segments[i]), marks);
+      long intact = this.replaySegment(segments[i], record -> {
+        mark(marks, record);
+        consumer.accept(record);
+      });
+      if (intact < 0) {
+        replayed++;
+        continue;
+      }
+      // Everything after a torn record was never acknowledged, drop it with the later segments
+      logger.log(Level.WARNING, "Write-ahead log {0} is torn at {1}, dropping the rest",
+          new Object[]{segments[i], intact});
+      try (FileChannel channel = FileChannel.open(segments[i].toPath(),
+          StandardOpenOption.WRITE)) {
+        channel.truncate(intact);
+      }
+      for (int j = i + 1; j < segments.length; j++) {
+        this.segmentMarks.remove(numberOf(segments[j]));
+        if (!segments[j].delete()) {
+          logger.log(Level.SEVERE, "Unable to delete segment {0}", segments[j]);
+        }
+      }
+      segments = Arrays.copyOf(segments, i + 1);
+      break;
+    }
+    logger.log(Level.INFO, "Replayed {0} write-ahead log segments from {1}",
+        new Object[]{replayed, this.walDir});
+    this.segmentNumber = segments.length == 0 ? 0 : numberOf(segments[segments.length - 1]);
+    this.openSegment(segments.length == 0);
+  }
+
+  /**
+   * @return the length of the intact prefix if the segment is torn, -1 if it is intact
+   */
+  private long replaySegment(File file, Consumer<WalRecord> consumer) throws IOException {
+    long position = 0;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file)))) {
+      while (true) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch (EOFException e) {
+          return -1;
+        }
+        long checksum = in.readInt() & 0xffffffffL;
+        if (length < 0 || length > file.length() - position - HEADER_BYTES) {
+          return position;
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        if (checksumOf(payload) != checksum) {
+          return position;
+        }
+        consumer.accept(WalRecord.decode(payload));
+        position += HEADER_BYTES + length;
+      }
+    } catch (EOFException e) {
+      return position;
+    }
+  }
+
+  /**
+   * Writes a record to the end of the log without waiting for it to reach the disk.
+   *
+   * @return position to pass to {@link #sync(long)} to make the record durable
+   */
+  synchronized long append(WalRecord record) throws IOException {
+    byte[] payload = record.encode();
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+    buffer.putInt(payload.length);
+    buffer.putInt((int) checksumOf(payload));
+    buffer.put(payload);
+    ((Buffer) buffer).flip();
+    while (buffer.hasRemaining()) {
+      this.segment.write(buffer);
+    }
+    this.appended += HEADER_BYTES + payload.length;
+    mark(this.segmentMarks.get(this.segmentNumber), record);
+    if (this.segment.position() >= Constants.WAL_SEGMENT_BYTES) {
+      this.rollSegment();
+    }
+    return this.appended;
+  }
+
+  /**
+   * Waits until everything appended up to the position is on disk.
+   */
+  void sync(long position) throws IOException {
+    if (this.durable.get() >= position) {
+      return;
+    }
+    synchronized (this.syncLock) {
+      // The thread that held the lock before may have forced this position already
+      if (this.durable.get() >= position) {
+        return;
+      }
+      long target;
+      FileChannel channel;
+      synchronized (this) {
+        target = this.appended;
+        channel = this.segment;
+      }
+      forceDirectory(this.dataDir);
+      try {
+        channel.force(false);
+      } catch (ClosedChannelException e) {
+        // The segment was rolled meanwhile, which forced it up to the target
+      }
+      this.durable.accumulateAndGet(target, Math::max);
+    }
+  }
+
+  /**
+   * Makes everything appended so far durable.
+   */
+  void sync() throws IOException {
+    long position;
+    synchronized (this) {
+      position = this.appended;
+    }
+    this.sync(position);
+  }
+
+  /**
+   * Removes the oldest closed segments as long as every record in them is covered by a snapshot.
+   *
+   * @param slot   highest slot the snapshot covers
+   * @param ballot ballot promised when the snapshot was taken
+   */
+  synchronized void truncate(long slot, long ballot) {
+    Iterator<Map.Entry<Long, long[]>> segments = this.segmentMarks.entrySet().iterator();
+    while (segments.hasNext()) {
+      Map.Entry<Long, long[]> segment = segments.next();
+      if (segment.getKey() == this.segmentNumber || segment.getValue()[0] > slot
+          || segment.getValue()[1] > ballot) {
+        return;
+      }
+      File file = this.segmentFile(segment.getKey());
+      if (!file.delete()) {
+        logger.log(Level.SEVERE, "Unable to delete segment {0}", file);
+        return;
+      }
+      segments.remove();
+      logger.log(Level.INFO, "Removed write-ahead log segment {0}", file);
+    }
+  }
+
+  private static void mark(long[] marks, WalRecord record) {
+    marks[0] = Math.max(marks[0], record.getSlot());
+    marks[1] = Math.max(marks[1], record.getBallot());
+  }
+
+  private void rollSegment() throws IOException {
+    this.segment.force(false);
+    this.segment.close();
+    this.durable.accumulateAndGet(this.appended, Math::max);
+    this.segmentNumber++;
+    this.openSegment(true);
+  }
+
+  private void openSegment(boolean created) throws IOException {
+    File file = this.segmentFile(this.segmentNumber);
+    this.segmentMarks.putIfAbsent(this.segmentNumber, new long[2]);
+    this.segment = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    if (created) {
+      forceDirectory(this.walDir);
+    }
+  }
+
+  private File segmentFile(long number) {
+    return new File(this.walDir, String.format("%020d%s", number, SEGMENT_SUFFIX));
+  }
+
+  private File[] segments() {
+    File[] segments = this.walDir.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+    if (segments == null) {
+      return new File[]{};
+    }
+    Arrays.sort(segments, (a, b) -> Long.compare(numberOf(a), numberOf(b)));
+    return segments;
+  }
+
+  private static long numberOf(File segment) {
+    String name = segment.getName();
+    return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  private static long checksumOf(byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload, 0, payload.length);
+    return crc.getValue();
+  }
+
+  /**
+   * Forces the entries of a directory, so that files created, moved or deleted in it survive a
+   * crash. Not every platform can open a directory, there this is a no-op.
+   */
+  static void forceDirectory(File dir) {
+    try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Unable to force directory {0}", dir);
+    }
+  }
+}
@@ -0,0 +1,272 @@
+package neu.cs6650.utils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * Log handler that never blocks the threads logging. Records are put into a bounded ring buffer
+ * and formatted and written by a single background thread, which flushes the output once per
+ * batch rather than once per record like the console handler.
+ *
+ * <ul>
+ *   <li>When the buffer is full the record is dropped and counted. The writer reports the number
+ *   of dropped records in the log.</li>
+ *   <li>Records at INFO and below of the loggers made by {@link #requestLogger}, which log every
+ *   request, are sampled once more than Constants.LOG_INFO_PER_SECOND were logged in a second,
+ *   only one in Constants.LOG_INFO_SAMPLE_RATE is kept beyond that. Records of other loggers, such
+ *   as those of elections and recovery, as well as warnings and errors are always kept.</li>
+ * </ul>
+ *
+ * <p>Records are formatted after the call that logged them returned, so their parameters should
+ * not change afterwards. The source of a record is the name of its logger, which is the class
+ * logging in this project, so that the caller does not have to be found by walking the stack.
+ */
+public class AsyncLogHandler extends Handler {
+
+  private static final String REQUEST_LOGGER_SUFFIX = ".requests";
+  private static volatile AsyncLogHandler installed;
+
+  private final int capacity;
+  private final int mask;
+  private final AtomicReferenceArray<LogRecord> slots;
+  // Records claimed by loggers so far, and taken by the writer, the buffer holds the difference
+  private final AtomicLong tail = new AtomicLong();
+  private volatile long head;
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder sampledOut = new LongAdder();
+  private volatile long sampleSecond;
+  private final AtomicInteger sampleCount = new AtomicInteger();
+  private final Writer out;
+  private final Thread writer;
+  private volatile boolean closed;
+
+  /**
+   * Writes to standard error, like the console handler.
+   */
+  public AsyncLogHandler() {
+    this(System.err, Constants.LOG_BUFFER_RECORDS);
+  }
+
+  /**
+   * @param stream   to write the records to
+   * @param capacity of the buffer in records, rounded up to a power of two
+   */
+  public AsyncLogHandler(OutputStream stream, int capacity) {
+    this.capacity = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1);
+    this.mask = this.capacity - 1;
+    this.slots = new AtomicReferenceArray<>(this.capacity);
+    this.out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8),
+        64 << 10);
+    this.setFormatter(new SimpleFormatter());
+    this.setLevel(Level.INFO);
+    this.writer = new Thread(this::writeRecords, "log-writer");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  /**
+   * Replaces the console handlers of the root logger with an asynchronous handler that keeps
+   * their level and format.
+   *
+   * @return the handler installed
+   */
+  public static AsyncLogHandler install() {
+    Logger root = Logger.getLogger("");
+    AsyncLogHandler handler = new AsyncLogHandler();
+    for (Handler existing : root.getHandlers()) {
+      if (existing instanceof ConsoleHandler) {
+        handler.setLevel(existing.getLevel());
+        handler.setFormatter(existing.getFormatter());
+        root.removeHandler(existing);
+        existing.close();
+      }
+    }
+    root.addHandler(handler);
+    installed = handler;
+    return handler;
+  }
+
+  /**
+   * @return the handler installed last, null if none was
+   */
+  public static AsyncLogHandler installed() {
+    return installed;
+  }
+
+  /**
+   * @return logger for the records a class logs for every request, whose records at INFO and
+   *     below are sampled under load
+   */
+  public static Logger requestLogger(Class<?> type) {
+    return Logger.getLogger(type.getName() + REQUEST_LOGGER_SUFFIX);
+  }
+
+  @Override
+  public void publish(LogRecord record) {
+    if (this.closed || !this.isLoggable(record)) {
+      return;
+    }
+    if (record.getLevel().intValue() <= Level.INFO.intValue() && record.getLoggerName() != null
+        && record.getLoggerName().endsWith(REQUEST_LOGGER_SUFFIX) && !this.sample()) {
+      this.sampledOut.increment();
+      return;
+    }
+    // Set, the caller is not inferred from the stack of the writer thread later
+    record.setSourceClassName(record.getLoggerName());
+    record.setSourceMethodName(null);
+    if (!this.offer(record)) {
+      this.dropped.increment();
+    }
+  }
+
+  /**
+   * Wakes the writer up, records published before are written shortly after.
+   */
+  @Override
+  public void flush() {
+    LockSupport.unpark(this.writer);
+  }
+
+  /**
+   * Writes the records still buffered and stops the writer.
+   */
+  @Override
+  public void close() {
+    this.closed = true;
+    LockSupport.unpark(this.writer);
+    try {
+      this.writer.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return number of records dropped because the buffer was full
+   */
+  public long getDropped() {
+    return this.dropped.sum();
+  }
+
+  /**
+   * @return number of request records not kept by sampling
+   */
+  public long getSampledOut() {
+    return this.sampledOut.sum();
+  }
+
+  /**
+   * @return whether to keep a request record at INFO or below
+   */
+  private boolean sample() {
+    long second = System.currentTimeMillis() / 1000;
+    if (second != this.sampleSecond) {
+      // Racy, a few records more or less may count towards the new second
+      this.sampleSecond = second;
+      this.sampleCount.set(0);
+    }
+    int count = this.sampleCount.incrementAndGet();
+    return count <= Constants.LOG_INFO_PER_SECOND || count % Constants.LOG_INFO_SAMPLE_RATE == 0;
+  }
+
+  /**
+   * Puts a record into the buffer, any number of threads may do so at the same time.
+   *
+   * @return false if the buffer is full
+   */
+  private boolean offer(LogRecord record) {
+    long claimed;
+    do {
+      claimed = this.tail.get();
+      if (claimed - this.head >= this.capacity) {
+        return false;
+      }
+    } while (!this.tail.compareAndSet(claimed, claimed + 1));
+    this.slots.lazySet((int) (claimed & this.mask), record);
+    return true;
+  }
+
+  /**
+   * Takes the oldest record from the buffer, only ever called by the writer.
+   *
+   * @return the record, null if the buffer is empty
+   */
+  private LogRecord poll() {
+    long next = this.head;
+    if (next == this.tail.get()) {
+      return null;
+    }
+    int index = (int) (next & this.mask);
+    LogRecord record;
+    // The slot was claimed, the logger is about to put the record in
+    while ((record = this.slots.get(index)) == null) {
+      Thread.yield();
+    }
+    this.slots.lazySet(index, null);
+    this.head = next + 1;
+    return record;
+  }
+
+  private void writeRecords() {
+    long reportedDrops = 0;
+    while (true) {
+      boolean closing = this.closed;
+      int written = 0;
+      LogRecord record;
+      while (written < Constants.LOG_BATCH_RECORDS && (record = this.poll()) != null) {
+        this.write(record);
+        written++;
+      }
+      long drops = this.dropped.sum();
+      if (drops > reportedDrops) {
+        LogRecord report = new LogRecord(Level.WARNING, (drops - reportedDrops)
+            + " log records dropped, the log buffer was full");
+        report.setLoggerName(AsyncLogHandler.class.getName());
+        report.setSourceClassName(AsyncLogHandler.class.getName());
+        this.write(report);
+        reportedDrops = drops;
+        written++;
+      }
+      if (written > 0) {
+        try {
+          this.out.flush();
+        } catch (IOException e) {
+          this.reportError(null, e, ErrorManager.FLUSH_FAILURE);
+        }
+      }
+      if (written < Constants.LOG_BATCH_RECORDS) {
+        if (closing && this.head == this.tail.get()) {
+          return;
+        }
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Constants.LOG_FLUSH_INTERVAL_MS));
+      }
+    }
+  }
+
+  private void write(LogRecord record) {
+    try {
+      this.out.write(this.getFormatter().format(record));
+    } catch (IOException e) {
+      this.reportError(null, e, ErrorManager.WRITE_FAILURE);
+    } catch (RuntimeException e) {
+      this.reportError(null, e, ErrorManager.FORMAT_FAILURE);
+    }
+  }
+}
@@ -1,15 +1,112 @@
 package neu.cs6650.utils;
 
+import java.util.Arrays;
+
 public class Constants {
 
   public static final int EXIT = 6;
-  public static final int[] PORTS = new int[]{7000, 7001, 7002, 7003, 7004};
+  // Replica groups the namespace is sharded across by ShardRing, every server only replicates
+  // the files of its own group
+  public static final int[][] SHARD_GROUPS = new int[][]{{7000, 7001, 7002, 7003, 7004}};
+  // Groups taking no new names, their servers hand their files off to the groups that own the
+  // names now until they can be taken out of service
+  public static final int[] DRAINING_SHARD_GROUPS = new int[]{};
+  public static final int SHARD_VIRTUAL_NODES = 128;
+  public static final int SHARD_ID_RANGE = 1 << 24;
+  public static final int[] PORTS = Arrays.stream(SHARD_GROUPS).flatMapToInt(Arrays::stream)
+      .toArray();
   public static final String IP = "127.0.0.1";
   public static final String SERVER_NAME = "FileServer";
   public static final int DEFAULT_LB_PORT = 9001;
   public static final String RR_LOAD_BALANCER = "RoundRobinLoadBalancer";
   public static final String RANDOM_LOAD_BALANCER = "RandomLoadBalancer";
+  public static final String LEAST_LOADED_LOAD_BALANCER = "LeastLoadedLoadBalancer";
   public static final int RETRY_COUNT = 3;
+  // Load balancers probe every server this often and drop those not heard from within the timeout
+  public static final long HEARTBEAT_INTERVAL_MS = 500;
+  public static final long MEMBER_TIMEOUT_MS = 2000;
+  public static final long HEARTBEAT_MAX_BACKOFF_MS = 8000;
+  // Servers this many slots behind the most up to date one are not handed out for reads
+  public static final long READ_MAX_LAG_SLOTS = 16;
+  // How long a client keeps the servers it reads from and writes to before asking again
+  public static final long ROUTE_CACHE_MS = 10 * 1000L;
+  public static final int CHUNK_SIZE = 1 << 20;
+  public static final long TRANSFER_IDLE_TIMEOUT_MS = 10 * 60 * 1000L;
+  // Downloads are served at the RMI port of a server plus this offset
+  public static final int DATA_PORT_OFFSET = 1000;
+  public static final int DATA_THREADS = 8;
+  // Connections waiting for a data thread, those beyond are closed right away
+  public static final int DATA_QUEUE_SIZE = 64;
+  // Metrics are scraped over HTTP from the loopback interface, at the RMI port plus this offset
+  public static final int METRICS_PORT_OFFSET = 3000;
+  // Requests taking longer are logged with their trace and the peers that held them up
+  public static final long SLOW_REQUEST_MS = 1000;
+  // Requests a server works on at the same time by class, and the file content they may hold in
+  // memory together, before new ones are turned away with a time to retry after
+  public static final int ADMISSION_READS = 64;
+  public static final int ADMISSION_WRITES = 128;
+  public static final int ADMISSION_CONSENSUS = 128;
+  public static final int ADMISSION_REPLICATION = 128;
+  public static final long ADMISSION_PAYLOAD_BYTES = 256L << 20;
+  public static final long ADMISSION_MIN_RETRY_MS = 50;
+  public static final long ADMISSION_MAX_RETRY_MS = 2000;
+  // Log records buffered for the writer thread before new ones are dropped, and written per flush
+  public static final int LOG_BUFFER_RECORDS = 8192;
+  public static final int LOG_BATCH_RECORDS = 256;
+  public static final long LOG_FLUSH_INTERVAL_MS = 50;
+  // Request records at INFO beyond this many a second are sampled, one in LOG_INFO_SAMPLE_RATE
+  // is kept
+  public static final int LOG_INFO_PER_SECOND = 200;
+  public static final int LOG_INFO_SAMPLE_RATE = 100;
+  public static final String STAGING_DIR = ".staging";
+  public static final String CHUNKS_DIR = ".chunks";
+  public static final long CHUNK_GC_INTERVAL_MS = 60 * 1000L;
+  public static final long CHUNK_CACHE_BYTES = 256L << 20;
+  // Store new files as Reed-Solomon shards, one per server of the group, instead of whole copies
+  public static final boolean ERASURE_CODING = false;
+  public static final int EC_DATA_SHARDS = 3;
+  public static final int EC_PARITY_SHARDS = 2;
+  // How long a client may answer from its cache before revalidating its file listing
+  public static final long CACHE_LEASE_MS = 30 * 1000L;
+  public static final String CLIENT_CACHE_DIR = ".client-cache";
+  public static final long CLIENT_CACHE_BYTES = 512L << 20;
+  public static final String WAL_DIR = ".wal";
+  public static final long WAL_SEGMENT_BYTES = 64L << 20;
+  public static final int WAL_RETAINED_SLOTS = 1000;
+  public static final String INDEX_DIR = ".index";
+  public static final int INDEX_SNAPSHOT_SLOTS = 1000;
+  public static final long CHECKPOINT_INTERVAL_MS = 1000;
+  public static final int INDEX_DIGEST_BUCKETS = 256;
+  public static final long ANTI_ENTROPY_INTERVAL_MS = 10000;
+  public static final long ANTI_ENTROPY_BYTES_PER_SEC = 8L << 20;
+  // How often group leaders look for files whose names moved to another group, and how many
+  // they hand off per round
+  public static final long SHARD_HANDOFF_INTERVAL_MS = 5000;
+  public static final int SHARD_HANDOFF_FILES = 32;
+  public static final long PEER_RPC_TIMEOUT_MS = 2000;
+  // How long reads and writes wait for the lock of a file
+  public static final long FILE_LOCK_TIMEOUT_MS = 5000;
+  // Longest a file is held for a rename, longer durations asked for by clients are cut short
+  public static final long MAX_FILE_HOLD_MS = 10000;
+  // Have peers hold a file being renamed too, not only the leader
+  public static final boolean CLUSTER_FILE_HOLDS = false;
+  public static final int PEER_THREADS = 16;
+  public static final int PEER_QUEUE_SIZE = 256;
+  public static final long ELECTION_BACKOFF_MS = 200;
+  public static final int MAX_BATCH_SIZE = 64;
+  public static final int MAX_BATCHES_IN_FLIGHT = 4;
+  public static final int MAX_PENDING_WRITES = 1024;
+  public static final long WRITE_TIMEOUT_MS = 30000;
+  // Longest a server waits for the answer to any call it made over RMI before dropping the
+  // connection. A write forwarded to the leader may wait for the lock of its file, hold the file
+  // for a rename and then wait to be applied, a live leader must not be taken for failed then.
+  public static final long RMI_RESPONSE_TIMEOUT_MS = FILE_LOCK_TIMEOUT_MS + MAX_FILE_HOLD_MS
+      + WRITE_TIMEOUT_MS + 5000;
+  public static final int LOG_RETENTION_SLOTS = 10000;
+  public static final int LOG_FETCH_SLOTS = 256;
+  public static final long COMMIT_INTERVAL_MS = 20;
+  public static final long LEADER_HEARTBEAT_MS = 200;
+  public static final long LEADER_LEASE_MS = 1000;
 
 
   private Constants() {
@@ -0,0 +1,92 @@
+package neu.cs6650.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Splits content into chunks at boundaries defined by the content itself, using a gear rolling
+ * hash over the last bytes read. An insertion or deletion only moves the boundaries next to it, so
+ * two versions of a file still share most of their chunks. Chunks are named by the SHA-256 of
+ * their bytes. Clients and servers split the same way, so they agree on the chunks of a file.
+ */
+public class ContentChunker {
+
+  private static final int MIN_CHUNK = 16 << 10;
+  private static final int MAX_CHUNK = 256 << 10;
+  // A boundary is cut where the top 16 bits of the hash are zero, once every 64 KB on average.
+  // The top bits are used as they depend on the last 64 bytes, the low bits on the last few only.
+  private static final long BOUNDARY_MASK = 0xFFFFL << 48;
+  private static final long[] GEAR = new long[256];
+
+  static {
+    // Fixed seed, every process must derive the same table
+    long seed = 0x2545F4914F6CDD1DL;
+    for (int i = 0; i < GEAR.length; i++) {
+      seed += 0x9E3779B97F4A7C15L;
+      long z = seed;
+      z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+      z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+      GEAR[i] = z ^ (z >>> 31);
+    }
+  }
+
+  /**
+   * Receives the chunks of some content in order.
+   */
+  public interface ChunkConsumer {
+
+    void accept(String hash, byte[] chunk) throws IOException;
+  }
+
+  private ContentChunker() {
+
+  }
+
+  /**
+   * Reads the stream to its end and hands every chunk to the consumer. Empty content has no
+   * chunks.
+   */
+  public static void split(InputStream in, ChunkConsumer consumer) throws IOException {
+    byte[] chunk = new byte[MAX_CHUNK];
+    byte[] buffer = new byte[64 << 10];
+    int length = 0;
+    long hash = 0;
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      for (int i = 0; i < read; i++) {
+        chunk[length++] = buffer[i];
+        hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+        if (length == MAX_CHUNK || (length >= MIN_CHUNK && (hash & BOUNDARY_MASK) == 0)) {
+          byte[] cut = Arrays.copyOf(chunk, length);
+          consumer.accept(hash(cut), cut);
+          length = 0;
+          hash = 0;
+        }
+      }
+    }
+    if (length > 0) {
+      byte[] cut = Arrays.copyOf(chunk, length);
+      consumer.accept(hash(cut), cut);
+    }
+  }
+
+  /**
+   * @return the SHA-256 of the bytes as hex string
+   */
+  public static String hash(byte[] data) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    StringBuilder hex = new StringBuilder(64);
+    for (byte b : digest.digest(data)) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+}
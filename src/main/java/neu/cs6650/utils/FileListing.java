@@ -0,0 +1,60 @@
+package neu.cs6650.utils;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * The files on a server as of a version of its index, the slot of the log the index was at. A
+ * listing asked for with the version the client holds already comes back without files.
+ */
+public class FileListing implements Serializable {
+
+  private static final long serialVersionUID = -2261394787260814562L;
+
+  private final long version;
+  private final Map<Integer, String> files;
+  // Content hash of the files by id, the content of an id never changes
+  private final Map<Integer, String> contents;
+  private final long leaseMillis;
+
+  public FileListing(long version, Map<Integer, String> files, Map<Integer, String> contents,
+      long leaseMillis) {
+    this.version = version;
+    this.files = files;
+    this.contents = contents;
+    this.leaseMillis = leaseMillis;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * @return whether the listing of the version the client asked with is still current
+   */
+  public boolean isNotModified() {
+    return files == null;
+  }
+
+  /**
+   * @return names of the files by id, null if not modified
+   */
+  public Map<Integer, String> getFiles() {
+    return files;
+  }
+
+  /**
+   * @return content hashes of the files by id, null if not modified
+   */
+  public Map<Integer, String> getContents() {
+    return contents;
+  }
+
+  /**
+   * @return how long the server sends invalidations to the listener of the client, 0 if it was
+   * given none
+   */
+  public long getLeaseMillis() {
+    return leaseMillis;
+  }
+}
@@ -0,0 +1,26 @@
+package neu.cs6650.utils;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Exported by clients caching the file listing, servers call it when a file changes while the
+ * lease they granted on the listing lasts.
+ */
+public interface InvalidationListener extends Remote {
+
+  /**
+   * The file with the id was uploaded, renamed or deleted
+   *
+   * @param fileId of the file
+   * @throws RemoteException upon failure
+   */
+  void invalidate(int fileId) throws RemoteException;
+
+  /**
+   * Any file may have changed, used when a server replaced its index with that of a peer
+   *
+   * @throws RemoteException upon failure
+   */
+  void invalidateAll() throws RemoteException;
+}
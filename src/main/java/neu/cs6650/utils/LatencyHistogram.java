@@ -0,0 +1,156 @@
+package neu.cs6650.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in microseconds, in the layout of HdrHistogram. Every power of two is
+ * split into 128 buckets of equal width, so a value is kept to within 1% at any magnitude while
+ * the whole histogram is a few thousand counters. Recording only increments a counter, it neither
+ * allocates nor locks. A histogram is recorded by one thread, such as a session of the load
+ * generator that adds its histograms up with those of the others at the end, while
+ * {@link Concurrent} is recorded by all threads of a server at once.
+ *
+ * <p>Values can be recorded with an expected interval, which corrects for coordinated omission
+ * the way HdrHistogram does. A client that waits for a slow response does not send the requests
+ * it would have sent meanwhile, so the latency those would have seen is missing from its
+ * measurements. For a latency above the interval, the missing requests are recorded as well, with
+ * the latency decreasing by the interval from one to the next.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // Values up to 2^40 microseconds, about twelve days, larger ones count as the largest
+  private static final int MAX_EXPONENT = 40;
+  private static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+  private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  /**
+   * Histogram shared by many threads, which record into it concurrently. Its values are read
+   * through a snapshot.
+   */
+  public static class Concurrent {
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long micros) {
+      long value = clamp(micros);
+      this.counts.incrementAndGet(indexOf(value));
+      this.sum.add(value);
+      long current = this.max.get();
+      while (value > current && !this.max.compareAndSet(current, value)) {
+        current = this.max.get();
+      }
+    }
+
+    /**
+     * @return copy of the values recorded so far, values recorded meanwhile may or may not count
+     */
+    public LatencyHistogram snapshot() {
+      LatencyHistogram snapshot = new LatencyHistogram();
+      for (int i = 0; i < BUCKETS; i++) {
+        snapshot.counts[i] = this.counts.get(i);
+        snapshot.count += snapshot.counts[i];
+      }
+      snapshot.sum = this.sum.sum();
+      snapshot.max = this.max.get();
+      return snapshot;
+    }
+  }
+
+  private final long[] counts = new long[BUCKETS];
+  private long count;
+  private long sum;
+  private long max;
+
+  public void record(long micros) {
+    long value = clamp(micros);
+    this.counts[indexOf(value)]++;
+    this.count++;
+    this.sum += value;
+    this.max = Math.max(this.max, value);
+  }
+
+  /**
+   * Records a latency and the latencies of the requests it held up, sent every expectedInterval
+   * microseconds meanwhile.
+   */
+  public void recordCorrected(long micros, long expectedInterval) {
+    this.record(micros);
+    if (expectedInterval <= 0) {
+      return;
+    }
+    for (long missed = micros - expectedInterval; missed >= expectedInterval;
+        missed -= expectedInterval) {
+      this.record(missed);
+    }
+  }
+
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < this.counts.length; i++) {
+      this.counts[i] += other.counts[i];
+    }
+    this.count += other.count;
+    this.sum += other.sum;
+    this.max = Math.max(this.max, other.max);
+  }
+
+  public long getCount() {
+    return this.count;
+  }
+
+  /**
+   * @return sum of the recorded values in microseconds
+   */
+  public long getSum() {
+    return this.sum;
+  }
+
+  public long getMax() {
+    return this.max;
+  }
+
+  public double getMean() {
+    return this.count == 0 ? 0 : (double) this.sum / this.count;
+  }
+
+  /**
+   * @return the largest value of the bucket the percentile falls into, 0 if nothing was recorded
+   */
+  public long percentile(double percentile) {
+    if (this.count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * this.count));
+    long seen = 0;
+    for (int i = 0; i < this.counts.length; i++) {
+      seen += this.counts[i];
+      if (seen >= rank) {
+        return Math.min(lowestOf(i + 1) - 1, this.max);
+      }
+    }
+    return this.max;
+  }
+
+  private static long clamp(long micros) {
+    return Math.min(Math.max(micros, 0), MAX_VALUE);
+  }
+
+  private static int indexOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return ((shift + 1) << SUB_BUCKET_BITS) + (int) (value >>> shift) - SUB_BUCKETS;
+  }
+
+  private static long lowestOf(int index) {
+    int octave = index >>> SUB_BUCKET_BITS;
+    long subBucket = index & (SUB_BUCKETS - 1);
+    return octave == 0 ? subBucket : (subBucket + SUB_BUCKETS) << (octave - 1);
+  }
+}
@@ -18,6 +18,28 @@ public class Response implements Serializable {
 
   private byte[] downloadedFile;
 
+  // Size of the file behind a chunked download session
+  private long fileSize;
+
+  private Status status;
+
+  // Log slot a write was applied at, or the slot that last changed a downloaded file
+  private long version;
+
+  // Time the server took to answer
+  private long elapsedMicros;
+
+  // Time after which a request turned away for load may be sent again
+  private long retryAfterMs;
+
+  public Response() {
+  }
+
+  public Response(Status status, String message) {
+    this.status = status;
+    this.message = message;
+  }
+
   public String getType() {
     return type;
   }
@@ -26,6 +48,14 @@ public class Response implements Serializable {
     this.type = type;
   }
 
+  public String getReturnValue() {
+    return returnValue;
+  }
+
+  public void setReturnValue(String returnValue) {
+    this.returnValue = returnValue;
+  }
+
   public String getMessage() {
     return message;
   }
@@ -34,9 +64,47 @@ public class Response implements Serializable {
     this.message = message;
   }
 
+  public Status getStatus() {
+    return status;
+  }
+
+  public void setStatus(Status status) {
+    this.status = status;
+  }
+
+  public boolean isOk() {
+    return status == Status.OK;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  public void setVersion(long version) {
+    this.version = version;
+  }
+
+  public long getElapsedMicros() {
+    return elapsedMicros;
+  }
+
+  public void setElapsedMicros(long elapsedMicros) {
+    this.elapsedMicros = elapsedMicros;
+  }
+
+  public long getRetryAfterMs() {
+    return retryAfterMs;
+  }
+
+  public void setRetryAfterMs(long retryAfterMs) {
+    this.retryAfterMs = retryAfterMs;
+  }
+
   @Override
   public String toString() {
-    return "Response [type=" + type + ", returnValue=" + returnValue + ", message=" + message + "]";
+    return "Response [type=" + type + ", status=" + status + ", returnValue=" + returnValue
+        + ", message=" + message + ", version=" + version + ", elapsedMicros=" + elapsedMicros
+        + ", retryAfterMs=" + retryAfterMs + "]";
   }
 
   public void setDownloadedFile(byte[] downloadedFile) {
@@ -46,4 +114,12 @@ public class Response implements Serializable {
   public byte[] getDownloadedFile() {
     return downloadedFile;
   }
+
+  public long getFileSize() {
+    return fileSize;
+  }
+
+  public void setFileSize(long fileSize) {
+    this.fileSize = fileSize;
+  }
 }
\ No newline at end of file
@@ -0,0 +1,69 @@
+package neu.cs6650.utils;
+
+import java.io.Serializable;
+
+/**
+ * State of a server as reported in its heartbeats to the load balancers.
+ */
+public class ServerStatus implements Serializable {
+
+  private static final long serialVersionUID = 5093542460212775236L;
+
+  private final int port;
+  // Port of the leader known to the server, 0 if it knows none
+  private final int leaderPort;
+  private final long appliedSlot;
+  private final int files;
+  // Client requests being served
+  private final int inFlight;
+  // Moving average of the time taken by client requests
+  private final long latencyMicros;
+  // Writes waiting to be ordered, only the leader has any
+  private final int queueDepth;
+
+  public ServerStatus(int port, int leaderPort, long appliedSlot, int files, int inFlight,
+      long latencyMicros, int queueDepth) {
+    this.port = port;
+    this.leaderPort = leaderPort;
+    this.appliedSlot = appliedSlot;
+    this.files = files;
+    this.inFlight = inFlight;
+    this.latencyMicros = latencyMicros;
+    this.queueDepth = queueDepth;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  public int getLeaderPort() {
+    return leaderPort;
+  }
+
+  public long getAppliedSlot() {
+    return appliedSlot;
+  }
+
+  public int getFiles() {
+    return files;
+  }
+
+  public int getInFlight() {
+    return inFlight;
+  }
+
+  public long getLatencyMicros() {
+    return latencyMicros;
+  }
+
+  public int getQueueDepth() {
+    return queueDepth;
+  }
+
+  @Override
+  public String toString() {
+    return "ServerStatus [port=" + port + ", leaderPort=" + leaderPort + ", appliedSlot="
+        + appliedSlot + ", files=" + files + ", inFlight=" + inFlight + ", latencyMicros="
+        + latencyMicros + ", queueDepth=" + queueDepth + "]";
+  }
+}
@@ -0,0 +1,114 @@
+package neu.cs6650.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring that maps file names to the replica groups the namespace is sharded
+ * across. Every group is placed on the ring at a number of points hashed from its name, the first
+ * port of the group, and a file belongs to the group of the first point after the hash of its
+ * name. Adding or removing one of N groups only moves the names next to its points, about 1/N of
+ * them, and the points of a group spread its share over the whole ring.
+ *
+ * <p>Groups are numbered by their position in the array they are given in. Every group assigns
+ * file ids from its own range of Constants.SHARD_ID_RANGE ids, so the id of a file also tells its
+ * group. A group that is taken out of service is left in place as an empty array, so that the
+ * groups after it keep their number and ids.
+ *
+ * <p>Names are not moved by the ring itself, the leader of every group hands the files whose
+ * names another group owns to that group in the background. A group is taken out of service by
+ * draining it first: a draining group keeps its servers and number but owns no names, so that
+ * its files are handed off to the other groups and it can be emptied once it has none left.
+ */
+public class ShardRing {
+
+  private final int[][] groups;
+  private final TreeMap<Long, Integer> ring = new TreeMap<>();
+
+  /**
+   * @param draining numbers of the groups that own no names while their files are handed off
+   */
+  public ShardRing(int[][] groups, int[] draining, int virtualNodes) {
+    this.groups = groups;
+    for (int group = 0; group < groups.length; group++) {
+      int number = group;
+      if (groups[group].length == 0 || Arrays.stream(draining).anyMatch(g -> g == number)) {
+        continue;
+      }
+      for (int i = 0; i < virtualNodes; i++) {
+        // Named by port rather than number, so a group keeps its points when others come or go
+        this.ring.put(hash(groups[group][0] + "#" + i), group);
+      }
+    }
+    if (this.ring.isEmpty()) {
+      throw new IllegalArgumentException("No replica group to shard across");
+    }
+  }
+
+  /**
+   * @return number of the group files with the name belong to
+   */
+  public int groupOf(String fileName) {
+    Map.Entry<Long, Integer> point = this.ring.ceilingEntry(hash(fileName));
+    return point == null ? this.ring.firstEntry().getValue() : point.getValue();
+  }
+
+  /**
+   * @return number of the group that assigned the file id, -1 if no group did
+   */
+  public int groupOfFile(int fileId) {
+    int group = fileId / Constants.SHARD_ID_RANGE;
+    return fileId >= 0 && group < this.groups.length ? group : -1;
+  }
+
+  /**
+   * @return number of the group the server is in, -1 if it is in none
+   */
+  public int groupOfPort(int port) {
+    for (int group = 0; group < this.groups.length; group++) {
+      for (int member : this.groups[group]) {
+        if (member == port) {
+          return group;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return first id of the files of the group
+   */
+  public int firstId(int group) {
+    return group * Constants.SHARD_ID_RANGE;
+  }
+
+  /**
+   * @return ports of the servers of the group, the array must not be changed
+   */
+  public int[] ports(int group) {
+    return this.groups[group];
+  }
+
+  /**
+   * @return number of groups, including those taken out of service
+   */
+  public int size() {
+    return this.groups.length;
+  }
+
+  /**
+   * FNV-1a over the UTF-8 bytes, mixed so that names differing in their last byte only still land
+   * far apart on the ring.
+   */
+  private static long hash(String key) {
+    long hash = 0xCBF29CE484222325L;
+    for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+      hash = (hash ^ (b & 0xFF)) * 0x100000001B3L;
+    }
+    hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+    hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+    return hash ^ (hash >>> 31);
+  }
+}
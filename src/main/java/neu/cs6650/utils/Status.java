@@ -0,0 +1,19 @@
+package neu.cs6650.utils;
+
+/**
+ * Outcome of a request, so that clients can act on it without parsing the message.
+ */
+public enum Status {
+  OK,
+  // No file with the id or name, or its content is gone
+  NOT_FOUND,
+  // The file was held by another request for longer than Constants.FILE_LOCK_TIMEOUT_MS
+  LOCKED,
+  // Another file has the name already
+  EXISTS,
+  // The write was not ordered, for lack of a leader or a quorum, it may be sent again
+  UNAVAILABLE,
+  // The server turned the request away under load, it may be sent again after the retry-after
+  OVERLOADED,
+  FAILED
+}
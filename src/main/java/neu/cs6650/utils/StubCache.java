@@ -0,0 +1,115 @@
+package neu.cs6650.utils;
+
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Process wide cache of remote stubs keyed by host, port and bound name. A stub is looked up in
+ * the registry once and reused until a call on it fails. RMI keeps the connections of a stub open
+ * and reuses them between calls, so reusing stubs also reuses connections.
+ */
+public class StubCache {
+
+  private static Logger logger = Logger.getLogger(StubCache.class.getName());
+  private static final ConcurrentMap<String, Remote> stubs = new ConcurrentHashMap<>();
+  private static final String RESPONSE_TIMEOUT_PROPERTY = "sun.rmi.transport.tcp.responseTimeout";
+
+  /**
+   * A call made on a remote stub.
+   *
+   * @param <T> type of the stub
+   * @param <R> type of the result
+   */
+  public interface RemoteCall<T extends Remote, R> {
+
+    R call(T stub) throws Exception;
+  }
+
+  private StubCache() {
+
+  }
+
+  /**
+   * Makes every call this process makes over RMI fail once the answer took longer than the
+   * timeout, rather than waiting on a hung peer until TCP gives up. RMI reads the setting once,
+   * so it has to be made before the first remote call, and applies to all stubs of the process.
+   * A timeout set on the command line is kept.
+   */
+  public static void setResponseTimeout(long millis) {
+    if (System.getProperty(RESPONSE_TIMEOUT_PROPERTY) == null) {
+      System.setProperty(RESPONSE_TIMEOUT_PROPERTY, String.valueOf(millis));
+    }
+  }
+
+  /**
+   * Returns the cached stub bound with the name at host and port, looking it up on a miss.
+   *
+   * @return the stub
+   * @throws RemoteException   if the registry can not be reached
+   * @throws NotBoundException if nothing is bound with the name
+   */
+  @SuppressWarnings("unchecked")
+  public static <T extends Remote> T lookup(String host, int port, String name)
+      throws RemoteException, NotBoundException {
+    String key = key(host, port, name);
+    Remote stub = stubs.get(key);
+    if (stub == null) {
+      stub = LocateRegistry.getRegistry(host, port).lookup(name);
+      Remote existing = stubs.putIfAbsent(key, stub);
+      if (existing != null) {
+        stub = existing;
+      }
+      logger.log(Level.FINE, "Cached stub for {0}", key);
+    }
+    return (T) stub;
+  }
+
+  /**
+   * Drops the cached stub so that the next lookup goes to the registry again.
+   */
+  public static void invalidate(String host, int port, String name) {
+    stubs.remove(key(host, port, name));
+  }
+
+  /**
+   * Runs a call on the cached stub. If the call fails with a remote exception the stub is dropped
+   * from the cache. When the failure shows that the call never reached the remote object, like a
+   * refused connection after a restart, it is retried once on a freshly looked up stub.
+   *
+   * @return result of the call
+   */
+  public static <T extends Remote, R> R call(String host, int port, String name,
+      RemoteCall<T, R> call) throws Exception {
+    boolean cached = stubs.containsKey(key(host, port, name));
+    try {
+      return call.call(lookup(host, port, name));
+    } catch (ConnectException | ConnectIOException | NoSuchObjectException e) {
+      invalidate(host, port, name);
+      if (!cached) {
+        throw e;
+      }
+    } catch (RemoteException e) {
+      invalidate(host, port, name);
+      throw e;
+    }
+    try {
+      return call.call(lookup(host, port, name));
+    } catch (RemoteException e) {
+      invalidate(host, port, name);
+      throw e;
+    }
+  }
+
+  private static String key(String host, int port, String name) {
+    return host + ":" + port + "/" + name;
+  }
+}
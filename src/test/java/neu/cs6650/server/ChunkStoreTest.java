@@ -0,0 +1,161 @@
+package neu.cs6650.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChunkStoreTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File dir;
+  private ChunkStore store;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = folder.newFolder("chunks");
+    store = new ChunkStore(dir, -1, (shardIndex, block) -> {
+      throw new IOException("No peers");
+    }, new ChunkCache(8 << 20));
+  }
+
+  @Test
+  public void storesContentOnce() throws IOException {
+    byte[] data = randomBytes(1 << 20, 1);
+
+    String content = store.store(new ByteArrayInputStream(data));
+    int blocks = dir.listFiles().length;
+    String again = store.store(new ByteArrayInputStream(data));
+
+    assertEquals(content, again);
+    assertEquals(blocks, dir.listFiles().length);
+    Manifest manifest = store.manifest(content);
+    assertTrue(manifest.getHashes().size() > 1);
+    // The chunks and the manifest
+    assertEquals(manifest.getHashes().size() + 1, blocks);
+    assertEquals(data.length, manifest.getSize());
+  }
+
+  @Test
+  public void sharesTheChunksOfCommonContent() throws IOException {
+    byte[] data = randomBytes(1 << 20, 1);
+    String content = store.store(new ByteArrayInputStream(data));
+    int blocks = dir.listFiles().length;
+
+    String extended = store.store(new ByteArrayInputStream(concat(data, randomBytes(1 << 16, 2))));
+
+    List<String> shared = new ArrayList<>(store.manifest(content).getHashes());
+    shared.retainAll(store.manifest(extended).getHashes());
+    assertFalse(shared.isEmpty());
+    assertTrue(dir.listFiles().length < 2 * blocks);
+  }
+
+  @Test
+  public void buildsManifestsOfStoredChunks() throws IOException {
+    byte[] data = randomBytes(1 << 20, 1);
+    Manifest stored = store.manifest(store.store(new ByteArrayInputStream(data)));
+
+    String content = store.putManifest(stored.getHashes());
+
+    assertEquals(data.length, store.manifest(content).getSize());
+  }
+
+  @Test
+  public void refusesManifestsOfShardsAndManifests() throws IOException {
+    String content = store.store(new ByteArrayInputStream(randomBytes(1 << 16, 1)));
+    String chunk = store.manifest(content).getHashes().get(0);
+    store.put(ChunkStore.shardName(chunk, 0), randomBytes(100, 2));
+
+    for (String hash : Arrays.asList(ChunkStore.shardName(chunk, 0), content)) {
+      try {
+        store.putManifest(Collections.singletonList(hash));
+        fail("Accepted " + hash);
+      } catch (IOException e) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public void collectsChunksNoFileRefersTo() throws IOException {
+    byte[] data = randomBytes(1 << 20, 1);
+    String kept = store.store(new ByteArrayInputStream(data));
+    String dropped = store.store(new ByteArrayInputStream(concat(data, randomBytes(1 << 16, 2))));
+    assertTrue(store.retain(kept));
+    assertTrue(store.retain(dropped));
+    store.release(dropped);
+    age();
+
+    store.collectGarbage();
+
+    assertTrue(store.isComplete(kept));
+    assertFalse(store.contains(dropped));
+    assertEquals(store.manifest(kept).getHashes().size() + 1, dir.listFiles().length);
+  }
+
+  @Test
+  public void keepsChunksUsedRecently() throws IOException {
+    String content = store.store(new ByteArrayInputStream(randomBytes(1 << 16, 1)));
+
+    store.collectGarbage();
+
+    assertTrue(store.isComplete(content));
+  }
+
+  @Test
+  public void recountsReferencesFromTheIndexedContents() throws IOException {
+    String indexed = store.store(new ByteArrayInputStream(randomBytes(1 << 18, 1)));
+    String orphaned = store.store(new ByteArrayInputStream(randomBytes(1 << 18, 2)));
+    assertTrue(store.retain(orphaned));
+
+    store.recount(Collections.singletonList(indexed));
+    age();
+    store.collectGarbage();
+
+    assertTrue(store.isComplete(indexed));
+    assertFalse(store.contains(orphaned));
+
+    store.recount(Collections.emptyList());
+    age();
+    store.collectGarbage();
+
+    assertEquals(0, dir.listFiles().length);
+  }
+
+  /**
+   * Makes every block look unused for longer than the garbage collector waits.
+   */
+  private void age() {
+    long longAgo = System.currentTimeMillis() - 24 * 60 * 60 * 1000L;
+    for (File file : dir.listFiles()) {
+      assertTrue(file.setLastModified(longAgo));
+    }
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) {
+    byte[] both = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, both, first.length, second.length);
+    return both;
+  }
+
+  private static byte[] randomBytes(int length, long seed) {
+    byte[] data = new byte[length];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
+}
@@ -0,0 +1,47 @@
+package neu.cs6650.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import org.junit.Test;
+
+public class FileIndexTest {
+
+  private static final String CONTENT =
+      "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+  private final FileIndex index = new FileIndex(0);
+
+  @Test
+  public void dropsADeletedFileFromTheListing() {
+    index.add(-1, "a.txt", 1, 1, CONTENT);
+    index.add(-1, "b.txt", 1, 2, CONTENT);
+    int deleted = index.idOf("a.txt");
+    assertTrue(index.names().containsKey(deleted));
+
+    assertEquals("a.txt", index.remove("a.txt").getName());
+
+    Map<Integer, String> names = index.names();
+    assertFalse(names.containsKey(deleted));
+    assertFalse(index.contentsById().containsKey(deleted));
+    assertEquals(1, names.size());
+    assertNull(index.nameOf(deleted));
+  }
+
+  @Test
+  public void sharesTheListingUntilTheIndexChanges() {
+    index.add(-1, "a.txt", 1, 1, CONTENT);
+    Map<Integer, String> names = index.names();
+
+    assertSame(names, index.names());
+
+    int id = index.idOf("a.txt");
+    assertTrue(index.rename(id, "b.txt", 2));
+
+    assertEquals("b.txt", index.names().get(id));
+  }
+}
@@ -0,0 +1,61 @@
+package neu.cs6650.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PaxosStateTest {
+
+  private static final int PORT = 7000;
+  private static final int OTHER_PORT = 7001;
+
+  @Test
+  public void issuesBallotsAboveTheRestoredPromise() {
+    PaxosState before = new PaxosState(PORT);
+    long led = before.nextBallot();
+    assertTrue(before.becomeLeader(led, 0));
+
+    // A restart only knows what the write-ahead log recorded
+    PaxosState restarted = new PaxosState(PORT);
+    restarted.restore(led, 0);
+    long next = restarted.nextBallot();
+
+    assertTrue(next > led);
+    assertEquals(PORT, PaxosState.portOf(next));
+  }
+
+  @Test
+  public void refusesLeadershipOfABallotBelowAPromise() {
+    PaxosState state = new PaxosState(PORT);
+    long ballot = state.nextBallot();
+    PaxosState other = new PaxosState(OTHER_PORT);
+    other.restore(ballot, 0);
+
+    state.promise(other.nextBallot());
+
+    assertFalse(state.becomeLeader(ballot, 0));
+    assertEquals(0, state.getLeaderBallot());
+  }
+
+  @Test
+  public void reservesSlotsAfterTheHighestReportedOne() {
+    PaxosState state = new PaxosState(PORT);
+    long ballot = state.nextBallot();
+
+    assertTrue(state.becomeLeader(ballot, 4));
+
+    assertEquals(5, state.reserveSlot(ballot));
+    assertEquals(6, state.reserveSlot(ballot));
+  }
+
+  @Test(expected = PromiseException.class)
+  public void rejectsCandidatesWhileTheLeaderIsAlive() {
+    PaxosState state = new PaxosState(PORT);
+    PaxosState leader = new PaxosState(OTHER_PORT);
+    state.accept(leader.nextBallot(), 1);
+
+    state.promise(state.nextBallot());
+  }
+}
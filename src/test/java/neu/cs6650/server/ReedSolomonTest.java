@@ -0,0 +1,76 @@
+package neu.cs6650.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Test;
+
+public class ReedSolomonTest {
+
+  private static final int DATA_SHARDS = 3;
+  private static final int PARITY_SHARDS = 2;
+
+  private final ReedSolomon code = new ReedSolomon(DATA_SHARDS, PARITY_SHARDS);
+
+  @Test
+  public void keepsTheDataInTheDataShards() {
+    byte[] data = randomBytes(300);
+
+    byte[][] shards = code.encode(data);
+
+    assertEquals(DATA_SHARDS + PARITY_SHARDS, shards.length);
+    for (int i = 0; i < DATA_SHARDS; i++) {
+      for (int b = 0; b < 100; b++) {
+        assertEquals(data[i * 100 + b], shards[i][b]);
+      }
+    }
+  }
+
+  @Test
+  public void decodesWithAnyTwoShardsLost() throws IOException {
+    // Not a multiple of the data shards, the last shard is padded
+    byte[] data = randomBytes(10007);
+    byte[][] shards = code.encode(data);
+    int total = DATA_SHARDS + PARITY_SHARDS;
+
+    for (int first = 0; first < total; first++) {
+      for (int second = first + 1; second < total; second++) {
+        byte[][] received = shards.clone();
+        received[first] = null;
+        received[second] = null;
+
+        assertArrayEquals("lost shards " + first + " and " + second, data,
+            code.decode(received, data.length));
+      }
+    }
+  }
+
+  @Test
+  public void decodesDataShorterThanTheShardCount() throws IOException {
+    byte[] data = {42};
+    byte[][] shards = code.encode(data);
+    shards[0] = null;
+    shards[1] = null;
+
+    assertArrayEquals(data, code.decode(shards, data.length));
+  }
+
+  @Test(expected = IOException.class)
+  public void failsWithMoreShardsLostThanParityShards() throws IOException {
+    byte[] data = randomBytes(1000);
+    byte[][] shards = code.encode(data);
+    shards[0] = null;
+    shards[2] = null;
+    shards[4] = null;
+
+    code.decode(shards, data.length);
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+}
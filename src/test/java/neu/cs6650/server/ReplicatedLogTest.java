@@ -0,0 +1,153 @@
+package neu.cs6650.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import neu.cs6650.utils.Response;
+import neu.cs6650.utils.Status;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ReplicatedLogTest {
+
+  private static final long BALLOT = 1 << 16 | 7000;
+  private static final long NEWER_BALLOT = 2 << 16 | 7001;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File walDir;
+  private File dataDir;
+  private WriteAheadLog wal;
+  // Entries in the order they were applied, as slot:file name
+  private final List<String> applied = new ArrayList<>();
+  private final List<String> replayed = new ArrayList<>();
+  private ReplicatedLog log;
+
+  @Before
+  public void setUp() throws IOException {
+    walDir = folder.newFolder("wal");
+    dataDir = folder.newFolder("chunks");
+    wal = new WriteAheadLog(walDir, dataDir);
+    wal.replay(record -> {
+    });
+    log = new ReplicatedLog(new RecordingApplier(), wal);
+  }
+
+  @Test
+  public void appliesCommittedSlotsInSlotOrder() {
+    log.accept(2, BALLOT, entries("b"));
+    log.accept(1, BALLOT, entries("a"));
+    log.commit(2, null);
+
+    assertTrue(applied.isEmpty());
+    assertEquals(0, log.getAppliedSlot());
+
+    log.commit(1, null);
+
+    assertEquals(Arrays.asList("1:a", "2:b"), applied);
+    assertEquals(2, log.getAppliedSlot());
+  }
+
+  @Test
+  public void waitsForAMissingSlotAndAppliesItOnceLearned() {
+    log.accept(1, BALLOT, entries("a"));
+    log.accept(3, BALLOT, entries("c"));
+    log.commitUpTo(3, BALLOT);
+
+    assertEquals(Collections.singletonList("1:a"), applied);
+    assertTrue(log.hasGap());
+
+    log.learn(2, new LogSlot(BALLOT, entries("b"), true));
+
+    assertEquals(Arrays.asList("1:a", "2:b", "3:c"), applied);
+    assertFalse(log.hasGap());
+  }
+
+  @Test
+  public void leavesSlotsOfAnOlderBallotForCatchUp() {
+    log.accept(1, BALLOT, entries("a"));
+    log.commitUpTo(1, NEWER_BALLOT);
+
+    assertTrue(applied.isEmpty());
+    assertTrue(log.hasGap());
+
+    // The batch chosen for the slot replaces the one accepted earlier
+    log.learn(1, new LogSlot(NEWER_BALLOT, entries("z"), true));
+
+    assertEquals(Collections.singletonList("1:z"), applied);
+  }
+
+  @Test
+  public void keepsCommittedSlotsWhenAnotherBatchIsAccepted() {
+    log.accept(2, BALLOT, entries("b"));
+    log.commit(2, null);
+    log.accept(2, NEWER_BALLOT, entries("x"));
+    log.accept(1, BALLOT, entries("a"));
+    log.commit(1, null);
+
+    assertEquals(Arrays.asList("1:a", "2:b"), applied);
+  }
+
+  @Test
+  public void handsTheResultsOfASlotToItsWaiter() {
+    List<Response> results = new ArrayList<>();
+    log.accept(1, BALLOT, entries("a", "b"));
+    log.commit(1, results::addAll);
+
+    assertEquals(2, results.size());
+    assertEquals(Status.OK, results.get(0).getStatus());
+  }
+
+  @Test
+  public void replaysAppliedSlotsFromTheWriteAheadLog() throws IOException {
+    log.accept(1, BALLOT, entries("a"));
+    log.accept(2, BALLOT, entries("b"));
+    log.commit(1, null);
+    log.commit(2, null);
+    log.accept(3, BALLOT, entries("c"));
+    wal.sync();
+
+    WriteAheadLog reopened = new WriteAheadLog(walDir, dataDir);
+    ReplicatedLog restored = new ReplicatedLog(new RecordingApplier(), reopened);
+    reopened.replay(restored::restore);
+
+    assertEquals(Arrays.asList("1:a", "2:b"), replayed);
+    assertEquals(2, restored.getAppliedSlot());
+    assertEquals(3, restored.getLastSlot());
+    // The accepted slot is applied once it is committed
+    restored.commit(3, null);
+    assertEquals(3, restored.getAppliedSlot());
+  }
+
+  private static List<LogEntry> entries(String... fileNames) {
+    List<LogEntry> entries = new ArrayList<>();
+    for (String fileName : fileNames) {
+      entries.add(new LogEntry(Operation.DELETE_FILE, fileName, null));
+    }
+    return entries;
+  }
+
+  private class RecordingApplier implements ReplicatedLog.Applier {
+
+    @Override
+    public Response apply(long slot, LogEntry entry) {
+      applied.add(slot + ":" + entry.getFileName());
+      return new Response(Status.OK, Operation.DELETE_FILE.successMessage());
+    }
+
+    @Override
+    public void replay(long slot, LogEntry entry, Status result) {
+      replayed.add(slot + ":" + entry.getFileName());
+    }
+  }
+}
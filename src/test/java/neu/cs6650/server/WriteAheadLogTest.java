@@ -0,0 +1,169 @@
+package neu.cs6650.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteAheadLogTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File walDir;
+  private File dataDir;
+
+  @Before
+  public void setUp() throws IOException {
+    walDir = folder.newFolder("wal");
+    dataDir = folder.newFolder("chunks");
+  }
+
+  @Test
+  public void replaysRecordsInTheOrderTheyWereAppended() throws IOException {
+    WriteAheadLog wal = open();
+    wal.append(WalRecord.promise(7));
+    wal.append(accept(1, 7, "a"));
+    wal.append(accept(2, 7, "b"));
+    wal.sync();
+
+    List<WalRecord> records = replay();
+
+    assertEquals(3, records.size());
+    assertEquals(WalRecord.Type.PROMISE, records.get(0).getType());
+    assertEquals(7, records.get(0).getBallot());
+    assertEquals(1, records.get(1).getSlot());
+    assertEquals("a", records.get(1).getEntries().get(0).getFileName());
+    assertEquals(2, records.get(2).getSlot());
+    assertEquals("b", records.get(2).getEntries().get(0).getFileName());
+  }
+
+  @Test
+  public void dropsRecordsFromTheFirstOneWithABadChecksum() throws IOException {
+    WriteAheadLog wal = open();
+    wal.append(accept(1, 7, "a"));
+    long second = wal.append(accept(2, 7, "b"));
+    wal.append(accept(3, 7, "c"));
+    wal.sync();
+    File segment = onlySegment();
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      // Last byte of the payload of the second record
+      file.seek(second - 1);
+      int b = file.read();
+      file.seek(second - 1);
+      file.write(b ^ 0xff);
+    }
+    long firstLength = firstRecordLength();
+
+    List<WalRecord> records = replay();
+
+    assertEquals(1, records.size());
+    assertEquals(1, records.get(0).getSlot());
+    assertEquals(firstLength, segment.length());
+  }
+
+  @Test
+  public void cutsOffATornTailAndAppendsAfterTheIntactRecords() throws IOException {
+    WriteAheadLog wal = open();
+    long first = wal.append(accept(1, 7, "a"));
+    long second = wal.append(accept(2, 7, "b"));
+    wal.sync();
+    File segment = onlySegment();
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      // A crash in the middle of writing the second record
+      file.setLength(second - 3);
+    }
+
+    List<WalRecord> replayed = new ArrayList<>();
+    WriteAheadLog reopened = new WriteAheadLog(walDir, dataDir);
+    reopened.replay(replayed::add);
+    assertEquals(1, replayed.size());
+    assertEquals(first, segment.length());
+    reopened.append(accept(3, 7, "c"));
+    reopened.sync();
+
+    List<WalRecord> records = replay();
+
+    assertEquals(2, records.size());
+    assertEquals(1, records.get(0).getSlot());
+    assertEquals(3, records.get(1).getSlot());
+  }
+
+  @Test
+  public void syncsRecordsAppendedConcurrently() throws Exception {
+    WriteAheadLog wal = open();
+    int writers = 8;
+    int recordsPerWriter = 50;
+    ExecutorService executor = Executors.newFixedThreadPool(writers);
+    try {
+      List<Callable<Void>> tasks = new ArrayList<>();
+      for (int w = 0; w < writers; w++) {
+        int writer = w;
+        tasks.add(() -> {
+          for (int i = 0; i < recordsPerWriter; i++) {
+            wal.sync(wal.append(accept(writer * recordsPerWriter + i + 1, 7, "f" + writer)));
+          }
+          return null;
+        });
+      }
+      for (Future<Void> done : executor.invokeAll(tasks)) {
+        done.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    // A position covered by an earlier sync is durable already
+    wal.sync(1);
+
+    List<WalRecord> records = replay();
+
+    assertEquals(writers * recordsPerWriter, records.size());
+    List<Long> slots = new ArrayList<>();
+    records.forEach(record -> slots.add(record.getSlot()));
+    Collections.sort(slots);
+    for (int i = 0; i < slots.size(); i++) {
+      assertEquals(i + 1, slots.get(i).longValue());
+    }
+  }
+
+  private WriteAheadLog open() throws IOException {
+    WriteAheadLog wal = new WriteAheadLog(walDir, dataDir);
+    wal.replay(record -> {
+    });
+    return wal;
+  }
+
+  private List<WalRecord> replay() throws IOException {
+    List<WalRecord> records = new ArrayList<>();
+    new WriteAheadLog(walDir, dataDir).replay(records::add);
+    return records;
+  }
+
+  private File onlySegment() {
+    File[] segments = walDir.listFiles();
+    assertEquals(1, segments.length);
+    return segments[0];
+  }
+
+  private static long firstRecordLength() throws IOException {
+    // Length and checksum in front of the payload
+    return 8 + accept(1, 7, "a").encode().length;
+  }
+
+  private static WalRecord accept(long slot, long ballot, String fileName) {
+    return WalRecord.accept(slot, ballot, Collections.singletonList(
+        new LogEntry(Operation.DELETE_FILE, fileName, null)));
+  }
+}
@@ -0,0 +1,87 @@
+package neu.cs6650.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ShardRingTest {
+
+  private static final int VIRTUAL_NODES = 128;
+  private static final int NAMES = 20000;
+  private static final int[][] THREE_GROUPS = {
+      {7000, 7001, 7002}, {7100, 7101, 7102}, {7200, 7201, 7202}};
+  private static final int[][] FOUR_GROUPS = {
+      {7000, 7001, 7002}, {7100, 7101, 7102}, {7200, 7201, 7202}, {7300, 7301, 7302}};
+
+  @Test
+  public void spreadsNamesOverAllGroups() {
+    ShardRing ring = new ShardRing(THREE_GROUPS, new int[]{}, VIRTUAL_NODES);
+    int[] owned = new int[THREE_GROUPS.length];
+
+    for (int i = 0; i < NAMES; i++) {
+      owned[ring.groupOf(name(i))]++;
+    }
+
+    for (int count : owned) {
+      assertTrue("group owns " + count + " names", count > NAMES / 6);
+    }
+  }
+
+  @Test
+  public void movesNamesOnlyToAnAddedGroup() {
+    ShardRing before = new ShardRing(THREE_GROUPS, new int[]{}, VIRTUAL_NODES);
+    ShardRing after = new ShardRing(FOUR_GROUPS, new int[]{}, VIRTUAL_NODES);
+    int moved = 0;
+
+    for (int i = 0; i < NAMES; i++) {
+      int owner = after.groupOf(name(i));
+      if (owner != before.groupOf(name(i))) {
+        assertEquals(3, owner);
+        moved++;
+      }
+    }
+
+    // About a quarter of the names
+    assertTrue("moved " + moved + " names", moved > NAMES / 8 && moved < NAMES * 3 / 8);
+  }
+
+  @Test
+  public void movesOnlyTheNamesOfADrainingGroup() {
+    ShardRing before = new ShardRing(FOUR_GROUPS, new int[]{}, VIRTUAL_NODES);
+    ShardRing draining = new ShardRing(FOUR_GROUPS, new int[]{1}, VIRTUAL_NODES);
+
+    for (int i = 0; i < NAMES; i++) {
+      int owner = before.groupOf(name(i));
+      if (owner == 1) {
+        assertNotEquals(1, draining.groupOf(name(i)));
+      } else {
+        assertEquals(owner, draining.groupOf(name(i)));
+      }
+    }
+  }
+
+  @Test
+  public void keepsTheNumbersOfGroupsAfterARemovedOne() {
+    int[][] removed = {THREE_GROUPS[0], {}, THREE_GROUPS[2]};
+    ShardRing before = new ShardRing(THREE_GROUPS, new int[]{1}, VIRTUAL_NODES);
+    ShardRing after = new ShardRing(removed, new int[]{}, VIRTUAL_NODES);
+
+    for (int i = 0; i < NAMES; i++) {
+      assertEquals(before.groupOf(name(i)), after.groupOf(name(i)));
+    }
+    assertEquals(2, after.groupOfPort(7200));
+    assertEquals(-1, after.groupOfPort(7100));
+    assertEquals(2, after.groupOfFile(after.firstId(2) + 5));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void needsAGroupThatOwnsNames() {
+    new ShardRing(THREE_GROUPS, new int[]{0, 1, 2}, VIRTUAL_NODES);
+  }
+
+  private static String name(int i) {
+    return "file-" + i + ".txt";
+  }
+}